@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.cli;
+
+import com.dosse.bwentrain.cache.ExportCache;
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.BinaryPreset;
+import com.dosse.bwentrain.sound.ISoundDevice;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports many presets in many formats in the same JVM, running N jobs at a
+ * time on a fixed thread pool.<br>
+ * Each job renders a preset once and encodes it in all the formats at the same
+ * time.<br>
+ * Syntax: --batch dir|listFile --out dir [--format wav,flac,mp3,opus] [-j N]
+ * [--loop loopCount] [--link]<br>
+ * Files in the export cache are copied (or hard linked with --link) instead
+ * of being rendered again.
+ *
+ * @author dosse
+ */
+public class BatchExport {
+
+    private final List<File> presets = new ArrayList<>();
+    private File outDir;
+    private String[] formats = {"mp3"};
+    private int nThreads = Runtime.getRuntime().availableProcessors(), loop = 0;
+    private boolean link = false;
+    private ExportCache cache; //null if --no-cache was used
+    private final PrintStream log;
+
+    private BatchExport(PrintStream log) {
+        this.log = log;
+    }
+
+    /**
+     * parses the command line and runs the batch
+     *
+     * @param args command line, starting with --batch
+     * @param log where status and summary are printed
+     * @param cache export cache, null to render all presets
+     * @return 0 if all jobs succeeded, 5 if some of them failed, -1 if the
+     * syntax is wrong, 1 if the input can't be found
+     */
+    public static int run(String[] args, PrintStream log, ExportCache cache) {
+        BatchExport b = new BatchExport(log);
+        b.cache = cache;
+        String in = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--batch")) {
+                    in = args[++i];
+                } else if (args[i].equals("--out")) {
+                    b.outDir = new File(args[++i]);
+                } else if (args[i].equals("--format")) {
+                    b.formats = args[++i].toLowerCase().split(",");
+                } else if (args[i].equals("-j")) {
+                    b.nThreads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--loop")) {
+                    b.loop = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--link")) {
+                    b.link = true;
+                } else {
+                    return -1;
+                }
+            }
+        } catch (Exception e) {
+            return -1;
+        }
+        if (in == null || b.outDir == null || b.nThreads < 1 || b.loop < 0) {
+            return -1; //infinite loops (-1) can't be exported
+        }
+        File f = new File(in);
+        if (!f.exists()) {
+            log.println("File not found: " + in);
+            return 1;
+        }
+        if (f.isDirectory()) {
+            //all presets in the folder
+            File[] l = f.listFiles();
+            Arrays.sort(l);
+            for (File x : l) {
+                if (x.isFile() && BinaryPreset.isPresetName(x.getName())) {
+                    b.presets.add(x);
+                }
+            }
+        } else {
+            //list of presets, one per line
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"))) {
+                for (String line = r.readLine(); line != null; line = r.readLine()) {
+                    if (!line.trim().isEmpty()) {
+                        b.presets.add(new File(line.trim()));
+                    }
+                }
+            } catch (Exception e) {
+                log.println("Can't read " + in);
+                return 1;
+            }
+        }
+        if (!b.outDir.isDirectory() && !b.outDir.mkdirs()) {
+            log.println("Can't create folder " + b.outDir);
+            return 3;
+        }
+        return b.execute();
+    }
+
+    private int execute() {
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        List<Future<Integer>> jobs = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        Set<String> taken = new HashSet<>();
+        for (final File p : presets) {
+            String name = baseName(p);
+            if (!taken.add(name.toLowerCase())) {
+                //a.sin and a.sinb become a.mp3 and a_sinb.mp3, presets with the same name in different folders of a list become a_2.mp3, a_3.mp3, ...
+                String n = p.getName();
+                name = n.lastIndexOf('.') > 0 ? name + "_" + n.substring(n.lastIndexOf('.') + 1).toLowerCase() : name + "_2";
+                for (int i = 2; !taken.add(name.toLowerCase()); i++) {
+                    name = baseName(p) + "_" + i;
+                }
+            }
+            final String[] outs = new String[formats.length];
+            for (int i = 0; i < formats.length; i++) {
+                outs[i] = new File(outDir, name + "." + formats[i]).getPath();
+            }
+            names.add(p.getPath() + " -> " + Arrays.toString(outs));
+            jobs.add(pool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return export(p, outs);
+                }
+            }));
+        }
+        pool.shutdown();
+        int ok = 0, failed = 0;
+        for (int i = 0; i < jobs.size(); i++) {
+            int code;
+            try {
+                code = jobs.get(i).get();
+            } catch (Exception e) {
+                code = 4;
+            }
+            if (code == 0) {
+                ok++;
+                log.println("[OK]\t" + names.get(i));
+            } else {
+                failed++;
+                log.println("[ERR " + code + "]\t" + names.get(i) + "\t" + describe(code));
+            }
+        }
+        log.println("\n" + jobs.size() + " jobs, " + ok + " succeeded, " + failed + " failed, " + Main.toSeconds(System.nanoTime() - start) + "s");
+        return failed == 0 ? 0 : 5;
+    }
+
+    //runs a single job, returns an error code like the ones returned by the single file mode
+    private int export(File in, String[] outs) {
+        for (String out : outs) {
+            if (!Main.isSupported(out)) {
+                return -1;
+            }
+        }
+        if (!in.exists()) {
+            return 1;
+        }
+        Preset x;
+        try {
+            x = Main.readPreset(in);
+        } catch (Throwable t) {
+            return 2;
+        }
+        outs = Main.fetchCached(cache, x, outs, loop, link, null);
+        if (outs.length == 0) {
+            return 0;
+        }
+        List<ISoundDevice> devs;
+        try {
+            devs = Main.createDevices(outs, 1); //jobs already run in parallel, no need for parallel mp3 encoding too
+        } catch (Throwable t) {
+            return 3;
+        }
+        if (devs == null) {
+            return -1;
+        }
+        int ret = 0;
+        for (ISoundDevice s : devs) {
+            ret = Main.render(x, s, loop, null);
+            if (ret != 0) {
+                break;
+            }
+        }
+        if (ret != 0) {
+            Main.discard(devs, outs); //don't leave incomplete files and devices that were never rendered around
+        } else {
+            Main.storeCached(cache, x, outs, loop, log);
+        }
+        return ret;
+    }
+
+    private static String baseName(File f) {
+        String n = f.getName();
+        int i = n.lastIndexOf('.');
+        return i > 0 ? n.substring(0, i) : n;
+    }
+
+    private static String describe(int code) {
+        switch (code) {
+            case -1:
+                return "unsupported format";
+            case 1:
+                return "file not found";
+            case 2:
+                return "preset not valid";
+            case 3:
+                return "can't create file";
+            default:
+                return "device error";
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.cli;
+
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.generator.PresetTemplate;
+import com.dosse.bwentrain.io.BinaryPreset;
+import com.dosse.bwentrain.io.PresetWriter;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates many presets from a template, on a fixed thread pool.<br>
+ * Syntax: --generate templateFile --out dir --count N [--seed S] [-j N]
+ * [--sinb]<br>
+ * Presets are saved as name_number.sin (or .sinb with --sinb), where name is
+ * the name of the template file. The same template and seed always give the
+ * same presets. Only failures and a summary are printed.
+ *
+ * @author dosse
+ */
+public class BatchGenerate {
+
+    private PresetTemplate template;
+    private String name;
+    private File outDir;
+    private int count = -1, nThreads = Runtime.getRuntime().availableProcessors();
+    private long seed = 0;
+    private boolean binary = false;
+    private final PrintStream log;
+
+    private BatchGenerate(PrintStream log) {
+        this.log = log;
+    }
+
+    /**
+     * parses the command line and generates the presets
+     *
+     * @param args command line, starting with --generate
+     * @param log where errors and summary are printed
+     * @return 0 if all presets were generated, 5 if some of them failed, -1 if
+     * the syntax is wrong, 1 if the template can't be found, 2 if it's not
+     * valid, 3 if the output folder can't be created
+     */
+    public static int run(String[] args, PrintStream log) {
+        BatchGenerate b = new BatchGenerate(log);
+        String in = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--generate")) {
+                    in = args[++i];
+                } else if (args[i].equals("--out")) {
+                    b.outDir = new File(args[++i]);
+                } else if (args[i].equals("--count")) {
+                    b.count = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--seed")) {
+                    b.seed = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-j")) {
+                    b.nThreads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--sinb")) {
+                    b.binary = true;
+                } else {
+                    return -1;
+                }
+            }
+        } catch (Exception e) {
+            return -1;
+        }
+        if (in == null || b.outDir == null || b.count < 0 || b.nThreads < 1) {
+            return -1;
+        }
+        File f = new File(in);
+        if (!f.isFile()) {
+            log.println("File not found: " + in);
+            return 1;
+        }
+        try {
+            b.template = PresetTemplate.parse(f);
+        } catch (Throwable t) {
+            log.println("Invalid template: " + t.getMessage());
+            return 2;
+        }
+        String n = f.getName();
+        b.name = n.lastIndexOf('.') > 0 ? n.substring(0, n.lastIndexOf('.')) : n;
+        if (!b.outDir.isDirectory() && !b.outDir.mkdirs()) {
+            log.println("Can't create folder " + b.outDir);
+            return 3;
+        }
+        return b.execute();
+    }
+
+    private int execute() {
+        long start = System.nanoTime();
+        final int digits = ("" + Math.max(0, count - 1)).length();
+        final AtomicInteger next = new AtomicInteger(), failed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        for (int i = 0; i < nThreads; i++) {
+            //each thread takes the next preset until they're all done, so there's no need for a task per preset
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = next.getAndIncrement(); n < count; n = next.getAndIncrement()) {
+                        String err = generate(n, digits);
+                        if (err != null) {
+                            failed.incrementAndGet();
+                            synchronized (log) {
+                                log.println("[ERR]\t" + n + "\t" + err);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            failed.set(count); //not finished
+        }
+        log.println("\n" + count + " presets, " + (count - failed.get()) + " generated, " + failed.get() + " failed, " + Main.toSeconds(System.nanoTime() - start) + "s");
+        return failed.get() == 0 ? 0 : 5;
+    }
+
+    //generates and saves a single preset, returns null if everything went fine or the reason why it failed
+    private String generate(int i, int digits) {
+        Preset p;
+        try {
+            p = template.generate(i, seed);
+        } catch (Throwable t) {
+            return "preset not valid (" + t.getMessage() + ")";
+        }
+        String num = "" + i;
+        while (num.length() < digits) {
+            num = "0" + num;
+        }
+        File out = new File(outDir, name + "_" + num + (binary ? BinaryPreset.EXTENSION : ".sin"));
+        try {
+            if (binary) {
+                BinaryPreset.save(p, out, false);
+            } else {
+                PresetWriter.save(p, out);
+            }
+        } catch (Throwable t) {
+            return "can't create file " + out;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.cli;
+
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.renderers.IRenderer;
+import com.dosse.bwentrain.renderers.isochronic.IsochronicRenderer;
+import com.dosse.bwentrain.sound.backends.mp3.MP3Chunk;
+import com.dosse.bwentrain.sound.backends.stream.MP3StreamSoundBackend;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+
+/**
+ * Live streams for group sessions: all the listeners of the same preset
+ * starting from the same time share a single renderer and MP3 encoder.<br>
+ * The encoder appends its output to a ring of blocks; each listener has its
+ * own position in the ring and joins at the newest block. The renderer never
+ * waits for the listeners: a listener that falls behind by more than the size
+ * of the ring is disconnected. When the last listener leaves, the broadcast is
+ * stopped.<br>
+ * MP3 is used because it can be decoded starting from any frame, so
+ * listeners can join at any time. Blocks always contain whole frames, so that
+ * the first thing a listener receives is a frame header.
+ *
+ * @author dosse
+ */
+public class BroadcastHub {
+
+    private static final int RING_SIZE = 512; //blocks, each one is a renderer buffer (~23ms), so about 12 seconds
+    private static final float LEAD = 1; //how many seconds the broadcast is ahead of real time
+
+    private final File presets;
+    private final PrintStream log;
+    private final HashMap<String, Broadcast> broadcasts = new HashMap<>();
+
+    /**
+     * creates a new hub
+     *
+     * @param presets folder with the presets
+     * @param log where broadcasts starting and stopping are logged
+     */
+    public BroadcastHub(File presets, PrintStream log) {
+        this.presets = presets;
+        this.log = log;
+    }
+
+    /**
+     * streams a broadcast to a client, starting it if it's not running.
+     * Returns when the broadcast ends or the client goes away
+     *
+     * @param ex request
+     * @param name name of the preset (without extension)
+     * @param t start time of the broadcast, in seconds
+     * @throws IOException if the response can't be sent
+     */
+    public void handle(HttpExchange ex, String name, float t) throws IOException {
+        File f = StreamServer.presetFile(presets, name);
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || !f.isFile()) {
+            sendError(ex, 404, "Not found");
+            return;
+        }
+        Broadcast b;
+        long cursor;
+        synchronized (broadcasts) {
+            String key = name + "@" + t;
+            b = broadcasts.get(key);
+            if (b == null) {
+                Preset x;
+                try {
+                    x = Main.readPreset(f);
+                } catch (Throwable e) {
+                    sendError(ex, 500, "Preset not valid");
+                    return;
+                }
+                b = new Broadcast(key, x, t);
+                broadcasts.put(key, b);
+                log.println("Broadcast started: " + key);
+            }
+            cursor = b.join();
+        }
+        try {
+            ex.getResponseHeaders().set("Content-Type", "audio/mpeg");
+            ex.getResponseHeaders().set("Cache-Control", "no-cache");
+            ex.sendResponseHeaders(200, 0);
+            OutputStream out = ex.getResponseBody();
+            for (;;) {
+                byte[] block = b.get(cursor);
+                if (block == null) {
+                    break; //ended, or this listener is too slow
+                }
+                out.write(block);
+                out.flush();
+                cursor++;
+            }
+        } finally {
+            b.leave();
+        }
+    }
+
+    private static void sendError(HttpExchange ex, int code, String msg) throws IOException {
+        byte[] b = (msg + "\n").getBytes("UTF-8");
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        ex.sendResponseHeaders(code, b.length);
+        ex.getResponseBody().write(b);
+    }
+
+    private class Broadcast extends OutputStream {
+
+        private final String key;
+        private final IRenderer r;
+        private final byte[][] ring = new byte[RING_SIZE][];
+        private long head = 0; //sequence number of the next block
+        private byte[] pending = new byte[4096]; //encoder output that doesn't make a whole frame yet
+        private int pendingLen = 0;
+        private int listeners = 0;
+        private boolean ended = false;
+
+        public Broadcast(String key, Preset x, float t) {
+            this.key = key;
+            r = new IsochronicRenderer(x, new StreamServer.PacedSoundDevice(new MP3StreamSoundBackend(this, StreamServer.SAMPLE_RATE, 1, StreamServer.MP3_BITRATE), LEAD), 0);
+            r.setPosition(t);
+            r.play();
+            Thread t2 = new Thread() {
+                @Override
+                public void run() {
+                    //wait for the preset to end, or the last listener to leave
+                    while (r.isPlaying()) {
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                    r.stopPlaying();
+                    end();
+                }
+            };
+            t2.setDaemon(true);
+            t2.start();
+        }
+
+        //called by the encoder
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (pendingLen + len > pending.length) {
+                byte[] p = new byte[Math.max(2 * pending.length, pendingLen + len)];
+                System.arraycopy(pending, 0, p, 0, pendingLen);
+                pending = p;
+            }
+            System.arraycopy(b, off, pending, pendingLen, len);
+            pendingLen += len;
+            //find where the last whole frame ends
+            int end = 0;
+            for (int l = MP3Chunk.frameLength(pending, 0); l > 0 && end + l <= pendingLen; l = MP3Chunk.frameLength(pending, end)) {
+                end += l;
+            }
+            if (end == 0 && MP3Chunk.frameLength(pending, 0) == -1) {
+                end = pendingLen; //not a frame header, can't happen with LAME but never get stuck
+            }
+            if (end == 0) {
+                return;
+            }
+            byte[] block = new byte[end]; //a new array every time, listeners may still be sending the old one
+            System.arraycopy(pending, 0, block, 0, end);
+            System.arraycopy(pending, end, pending, 0, pendingLen - end);
+            pendingLen -= end;
+            synchronized (this) {
+                ring[(int) (head % RING_SIZE)] = block;
+                head++;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        //returns the position of a new listener
+        public synchronized long join() {
+            listeners++;
+            return head;
+        }
+
+        //waits for a block and returns it, or returns null if the broadcast ended or the block is no longer in the ring
+        public synchronized byte[] get(long seq) {
+            while (seq == head && !ended) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            if (seq == head || head - seq > RING_SIZE) {
+                return null;
+            }
+            return ring[(int) (seq % RING_SIZE)];
+        }
+
+        public void leave() {
+            boolean last;
+            synchronized (broadcasts) {
+                synchronized (this) {
+                    last = --listeners == 0;
+                }
+                if (last) {
+                    broadcasts.remove(key);
+                }
+            }
+            if (last) {
+                r.pause(); //the watcher thread will stop the renderer
+            }
+        }
+
+        private void end() {
+            synchronized (broadcasts) {
+                if (broadcasts.get(key) == this) {
+                    broadcasts.remove(key);
+                }
+            }
+            synchronized (this) {
+                ended = true;
+                notifyAll();
+            }
+            log.println("Broadcast ended: " + key);
+        }
+    }
+}
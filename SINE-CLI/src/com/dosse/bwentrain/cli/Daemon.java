@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.cli;
+
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.renderers.IRenderer;
+import com.dosse.bwentrain.renderers.isochronic.IsochronicRenderer;
+import com.dosse.bwentrain.sound.ISoundDevice;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps SINE-CLI in memory, so that commands don't pay for JVM startup, class
+ * loading and JIT warm up every time.<br>
+ * The daemon listens on a loopback TCP port; its port and a random password
+ * are written to ~/.sine/daemon, which only the user can read. The client
+ * sends the password, its working directory and the command line, then
+ * prints what the daemon sends back and exits with the same error code.<br>
+ * Any command that doesn't need the real stdout can be run by the daemon,
+ * several at the same time.<br>
+ * Protocol: the client sends one line each for password, working directory
+ * and arguments, then an empty line; the daemon sends the output, then a
+ * line with a 0 character followed by the error code.
+ *
+ * @author dosse
+ */
+public class Daemon {
+
+    private static final File INFO = new File(new File(System.getProperty("user.home"), ".sine"), "daemon");
+    private static final char EXIT_MARK = 0;
+
+    private final String password;
+    private final PrintStream log;
+
+    private Daemon(String password, PrintStream log) {
+        this.password = password;
+        this.log = log;
+    }
+
+    /**
+     * starts the daemon. Doesn't return unless there's an error or it's
+     * stopped by a client with --stop, in which case it stops accepting
+     * commands and returns when the ones that are running are complete
+     *
+     * @param args command line, starting with --daemon, optionally followed by
+     * a port (default: any free port)
+     * @param log where commands are logged
+     * @return 0 if stopped, -1 if the syntax is wrong, 3 if the port can't be
+     * opened or the info file can't be written
+     */
+    public static int run(String[] args, PrintStream log) {
+        int port = 0;
+        try {
+            if (args.length == 2) {
+                port = Integer.parseInt(args[1]);
+            } else if (args.length != 1) {
+                return -1;
+            }
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        final ServerSocket ss;
+        try {
+            ss = new ServerSocket();
+            ss.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        } catch (IOException e) {
+            log.println("Can't listen on port " + port);
+            return 3;
+        }
+        byte[] r = new byte[16];
+        new SecureRandom().nextBytes(r);
+        StringBuilder pw = new StringBuilder();
+        for (byte b : r) {
+            pw.append(String.format("%02x", b & 0xFF));
+        }
+        try {
+            writeInfo(ss.getLocalPort() + "\n" + pw + "\n");
+        } catch (IOException e) {
+            log.println("Can't write " + INFO);
+            return 3;
+        }
+        warmUp();
+        log.println("Daemon ready on port " + ss.getLocalPort());
+        final Daemon d = new Daemon(pw.toString(), log);
+        ExecutorService pool = Executors.newCachedThreadPool();
+        while (!ss.isClosed()) {
+            final Socket s;
+            try {
+                s = ss.accept();
+            } catch (IOException e) {
+                continue; //also thrown when --stop closes ss
+            }
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (d.serve(s)) {
+                        INFO.delete(); //clients see that the daemon is not running from now on
+                        try {
+                            ss.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            });
+        }
+        //exports that are running would leave partial files if the JVM exited now
+        log.println("Waiting for running commands");
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+        }
+        return 0;
+    }
+
+    private static void writeInfo(String s) throws IOException {
+        INFO.getParentFile().mkdirs();
+        Path p = INFO.toPath();
+        Files.deleteIfExists(p);
+        try {
+            //created readable only by this user, so nobody can open it before the password is written
+            Files.createFile(p, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            //not a POSIX file system (Windows): files in the user's home are only readable by the user anyway
+            Files.createFile(p);
+            INFO.setReadable(false, false);
+            INFO.setWritable(false, false);
+            INFO.setReadable(true, true);
+            INFO.setWritable(true, true);
+        }
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(INFO), "UTF-8")) {
+            w.write(s);
+        }
+    }
+
+    //renders a few minutes of a preset as fast as possible, so that the renderer is loaded and compiled by the JIT before the first command
+    private static void warmUp() {
+        try {
+            Preset p = new Preset();
+            p.addEntrainmentTrack();
+            IRenderer r = new IsochronicRenderer(p, new ISoundDevice() {
+                @Override
+                public boolean isClosed() {
+                    return false;
+                }
+
+                @Override
+                public void close() {
+                }
+
+                @Override
+                public void open() {
+                }
+
+                @Override
+                public int getChannelCount() {
+                    return 1;
+                }
+
+                @Override
+                public int getBitsPerSample() {
+                    return 16;
+                }
+
+                @Override
+                public float getSampleRate() {
+                    return 44100;
+                }
+
+                @Override
+                public void write(float[] data) {
+                }
+
+                @Override
+                public void setVolume(float vol) {
+                }
+
+                @Override
+                public float getVolume() {
+                    return 1;
+                }
+            }, 0);
+            r.play();
+            long end = System.currentTimeMillis() + 3000;
+            while (r.isPlaying() && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            r.stopPlaying();
+        } catch (Throwable t) {
+            //not important
+        }
+    }
+
+    //runs a command from a client. returns true if the daemon must stop
+    private boolean serve(Socket s) {
+        try (Socket c = s) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), "UTF-8"));
+            PrintStream out = new PrintStream(c.getOutputStream(), true, "UTF-8");
+            String pw = in.readLine();
+            if (pw == null || !MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), pw.getBytes(StandardCharsets.UTF_8))) {
+                return false; //constant time comparison, doesn't tell how much of the password was right
+            }
+            File cwd = new File(in.readLine());
+            List<String> args = new ArrayList<>();
+            for (String l = in.readLine(); l != null && !l.isEmpty(); l = in.readLine()) {
+                args.add(l);
+            }
+            if (args.size() == 1 && args.get(0).equals("--stop")) {
+                log.println("Stopped by client");
+                out.println(EXIT_MARK + "0");
+                return true;
+            }
+            boolean noCache = args.remove("--no-cache"); //can be anywhere in the command, take it out so resolve sees the arguments in their usual positions
+            String[] a = resolve(args.toArray(new String[args.size()]), cwd);
+            if (noCache) {
+                a = Arrays.copyOf(a, a.length + 1);
+                a[a.length - 1] = "--no-cache";
+            }
+            log.println("Running " + args);
+            int ret;
+            try {
+                ret = Main.execute(a, out);
+            } catch (Throwable t) {
+                ret = 4;
+            }
+            if (ret == -1) {
+                Main.showHelp(out);
+            }
+            out.println(EXIT_MARK + "" + ret);
+        } catch (IOException e) {
+            //client went away
+        }
+        return false;
+    }
+
+    //makes the paths in a command line relative to the client's working directory
+    private static String[] resolve(String[] args, File cwd) {
+        for (int i = 0; i < args.length; i++) {
+            boolean path = (i == 0 && !args[0].startsWith("--")) || (i > 0 && args[0].equals("--validate") && !args[i].equals("-j") && !args[i - 1].equals("-j")) || (i > 0 && (args[i - 1].equals("--batch") || args[i - 1].equals("--import-hbx") || args[i - 1].equals("--generate") || args[i - 1].equals("--out") || ((args[i - 1].equals("--export") || args[i - 1].equals("--convert")) && !args[0].startsWith("--"))));
+            if (path) {
+                String[] p = args[i].split(",");
+                StringBuilder sb = new StringBuilder();
+                for (String x : p) {
+                    File f = new File(x);
+                    sb.append(sb.length() == 0 ? "" : ",").append(f.isAbsolute() ? f.getPath() : new File(cwd, x).getPath());
+                }
+                args[i] = sb.toString();
+            }
+        }
+        return args;
+    }
+
+    /**
+     * sends a command to the daemon and prints its output
+     *
+     * @param args command line, starting with --client
+     * @param out where the output is printed
+     * @return error code of the command, 6 if the daemon is not running
+     */
+    public static int client(String[] args, PrintStream out) {
+        String[] info = new String[2];
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(INFO), "UTF-8"))) {
+            info[0] = r.readLine();
+            info[1] = r.readLine();
+        } catch (IOException e) {
+            out.println("Daemon not running");
+            return 6;
+        }
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(info[0]))) {
+            PrintStream w = new PrintStream(s.getOutputStream(), false, "UTF-8");
+            w.println(info[1]);
+            w.println(new File("").getAbsolutePath());
+            for (int i = 1; i < args.length; i++) {
+                w.println(args[i]);
+            }
+            w.println();
+            w.flush();
+            InputStream is = s.getInputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+            for (String l = in.readLine(); l != null; l = in.readLine()) {
+                if (!l.isEmpty() && l.charAt(0) == EXIT_MARK) {
+                    return Integer.parseInt(l.substring(1));
+                }
+                out.println(l);
+            }
+            return 4; //connection closed before the end
+        } catch (Exception e) {
+            out.println("Daemon not running");
+            return 6;
+        }
+    }
+}
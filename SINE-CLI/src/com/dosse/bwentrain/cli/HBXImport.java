@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.cli;
+
+import com.dosse.binaural.HBXConverter;
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.BinaryPreset;
+import com.dosse.bwentrain.io.PresetWriter;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts a whole library of HBX Binaural Player presets (hbx, hbs and hbl)
+ * into SINE presets, running N conversions at a time on a fixed thread
+ * pool.<br>
+ * Syntax: --import-hbx dir --out dir [-j N] [--sinb]<br>
+ * Subfolders are converted too, and their structure is kept in the output
+ * folder. With --sinb, presets are saved in the binary format.
+ *
+ * @author dosse
+ */
+public class HBXImport {
+
+    private final List<File> files = new ArrayList<>();
+    private final List<File> outs = new ArrayList<>();
+    private File inDir, outDir;
+    private int nThreads = Runtime.getRuntime().availableProcessors();
+    private boolean binary = false;
+    private final PrintStream log;
+
+    private HBXImport(PrintStream log) {
+        this.log = log;
+    }
+
+    /**
+     * parses the command line and runs the import
+     *
+     * @param args command line, starting with --import-hbx
+     * @param log where status and summary are printed
+     * @return 0 if all presets were converted, 5 if some of them failed, -1 if
+     * the syntax is wrong, 1 if the input folder can't be found, 3 if the
+     * output folder can't be created
+     */
+    public static int run(String[] args, PrintStream log) {
+        HBXImport b = new HBXImport(log);
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--import-hbx")) {
+                    b.inDir = new File(args[++i]);
+                } else if (args[i].equals("--out")) {
+                    b.outDir = new File(args[++i]);
+                } else if (args[i].equals("-j")) {
+                    b.nThreads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--sinb")) {
+                    b.binary = true;
+                } else {
+                    return -1;
+                }
+            }
+        } catch (Exception e) {
+            return -1;
+        }
+        if (b.inDir == null || b.outDir == null || b.nThreads < 1) {
+            return -1;
+        }
+        if (!b.inDir.isDirectory()) {
+            log.println("Folder not found: " + b.inDir);
+            return 1;
+        }
+        if (!b.outDir.isDirectory() && !b.outDir.mkdirs()) {
+            log.println("Can't create folder " + b.outDir);
+            return 3;
+        }
+        b.collect(b.inDir, b.outDir);
+        return b.execute();
+    }
+
+    //adds all the HBX presets in a folder and its subfolders, along with where they'll be saved
+    private void collect(File dir, File out) {
+        File[] l = dir.listFiles();
+        if (l == null) {
+            return;
+        }
+        Arrays.sort(l);
+        Set<String> taken = new HashSet<>();
+        for (File x : l) {
+            if (x.isFile() && isHBXName(x.getName())) {
+                String n = x.getName(), base = n.substring(0, n.lastIndexOf('.'));
+                //a.hbx and a.hbl in the same folder become a.sin and a_hbl.sin
+                String name = taken.add(base.toLowerCase()) ? base : base + "_" + n.substring(n.lastIndexOf('.') + 1).toLowerCase();
+                files.add(x);
+                outs.add(new File(out, name + (binary ? BinaryPreset.EXTENSION : ".sin")));
+            }
+        }
+        for (File x : l) {
+            if (x.isDirectory() && !x.isHidden()) {
+                collect(x, new File(out, x.getName()));
+            }
+        }
+    }
+
+    private static boolean isHBXName(String n) {
+        n = n.toLowerCase();
+        return n.endsWith(".hbx") || n.endsWith(".hbs") || n.endsWith(".hbl");
+    }
+
+    private int execute() {
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        List<Future<String>> jobs = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            final File in = files.get(i), out = outs.get(i);
+            jobs.add(pool.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return convert(in, out);
+                }
+            }));
+        }
+        pool.shutdown();
+        int ok = 0, failed = 0;
+        for (int i = 0; i < jobs.size(); i++) {
+            String err;
+            try {
+                err = jobs.get(i).get();
+            } catch (Exception e) {
+                err = "conversion failed";
+            }
+            String name = files.get(i).getPath() + " -> " + outs.get(i).getPath();
+            if (err == null) {
+                ok++;
+                log.println("[OK]\t" + name);
+            } else {
+                failed++;
+                log.println("[ERR]\t" + name + "\t" + err);
+            }
+        }
+        log.println("\n" + jobs.size() + " presets, " + ok + " converted, " + failed + " failed, " + Main.toSeconds(System.nanoTime() - start) + "s");
+        return failed == 0 ? 0 : 5;
+    }
+
+    //converts a single preset, returns null if everything went fine or the reason why it failed
+    private String convert(File in, File out) {
+        Preset x;
+        try {
+            x = HBXConverter.convert(in);
+        } catch (Throwable t) {
+            return "preset not valid" + (t.getMessage() == null ? "" : " (" + t.getMessage() + ")");
+        }
+        File dir = out.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) { //another job may have just created it
+            return "can't create folder";
+        }
+        try {
+            if (binary) {
+                BinaryPreset.save(x, out, false);
+            } else {
+                PresetWriter.save(x, out);
+            }
+        } catch (Throwable t) {
+            return "can't create file";
+        }
+        return null;
+    }
+}
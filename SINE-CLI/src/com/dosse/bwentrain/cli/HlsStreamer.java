@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.cli;
+
+import com.dosse.bwentrain.cache.DiskCache;
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.renderers.IRenderer;
+import com.dosse.bwentrain.renderers.isochronic.IsochronicRenderer;
+import com.dosse.bwentrain.sound.ISoundDevice;
+import com.dosse.bwentrain.sound.backends.mp3.MP3Chunk;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Serves presets as HTTP Live Streaming playlists of 10 second MP3
+ * segments.<br>
+ * A segment is rendered the first time it's requested, starting the renderer
+ * directly at the segment's start time, so seeking into a long preset doesn't
+ * need to render everything before it. Segments are encoded with MP3Chunk,
+ * with a few frames of pre-roll and post-roll, so they can be played back to
+ * back without gaps, and begin with the ID3 timestamp that HLS requires for
+ * packed audio.<br>
+ * Segments are stored in a DiskCache, keyed by the hash of the preset file, so
+ * editing a preset invalidates its segments. Parsed presets and their hashes
+ * are kept in memory until the file changes, so serving a segment that's
+ * already in the cache doesn't read the preset at all.
+ *
+ * @author dosse
+ */
+public class HlsStreamer {
+
+    private static final int SEGMENT_FRAMES = 384; //MP3 frames per segment, about 10 seconds at 44100Hz
+    private static final int SEGMENT_SAMPLES = SEGMENT_FRAMES * MP3Chunk.FRAME_SIZE;
+    private static final int MAX_PARSED = 64; //how many parsed presets are kept in memory
+
+    //a preset file, as it was when it was parsed
+    private static class Parsed {
+
+        private final long lastModified, size;
+        private final Preset preset;
+        private final String hash;
+
+        private Parsed(long lastModified, long size, Preset preset, String hash) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.preset = preset;
+            this.hash = hash;
+        }
+    }
+
+    private final File presets;
+    private final DiskCache cache;
+    private final LinkedHashMap<String, Parsed> parsed = new LinkedHashMap<String, Parsed>(16, 0.75f, true) { //path -> parsed preset, least recently used first
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Parsed> e) {
+            return size() > MAX_PARSED;
+        }
+    };
+
+    /**
+     * creates a new streamer
+     *
+     * @param presets folder with the presets
+     * @param cache where segments are stored
+     */
+    public HlsStreamer(File presets, DiskCache cache) {
+        this.presets = presets;
+        this.cache = cache;
+    }
+
+    /**
+     * handles /hls/name.m3u8 and /hls/name/index.mp3
+     *
+     * @param ex request
+     * @param path path after /hls/
+     * @throws IOException if the response can't be sent
+     */
+    public void handle(HttpExchange ex, String path) throws IOException {
+        String name;
+        int segment = -1;
+        if (path.endsWith(".m3u8")) {
+            name = path.substring(0, path.length() - 5);
+        } else if (path.endsWith(".mp3") && path.indexOf('/') != -1) {
+            name = path.substring(0, path.indexOf('/'));
+            try {
+                segment = Integer.parseInt(path.substring(path.indexOf('/') + 1, path.length() - 4));
+            } catch (NumberFormatException e) {
+                sendError(ex, 404, "Not found");
+                return;
+            }
+        } else {
+            sendError(ex, 404, "Not found");
+            return;
+        }
+        File f = StreamServer.presetFile(presets, name);
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || !f.isFile()) {
+            sendError(ex, 404, "Not found");
+            return;
+        }
+        Parsed px;
+        try {
+            px = parse(f);
+        } catch (Throwable t) {
+            sendError(ex, 500, "Preset not valid");
+            return;
+        }
+        final Preset x = px.preset;
+        long totalSamples = (long) (x.getLength() * StreamServer.SAMPLE_RATE);
+        int nSegments = (int) ((totalSamples + SEGMENT_SAMPLES - 1) / SEGMENT_SAMPLES);
+        if (segment == -1) {
+            byte[] b = playlist(name, totalSamples, nSegments).getBytes("UTF-8");
+            ex.getResponseHeaders().set("Content-Type", "application/vnd.apple.mpegurl");
+            ex.sendResponseHeaders(200, b.length);
+            ex.getResponseBody().write(b);
+            return;
+        }
+        if (segment < 0 || segment >= nSegments) {
+            sendError(ex, 404, "Not found");
+            return;
+        }
+        final int s = segment;
+        final boolean last = segment == nSegments - 1;
+        final long end = totalSamples;
+        byte[] b;
+        try {
+            b = cache.get(px.hash + "-" + segment + ".mp3", new DiskCache.Producer() {
+                @Override
+                public void produce(File out) throws Exception {
+                    try (OutputStream os = new FileOutputStream(out)) {
+                        os.write(id3Timestamp((long) s * SEGMENT_SAMPLES));
+                        os.write(renderSegment(x, s, last, end));
+                    }
+                }
+            });
+        } catch (Exception e) {
+            sendError(ex, 500, "Render failed");
+            return;
+        }
+        ex.getResponseHeaders().set("Content-Type", "audio/mpeg");
+        ex.getResponseHeaders().set("Cache-Control", "max-age=31536000");
+        ex.sendResponseHeaders(200, b.length);
+        ex.getResponseBody().write(b);
+    }
+
+    //the parsed preset and its hash, read again only if the file was modified
+    private Parsed parse(File f) throws Exception {
+        String path = f.getAbsolutePath();
+        long lastModified = f.lastModified(), size = f.length();
+        synchronized (parsed) {
+            Parsed p = parsed.get(path);
+            if (p != null && p.lastModified == lastModified && p.size == size) {
+                return p;
+            }
+        }
+        byte[] xml = Files.readAllBytes(f.toPath());
+        Parsed p = new Parsed(lastModified, size, Main.readPreset(f), sha256(xml));
+        synchronized (parsed) {
+            parsed.put(path, p);
+        }
+        return p;
+    }
+
+    private static String playlist(String name, long totalSamples, int nSegments) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-PLAYLIST-TYPE:VOD\n#EXT-X-MEDIA-SEQUENCE:0\n");
+        sb.append("#EXT-X-TARGETDURATION:").append((int) Math.ceil((double) SEGMENT_SAMPLES / StreamServer.SAMPLE_RATE)).append("\n");
+        for (int i = 0; i < nSegments; i++) {
+            long n = Math.min(SEGMENT_SAMPLES, totalSamples - (long) i * SEGMENT_SAMPLES);
+            sb.append("#EXTINF:").append(String.format(Locale.ENGLISH, "%.3f", (double) n / StreamServer.SAMPLE_RATE)).append(",\n");
+            sb.append(name).append("/").append(i).append(".mp3\n");
+        }
+        sb.append("#EXT-X-ENDLIST\n");
+        return sb.toString();
+    }
+
+    //renders segment i with its pre-roll and post-roll and encodes it
+    private static byte[] renderSegment(Preset x, int i, boolean last, long totalSamples) throws Exception {
+        int pre = MP3Chunk.PREROLL_FRAMES * MP3Chunk.FRAME_SIZE, post = MP3Chunk.POSTROLL_FRAMES * MP3Chunk.FRAME_SIZE;
+        long start = (long) i * SEGMENT_SAMPLES - pre; //negative for the first segment, which is pre-rolled with silence like a single encoder would be
+        long renderStart = Math.max(0, start), renderEnd = last ? totalSamples : (long) (i + 1) * SEGMENT_SAMPLES + post;
+        float[] pcm = new float[(int) (renderEnd - start)];
+        Capture c = new Capture(pcm, (int) (renderStart - start), pcm.length);
+        IRenderer r = new IsochronicRenderer(x, c, 0);
+        r.setPosition((float) ((double) renderStart / StreamServer.SAMPLE_RATE));
+        r.play();
+        while (r.isPlaying() && !c.full) {
+            Thread.sleep(5);
+        }
+        r.stopPlaying();
+        for (int j = 0; j < pcm.length; j++) {
+            pcm[j] = ((short) (pcm[j] * 32767)) * MP3Chunk.SAMPLE_SCALE;
+        }
+        return new MP3Chunk(new float[][]{pcm}, pcm.length, StreamServer.SAMPLE_RATE, StreamServer.MP3_BITRATE, last ? -1 : SEGMENT_FRAMES).call();
+    }
+
+    //ID3v2.4 tag with the MPEG-2 TS timestamp of the first sample, HLS players use it to place packed audio segments on the timeline
+    private static byte[] id3Timestamp(long firstSample) throws IOException {
+        byte[] owner = "com.apple.streaming.transportStreamTimestamp".getBytes("ASCII");
+        int frameSize = owner.length + 1 + 8;
+        byte[] b = new byte[10 + 10 + frameSize];
+        System.arraycopy("ID3".getBytes("ASCII"), 0, b, 0, 3);
+        b[3] = 4;
+        syncSafe(b, 6, 10 + frameSize);
+        System.arraycopy("PRIV".getBytes("ASCII"), 0, b, 10, 4);
+        syncSafe(b, 14, frameSize);
+        System.arraycopy(owner, 0, b, 20, owner.length);
+        long ts = (firstSample * 90000 / StreamServer.SAMPLE_RATE) & 0x1FFFFFFFFL; //33 bits, 90kHz
+        for (int i = 0; i < 8; i++) {
+            b[b.length - 1 - i] = (byte) (ts >> (8 * i));
+        }
+        return b;
+    }
+
+    private static void syncSafe(byte[] b, int off, int v) {
+        for (int i = 0; i < 4; i++) {
+            b[off + 3 - i] = (byte) ((v >> (7 * i)) & 0x7F);
+        }
+    }
+
+    private static String sha256(byte[] b) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (byte x : MessageDigest.getInstance("SHA-256").digest(b)) {
+            sb.append(String.format("%02x", x & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private static void sendError(HttpExchange ex, int code, String msg) throws IOException {
+        byte[] b = (msg + "\n").getBytes("UTF-8");
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        ex.sendResponseHeaders(code, b.length);
+        ex.getResponseBody().write(b);
+    }
+
+    //mono device that stores what the renderer produces in an array, from pos to end
+    private static class Capture implements ISoundDevice {
+
+        private final float[] pcm;
+        private final int end;
+        private int pos;
+        private volatile boolean full = false;
+
+        public Capture(float[] pcm, int pos, int end) {
+            this.pcm = pcm;
+            this.pos = pos;
+            this.end = end;
+            full = pos >= end;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public int getChannelCount() {
+            return 1;
+        }
+
+        @Override
+        public int getBitsPerSample() {
+            return 16;
+        }
+
+        @Override
+        public float getSampleRate() {
+            return StreamServer.SAMPLE_RATE;
+        }
+
+        @Override
+        public void write(float[] data) {
+            int n = Math.min(data.length, end - pos);
+            if (n > 0) {
+                System.arraycopy(data, 0, pcm, pos, n);
+                pos += n;
+            }
+            if (pos >= end) {
+                full = true;
+            }
+        }
+
+        @Override
+        public void setVolume(float vol) {
+        }
+
+        @Override
+        public float getVolume() {
+            return 1;
+        }
+    }
+}
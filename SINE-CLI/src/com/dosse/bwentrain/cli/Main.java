@@ -16,19 +16,30 @@
  */
 package com.dosse.bwentrain.cli;
 
+import com.dosse.bwentrain.cache.ExportCache;
 import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.BinaryPreset;
+import com.dosse.bwentrain.io.PresetReader;
+import com.dosse.bwentrain.io.PresetWriter;
 import com.dosse.bwentrain.renderers.IRenderer;
 import com.dosse.bwentrain.renderers.isochronic.IsochronicRenderer;
+import com.dosse.bwentrain.sound.AsyncSoundDevice;
 import com.dosse.bwentrain.sound.ISoundDevice;
+import com.dosse.bwentrain.sound.TeeSoundDevice;
 import com.dosse.bwentrain.sound.backends.flac.FLACFileSoundBackend;
-import com.dosse.bwentrain.sound.backends.mp3.MP3FileSoundBackend;
-import com.dosse.bwentrain.sound.backends.pc.PCSoundBackend;
+import com.dosse.bwentrain.sound.backends.mp3.ParallelMP3FileSoundBackend;
+import com.dosse.bwentrain.sound.backends.opus.OggOpusFileSoundBackend;
+import com.dosse.bwentrain.sound.backends.pc.LowLatencyPCSoundBackend;
+import com.dosse.bwentrain.sound.backends.stream.StreamSoundBackend;
 import com.dosse.bwentrain.sound.backends.wav.WavFileSoundBackend;
 import java.io.File;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 /**
  *
@@ -36,9 +47,11 @@ import org.xml.sax.InputSource;
  */
 public class Main {
 
+    static boolean useCache = true; //false if --no-cache was used when starting the program (for the daemon, in all its commands)
+
     //converts time to HH:MM:SS String
 
-    private static String toHMS(float t) {
+    static String toHMS(float t) {
         int h = (int) (t / 3600);
         t %= 3600;
         int m = (int) (t / 60);
@@ -47,142 +60,493 @@ public class Main {
         return "" + (h < 10 ? ("0" + h) : h) + ":" + (m < 10 ? ("0" + m) : m) + ":" + (s < 10 ? ("0" + s) : s); //bloody hell, code salad
     }
     
-    private static Preset loadPreset(String path) {
+    //converts a duration in nanoseconds to seconds with 3 decimals, used in the summaries of the batch modes
+    static String toSeconds(long ns) {
+        return "" + (ns / 1000000) / 1000f;
+    }
+
+    //reads a preset and prints its info to log. returns null if it can't be loaded, after printing why
+    private static Preset loadPreset(String path, PrintStream log) {
         File p = new File(path);
         if (!p.exists()) {
-            System.out.println("File not found: " + path);
-            System.exit(1);
+            log.println("File not found: " + path);
+            return null;
         }
         try {
-            //read xml document
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setIgnoringComments(true);
-            factory.setIgnoringElementContentWhitespace(true);
-            factory.setValidating(false);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(new InputSource(p.getAbsolutePath()));
-            //parse it
-            Preset x = new Preset(doc.getDocumentElement());
+            Preset x = readPreset(p);
             //preset is valid
             //print preset info
-            System.out.println("Title:\t" + x.getTitle() + "\nAuthor:\t" + x.getAuthor() + "\nDescription:\t" + x.getDescription() + "\nLength:\t" + toHMS(x.getLength()) + (x.loops() ? ", loops after " + toHMS(x.getLoop()) : "") + "\n");
+            log.println("Title:\t" + x.getTitle() + "\nAuthor:\t" + x.getAuthor() + "\nDescription:\t" + x.getDescription() + "\nLength:\t" + toHMS(x.getLength()) + (x.loops() ? ", loops after " + toHMS(x.getLoop()) : "") + "\n");
             return x;
         } catch (Throwable t) {
             //corrupt or not a preset file
-            System.out.println("Preset not valid: " + path);
-            System.exit(2);
+            log.println("Preset not valid: " + path);
+            return null;
+        }
+    }
+
+    //error code for a preset that loadPreset couldn't load
+    private static int loadError(String path) {
+        return new File(path).exists() ? 2 : 1;
+    }
+
+    //reads a preset without printing anything. throws an Exception if the file is not a valid preset
+    static Preset readPreset(File p) throws Exception {
+        return PresetReader.read(p);
+    }
+
+    //creates the backend for a file, choosing the format by its extension. returns null if the extension is not supported. encoderThreads is the number of threads the MP3 encoder can use
+    static ISoundDevice createDevice(String out, int encoderThreads) throws Exception {
+        if (out.toLowerCase().endsWith(".mp3")) {
+            return new ParallelMP3FileSoundBackend(out, 44100, 1, 96, encoderThreads);
+        }
+        if (out.toLowerCase().endsWith(".wav")) {
+            return new WavFileSoundBackend(out, 44100, 1);
+        }
+        if (out.toLowerCase().endsWith(".flac")) {
+            return new FLACFileSoundBackend(out, 44100, 1);
+        }
+        if (out.toLowerCase().endsWith(".opus") || out.toLowerCase().endsWith(".ogg")) {
+            return new OggOpusFileSoundBackend(out, 48000, 1, 32); //opus doesn't support 44100Hz
         }
         return null;
     }
-    
-    private static void playPreset(String path) {
-        Preset x = loadPreset(path);
-        //play the Preset
+
+    //sample rate used by createDevice for this file
+    static float sampleRate(String out) {
+        out = out.toLowerCase();
+        return out.endsWith(".opus") || out.endsWith(".ogg") ? 48000 : 44100;
+    }
+
+    //true if createDevice supports the extension of this file
+    static boolean isSupported(String out) {
+        out = out.toLowerCase();
+        return out.endsWith(".mp3") || out.endsWith(".wav") || out.endsWith(".flac") || out.endsWith(".opus") || out.endsWith(".ogg");
+    }
+
+    //creates the backends for many files. files with the same sample rate are sent to the same TeeSoundDevice so that the preset is rendered only once for all of them. returns null if an extension is not supported
+    static List<ISoundDevice> createDevices(String[] outs, int encoderThreads) throws Exception {
+        for (String out : outs) {
+            if (!isSupported(out)) {
+                return null;
+            }
+        }
+        LinkedHashMap<Float, List<ISoundDevice>> byRate = new LinkedHashMap<>();
+        List<ISoundDevice> created = new ArrayList<>();
         try {
-            IRenderer r = new IsochronicRenderer(x, new PCSoundBackend(44100, 1), -1);
-            r.play();
-            while (r.isPlaying()) {
-                Thread.sleep(100);
-                System.out.println(toHMS(r.getPosition()) + "/" + toHMS(r.getLength()));
+            for (String out : outs) {
+                ISoundDevice d = createDevice(out, encoderThreads);
+                created.add(d);
+                if (!byRate.containsKey(d.getSampleRate())) {
+                    byRate.put(d.getSampleRate(), new ArrayList<ISoundDevice>());
+                }
+                byRate.get(d.getSampleRate()).add(d);
             }
-            r.stopPlaying();
-            System.exit(0);
         } catch (Exception e) {
-            System.out.println("Device error");
-            System.exit(4);
+            discard(created, Arrays.copyOf(outs, created.size())); //the outputs that were already created
+            throw e;
+        }
+        List<ISoundDevice> ret = new ArrayList<>();
+        for (List<ISoundDevice> l : byRate.values()) {
+            ret.add(l.size() == 1 ? l.get(0) : new TeeSoundDevice(l.toArray(new ISoundDevice[l.size()])));
         }
+        return ret;
     }
-    
-    private static void exportPreset(String in, String out, int loop) {
-        Preset x = loadPreset(in);
-        //export the Preset
-        ISoundDevice s = null;
-        try {
-            if (out.toLowerCase().endsWith(".mp3")) {
-                s = new MP3FileSoundBackend(out, 44100, 1, 96);
-            }
-            if (out.toLowerCase().endsWith(".wav")) {
-                s = new WavFileSoundBackend(out, 44100, 1);
+
+    //copy of args without any occurrence of s
+    private static String[] without(String[] args, String s) {
+        List<String> l = new ArrayList<>(Arrays.asList(args));
+        l.removeAll(Arrays.asList(s));
+        return l.toArray(new String[l.size()]);
+    }
+
+    //key of a file in the export cache, must match the settings used by createDevice
+    static String cacheKey(Preset x, String out, int loop) throws Exception {
+        out = out.toLowerCase();
+        if (out.endsWith(".mp3")) {
+            return ExportCache.key(x, loop, 44100, 1, "mp3-96-noreservoir"); //ParallelMP3FileSoundBackend disables the bit reservoir, so it's not the same file the GUI's encoder makes
+        }
+        if (out.endsWith(".opus") || out.endsWith(".ogg")) {
+            return ExportCache.key(x, loop, 48000, 1, "opus-32");
+        }
+        return ExportCache.key(x, loop, 44100, 1, out.substring(out.lastIndexOf('.') + 1));
+    }
+
+    //copies the files that are in the export cache and returns the ones that must be rendered. link makes hard links instead of copies. copies and errors are printed to log, if not null
+    static String[] fetchCached(ExportCache cache, Preset x, String[] outs, int loop, boolean link, PrintStream log) {
+        if (cache == null) {
+            return outs;
+        }
+        List<String> ret = new ArrayList<>();
+        for (String out : outs) {
+            try {
+                if (cache.fetch(cacheKey(x, out, loop), new File(out), link)) {
+                    if (log != null) {
+                        log.println(out + ": same as a previous export, copied from cache");
+                    }
+                    continue;
+                }
+            } catch (Exception e) {
+                if (log != null) {
+                    log.println(out + ": can't use the export cache (" + e + "), exporting it again");
+                }
             }
-            if (out.toLowerCase().endsWith(".flac")) {
-                s = new FLACFileSoundBackend(out, 44100, 1);
+            ret.add(out);
+        }
+        return ret.toArray(new String[ret.size()]);
+    }
+
+    //stores files that were just rendered in the export cache. errors are printed to log, if not null
+    static void storeCached(ExportCache cache, Preset x, String[] outs, int loop, PrintStream log) {
+        if (cache == null) {
+            return;
+        }
+        for (String out : outs) {
+            try {
+                cache.store(cacheKey(x, out, loop), new File(out));
+            } catch (Exception e) {
+                if (log != null) {
+                    log.println(out + ": can't save it in the export cache (" + e + ")");
+                }
             }
-        } catch (Exception ex) {
-            System.out.println("Can't create file " + out);
-            System.exit(3);
         }
-        if (s == null) {
-            showHelp();
-            System.exit(-1);
+    }
+
+    //renders a preset to a device and waits for it to finish. progress is printed to log every second (if not null). returns 0 or 4 (device error)
+    static int render(Preset x, ISoundDevice s, int loop, PrintStream log) {
+        ISoundDevice target = s;
+        if (!(s instanceof TeeSoundDevice)) {
+            s = new AsyncSoundDevice(s); //encode on another thread while rendering. TeeSoundDevice already does it for each of its devices
         }
         try {
             IRenderer r = new IsochronicRenderer(x, s, loop);
             r.play();
             while (r.isPlaying()) {
-                Thread.sleep(1000);
-                System.out.println((r.getPosition() / r.getLength()) * 100 + "%");
+                Thread.sleep(log == null ? 100 : 1000);
+                if (hasFailed(target)) {
+                    //nobody is reading anymore or the encoder failed, no point in rendering the rest
+                    r.stopPlaying();
+                    return 4;
+                }
+                if (log != null) {
+                    log.println((r.getPosition() / r.getLength()) * 100 + "%");
+                }
             }
             r.stopPlaying();
-            System.out.println("100%\nExport complete");
+            return hasFailed(target) ? 4 : 0; //the last chunks are encoded and written when the device is closed
+        } catch (Exception e) {
+            return 4;
+        }
+    }
+
+    //closes devices (also the ones that were never opened, and all the devices in a TeeSoundDevice) and deletes their files. used when an export fails, so that it doesn't leave file handles, encoder threads and partial files behind
+    static void discard(List<ISoundDevice> devs, String[] outs) {
+        for (ISoundDevice d : devs) {
+            closeAll(d);
+        }
+        for (String out : outs) {
+            new File(out).delete();
+        }
+    }
+
+    //TeeSoundDevice and AsyncSoundDevice don't close what they wrap if they were never opened, but the file backends do
+    private static void closeAll(ISoundDevice d) {
+        if (d instanceof TeeSoundDevice) {
+            TeeSoundDevice t = (TeeSoundDevice) d;
+            for (int i = 0; i < t.getDeviceCount(); i++) {
+                closeAll(t.getDevice(i));
+            }
+        } else if (d instanceof AsyncSoundDevice) {
+            d.close(); //waits for its queue if it was opened
+            closeAll(((AsyncSoundDevice) d).getDevice());
+        } else {
+            d.close();
+        }
+    }
+
+    //true if a device (or one of the devices in a TeeSoundDevice) couldn't write what it was given
+    static boolean hasFailed(ISoundDevice d) {
+        if (d instanceof TeeSoundDevice) {
+            TeeSoundDevice t = (TeeSoundDevice) d;
+            for (int i = 0; i < t.getDeviceCount(); i++) {
+                if (hasFailed(t.getDevice(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (d instanceof AsyncSoundDevice) {
+            return hasFailed(((AsyncSoundDevice) d).getDevice());
+        }
+        return (d instanceof StreamSoundBackend && ((StreamSoundBackend) d).hasFailed()) || (d instanceof ParallelMP3FileSoundBackend && ((ParallelMP3FileSoundBackend) d).hasFailed()) || (d instanceof OggOpusFileSoundBackend && ((OggOpusFileSoundBackend) d).hasFailed());
+    }
+
+    //plays a preset until it ends or log is closed
+    private static int playPreset(String path, int bufferSize, int periodSize, PrintStream log) {
+        Preset x = loadPreset(path, log);
+        if (x == null) {
+            return loadError(path);
+        }
+        //play the Preset
+        try {
+            LowLatencyPCSoundBackend s = new LowLatencyPCSoundBackend(44100, 1, bufferSize, periodSize);
+            IRenderer r = new IsochronicRenderer(x, s, -1);
+            r.play();
+            while (r.isPlaying() && !log.checkError()) {
+                Thread.sleep(100);
+                log.println(toHMS(r.getPosition()) + "/" + toHMS(r.getLength()) + "\tlatency: " + (int) (s.getLatency() * 1000) + "ms\tunderruns: " + s.getUnderrunCount());
+            }
             r.stopPlaying();
-            System.exit(0);
+            return 0;
         } catch (Exception e) {
-            System.out.println("Device error");
+            log.println("Device error");
+            return 4;
+        }
+    }
+
+    private static int exportPreset(String in, String out, int loop, boolean resumable, ExportCache cache, PrintStream log) {
+        String[] outs = out.split(",");
+        for (String o : outs) {
+            if (!isSupported(o)) {
+                return -1;
+            }
+        }
+        Preset x = loadPreset(in, log);
+        if (x == null) {
+            return loadError(in);
+        }
+        outs = fetchCached(cache, x, outs, loop, false, log);
+        if (outs.length == 0) {
+            log.println("Export complete");
+            return 0;
+        }
+        if (resumable) {
+            int ret = ResumableExport.export(x, outs, loop, log);
+            if (ret == 3) {
+                log.println("Can't create file " + out);
+                return 3;
+            }
+            if (ret != 0) {
+                log.println("Device error");
+                return 4;
+            }
+            storeCached(cache, x, outs, loop, log);
+            log.println("100%\nExport complete");
+            return 0;
+        }
+        //export the Preset
+        List<ISoundDevice> devs;
+        try {
+            devs = createDevices(outs, Runtime.getRuntime().availableProcessors()); //mp3 encodes on all cores
+        } catch (Exception ex) {
+            log.println("Can't create file " + out);
+            return 3;
+        }
+        //one render for each sample rate (opus needs 48000Hz, all other formats use 44100Hz)
+        for (ISoundDevice s : devs) {
+            if (render(x, s, loop, log) != 0) {
+                discard(devs, outs); //the other sample rates too
+                log.println("Device error");
+                return 4;
+            }
+        }
+        storeCached(cache, x, outs, loop, log);
+        log.println("100%\nExport complete");
+        return 0;
+    }
+
+    private static void exportToStdout(String in, int format, int loop) {
+        //stdout is for the audio, everything else goes to stderr
+        FileOutputStream stdout = new FileOutputStream(FileDescriptor.out);
+        System.setOut(System.err);
+        Preset x = loadPreset(in, System.err);
+        if (x == null) {
+            System.exit(loadError(in));
+        }
+        StreamSoundBackend s = new StreamSoundBackend(stdout.getChannel(), 44100, 1, format);
+        if (render(x, s, loop, System.err) == 0) {
+            System.err.println("100%\nExport complete");
+            System.exit(0);
+        } else {
+            System.err.println("Device error");
             System.exit(4);
         }
     }
-    
-    private static void checkPreset(String path) {
-        loadPreset(path);
-        System.out.println("Preset valid");
-        System.exit(0);
+
+    private static int checkPreset(String path, PrintStream log) {
+        if (loadPreset(path, log) == null) {
+            return loadError(path);
+        }
+        log.println("Preset valid");
+        return 0;
     }
     
+    //converts a preset between .sin and .sinb, chosen by the extension of out
+    private static int convertPreset(String path, String out, boolean compress, PrintStream log) {
+        String ext = out.toLowerCase();
+        if (!ext.endsWith(".sin") && !ext.endsWith(BinaryPreset.EXTENSION)) {
+            return -1;
+        }
+        Preset x = loadPreset(path, log);
+        if (x == null) {
+            return loadError(path);
+        }
+        try {
+            if (ext.endsWith(BinaryPreset.EXTENSION)) {
+                BinaryPreset.save(x, new File(out), compress);
+            } else {
+                PresetWriter.save(x, new File(out));
+            }
+        } catch (Throwable t) {
+            log.println("Can't create file: " + out);
+            return 3;
+        }
+        log.println("Saved " + out);
+        return 0;
+    }
+
     private static void showHelp() {
-        System.out.println("SINE Isochronic Entrainer - Command Line Interface\nVersion 1.8.6\n\n"
+        showHelp(System.out);
+    }
+
+    static void showHelp(PrintStream log) {
+        log.println("SINE Isochronic Entrainer - Command Line Interface\nVersion 1.8.6\n\n"
                 + "Syntax:\n"
-                + "SINE-CLI presetFile [--validate|--export fileName [loopCount]]\n\n"
+                + "SINE-CLI presetFile [--validate|--export fileName[,fileName...] [loopCount] [--resume]|--export - [--format s16le|f32le|wav] [loopCount]|--play bufferSize periodSize|--convert fileName [--compress]]\n"
+                + "SINE-CLI --validate file|folder|glob [file|folder|glob...] [-j jobs]\n"
+                + "SINE-CLI --batch folder|listFile --out folder [--format formats] [-j jobs] [--loop loopCount] [--link]\n"
+                + "SINE-CLI --import-hbx folder --out folder [-j jobs] [--sinb]\n"
+                + "SINE-CLI --generate templateFile --out folder --count count [--seed seed] [-j jobs] [--sinb]\n"
+                + "SINE-CLI --serve port --presets folder [--cache folder] [--cache-size MB]\n"
+                + "SINE-CLI --daemon [port]\n"
+                + "SINE-CLI --client command\n\n"
                 + "Description:\n"
                 + "-Play a Preset:  SINE-CLI presetFile\n"
+                + "-Play a Preset with custom latency:  SINE-CLI presetFile --play bufferSize periodSize  sizes are in frames (defaults: " + LowLatencyPCSoundBackend.DEFAULT_BUFFER_SIZE + " and " + LowLatencyPCSoundBackend.DEFAULT_PERIOD_SIZE + "), increase them if the underrun count keeps growing\n"
                 + "-Validate a Preset: SINE-CLI presetFile --validate\n"
-                + "-Export a Preset: SINE-CLI presetFile --export fileName [loopCount]  fileName must end in .mp3, .wav or .flac;  LoopCount (optional) is useful when exporting looping Presets: it's the number of times the loop should be repeated (-1=repeat infinitely, 0=no repeat (default), 1=repeat once, ...)\n\n"
+                + "-Validate many Presets: SINE-CLI --validate file|folder|glob [file|folder|glob...] [-j jobs]  checks files, all the .sin and .sinb files in folders and their subfolders, and files matching quoted globs (for instance \"uploads/**.sin\"), jobs at a time (default: number of cores). For each file it prints a line of JSON with: valid (false if it can't be loaded or it's outside the limits of SINE Editor), error (why it can't be loaded), errors (values outside the limits), uselessTracks, optimizablePoints, complexity, complexityLevel (1-5) and renderTrackMinutes (length*(tracks+1), how long it takes to render compared to other presets). Returns 2 if some files are not valid\n"
+                + "-Convert a Preset: SINE-CLI presetFile --convert fileName [--compress]  saves the preset as .sin (XML) or .sinb (binary, chosen by the extension of fileName). .sinb files load much faster, especially large ones, and they're accepted anywhere a .sin file is. --compress makes .sinb files smaller, but they load a bit slower\n"
+                + "-Export a Preset: SINE-CLI presetFile --export fileName[,fileName...] [loopCount]  fileName must end in .mp3, .wav, .flac, .opus or .ogg (MP3 encoding uses all available cores), more files separated by commas are encoded at the same time from a single render, for instance out.wav,out.flac,out.mp3;  LoopCount (optional) is useful when exporting looping Presets: it's the number of times the loop should be repeated (-1=repeat infinitely, 0=no repeat (default), 1=repeat once, ...)\n"
+                + "-Resumable export: SINE-CLI presetFile --export fileName[,fileName...] [loopCount] --resume  renders to fileName.part and saves its progress in fileName.checkpoint every 30 seconds. If the export is interrupted, running the same command again continues from there and produces the same file. The .part file needs 4 bytes per sample (about 600MB per hour) until the export is complete. loopCount can't be -1\n"
+                + "-Export a Preset to stdout: SINE-CLI presetFile --export - [--format s16le|f32le|wav] [loopCount]  writes 44100Hz mono audio to stdout as raw 16 bit or 32 bit float little endian samples, or as a WAV stream (default), for instance to pipe it into ffmpeg or sox. Messages are printed to stderr\n"
+                + "-Export many Presets: SINE-CLI --batch folder|listFile --out folder [--format formats] [-j jobs] [--loop loopCount]  exports all the .sin and .sinb files in a folder (or listed in a text file, one per line) to the output folder. formats is a comma separated list of extensions (default: mp3), for instance wav,flac,mp3; jobs is how many exports run at the same time (default: number of cores); loopCount is like in the export mode, but it can't be -1; presets with the same name (a.sin and a.sinb, or files in different folders of a list) are exported as name_sinb, name_2, ...; --link creates hard links to the export cache instead of copies (the files must not be modified in place)\n"
+                + "-Import HBX Presets: SINE-CLI --import-hbx folder --out folder [-j jobs] [--sinb]  converts all the .hbx, .hbs and .hbl files (HBX Binaural Player presets) in a folder and its subfolders to .sin files (or .sinb with --sinb) in the output folder, keeping the same structure, jobs at a time (default: number of cores). Interpolation factors are not supported and are treated as 1\n"
+                + "-Generate Presets: SINE-CLI --generate templateFile --out folder --count count [--seed seed] [-j jobs] [--sinb]  generates count presets from a template and saves them as templateName_number.sin (or .sinb with --sinb) in the output folder, jobs at a time (default: number of cores). The same template and seed (default: 0) always give the same presets. A template is a text file with one statement per line: title, author and description followed by their text ({n} is replaced with the number of the preset), length seconds, loop seconds, track [trackVolume] to start a new entrainment track, and noise|base|entrainment|volume followed by an operation on that envelope of the last track: set value, ramp seconds value, hold seconds, sweep seconds from to cycles, at time value. Numbers can be written as min..max for a random value in that range. # starts a comment. Values are clamped to the limits of SINE Editor, and without a length statement the preset is as long as its longest envelope\n"
+                + "-Export cache: exported files are also saved in " + ExportCache.DEFAULT_DIR + " (up to " + ExportCache.DEFAULT_SIZE / 1048576 + "MB, shared with SINE and SINE Editor). Exporting a Preset that sounds the same with the same settings copies the file from there instead of rendering it again. Add --no-cache to any command to disable it\n"
+                + "-Daemon: SINE-CLI --daemon [port]  stays in memory and runs the commands sent by SINE-CLI --client, which are faster since the JVM is already started and warmed up. command is any of the commands above, except --export - and --serve (for instance SINE-CLI --client presetFile --export out.mp3), or --stop to stop the daemon once the commands that are running are complete. Only the user who started the daemon can send commands\n"
+                + "-Stream Presets over HTTP: SINE-CLI --serve port --presets folder [--cache folder] [--cache-size MB]  http://host:port/ lists the presets in the folder, http://host:port/name.mp3 (or .wav, .flac) streams name.sin (or name.sinb). Add ?t=seconds to start later, ?realtime=0 to send the audio as fast as possible instead of at playback speed, ?loop=loopCount to repeat the loop. WAV streams of non looping presets also support seeking with HTTP ranges. http://host:port/live/name.mp3[?t=seconds] joins a live broadcast of name.sin, shared by all its listeners. http://host:port/hls/name.m3u8 is an HLS playlist of name.sin, its segments are rendered when they're first requested and kept in the cache folder (default: sine-segments in the temp folder), deleting the least recently used ones when it's bigger than the cache size (default: 1024MB)\n\n"
                 + "Error codes:\n"
                 + "-1\tsyntax error\n"
                 + "0\tno error\n"
                 + "1\tfile not found\n"
                 + "2\tpreset not valid\n"
                 + "3\tcan't create file\n"
-                + "4\tdevice error\n");
+                + "4\tdevice error\n"
+                + "5\tsome of the batch jobs, imports or generated presets failed\n"
+                + "6\tdaemon not running\n");
     }
     
     public static void main(String args[]) {
+        if (args.length > 0 && !args[0].equals("--client") && Arrays.asList(args).contains("--no-cache")) {
+            //the client sends it to the daemon, which disables the cache only for that command
+            useCache = false;
+            args = without(args, "--no-cache");
+        }
         if (args.length == 0) {
             showHelp();
             System.exit(-1);
         }
-        if (args.length == 1) {
-            playPreset(args[0]);
+        if (args[0].equals("--daemon")) {
+            int ret = Daemon.run(args, System.out);
+            if (ret == -1) {
+                showHelp();
+            }
+            System.exit(ret);
+        }
+        if (args[0].equals("--client")) {
+            System.exit(Daemon.client(args, System.out));
         }
-        if (args.length == 2) {
-            if (args[1].equals("--validate")) {
-                checkPreset(args[0]);
-            } else {
+        if (args[0].equals("--serve")) {
+            int ret = StreamServer.run(args, System.out);
+            if (ret == -1) {
                 showHelp();
-                System.exit(-1);
             }
+            System.exit(ret);
         }
-        if (args.length == 3 || args.length == 4) {
-            if (args[1].equals("--export")) {
-                try {
-                    exportPreset(args[0], args[2], args.length == 4 ? Integer.parseInt(args[3]) : 0);
-                } catch (Exception e) {
-                    showHelp();
-                    System.exit(-1);
+        if (args.length >= 3 && args[1].equals("--export") && args[2].equals("-")) {
+            int format = StreamSoundBackend.FORMAT_WAV, loop = 0;
+            try {
+                for (int i = 3; i < args.length; i++) {
+                    if (args[i].equals("--format")) {
+                        format = StreamSoundBackend.parseFormat(args[++i]);
+                    } else {
+                        loop = Integer.parseInt(args[i]);
+                    }
                 }
-            } else {
+            } catch (Exception e) {
+                format = -1;
+            }
+            if (format == -1) {
                 showHelp();
                 System.exit(-1);
             }
+            exportToStdout(args[0], format, loop);
+        }
+        int ret = execute(args, System.out);
+        if (ret == -1) {
+            showHelp();
+        }
+        System.exit(ret);
+    }
+
+    //runs a command that doesn't need the real stdout and returns its error code, used by main and by the daemon
+    static int execute(String[] args, PrintStream log) {
+        ExportCache cache = useCache ? ExportCache.getDefault() : null;
+        if (Arrays.asList(args).contains("--no-cache")) {
+            cache = null; //only for this command
+            args = without(args, "--no-cache");
+        }
+        if (args.length == 0) {
+            return -1;
+        }
+        if (args[0].equals("--batch")) {
+            return BatchExport.run(args, log, cache);
+        }
+        if (args[0].equals("--validate")) {
+            return PresetLinter.run(args, log);
+        }
+        if (args[0].equals("--import-hbx")) {
+            return HBXImport.run(args, log);
+        }
+        if (args[0].equals("--generate")) {
+            return BatchGenerate.run(args, log);
+        }
+        try {
+            if (args.length == 1) {
+                return playPreset(args[0], LowLatencyPCSoundBackend.DEFAULT_BUFFER_SIZE, LowLatencyPCSoundBackend.DEFAULT_PERIOD_SIZE, log);
+            }
+            if (args.length == 2 && args[1].equals("--validate")) {
+                return checkPreset(args[0], log);
+            }
+            if (args.length == 4 && args[1].equals("--play")) {
+                return playPreset(args[0], Integer.parseInt(args[2]), Integer.parseInt(args[3]), log);
+            }
+            if ((args.length == 3 || (args.length == 4 && args[3].equals("--compress"))) && args[1].equals("--convert")) {
+                return convertPreset(args[0], args[2], args.length == 4, log);
+            }
+            boolean resume = args.length > 3 && args[args.length - 1].equals("--resume");
+            if (resume) {
+                args = Arrays.copyOf(args, args.length - 1);
+            }
+            if ((args.length == 3 || args.length == 4) && args[1].equals("--export")) {
+                int loop = args.length == 4 ? Integer.parseInt(args[3]) : 0;
+                if (resume && loop < 0) {
+                    return -1; //infinite loops (-1) can't be resumed, the export would never end
+                }
+                return exportPreset(args[0], args[2], loop, resume, cache, log);
+            }
+        } catch (NumberFormatException e) {
         }
+        return -1;
     }
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.cli;
+
+import com.dosse.bwentrain.core.EntrainmentTrack;
+import com.dosse.bwentrain.core.Envelope;
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.PresetLimits;
+import com.dosse.bwentrain.io.PresetLoader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks many presets at the same time, on a fixed thread pool, and prints a
+ * JSON object for each one as soon as it's checked (one per line, in no
+ * particular order).<br>
+ * Syntax: --validate file|folder|glob [file|folder|glob...] [-j N]<br>
+ * Folders are searched for .sin and .sinb files, including subfolders. Globs must be
+ * quoted so that the shell doesn't expand them, for instance
+ * "uploads/**.sin".<br>
+ * A preset fails if it can't be loaded or if it's outside the limits of SINE
+ * Editor (length, frequencies and volumes). Useless tracks, points that can be
+ * optimized away and complexity are reported as warnings and don't fail it.
+ *
+ * @author dosse
+ */
+public class PresetLinter {
+
+    private static final float OPTIMIZE_TOLERANCE = 0.05f;
+    private static final int COMPLEXITY_1 = 500, COMPLEXITY_2 = 1000, COMPLEXITY_3 = 2000, COMPLEXITY_4 = 6000;
+
+    private final PrintStream log;
+    private final ExecutorService pool;
+    private final AtomicInteger checked = new AtomicInteger(), failed = new AtomicInteger();
+
+    private PresetLinter(PrintStream log, int nThreads) {
+        this.log = log;
+        pool = Executors.newFixedThreadPool(nThreads);
+    }
+
+    /**
+     * parses the command line and checks all the presets
+     *
+     * @param args command line, starting with --validate
+     * @param log where the reports are printed
+     * @return 0 if all presets passed, 2 if some of them failed, 1 if no
+     * presets were found, -1 if the syntax is wrong
+     */
+    public static int run(String[] args, PrintStream log) {
+        List<String> in = new ArrayList<>();
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("-j")) {
+                    nThreads = Integer.parseInt(args[++i]);
+                } else {
+                    in.add(args[i]);
+                }
+            }
+        } catch (Exception e) {
+            return -1;
+        }
+        if (in.isEmpty() || nThreads < 1) {
+            return -1;
+        }
+        PresetLinter l = new PresetLinter(log, nThreads);
+        //files are checked while the folders are still being searched
+        for (String s : in) {
+            l.add(s);
+        }
+        l.pool.shutdown();
+        try {
+            l.pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+        }
+        if (l.checked.get() == 0) {
+            return 1;
+        }
+        return l.failed.get() == 0 ? 0 : 2;
+    }
+
+    //queues a file, a folder or all the files matching a glob
+    private void add(String s) {
+        if (s.contains("*") || s.contains("?") || s.contains("[") || s.contains("{")) {
+            //walk the folder before the first wildcard and check the files matching the pattern
+            String abs = new File(s).isAbsolute() ? s : new File("").getAbsolutePath() + File.separator + s;
+            int cut = abs.lastIndexOf(File.separatorChar, firstWildcard(abs));
+            final PathMatcher m = FileSystems.getDefault().getPathMatcher("glob:" + abs);
+            walk(Paths.get(cut <= 0 ? File.separator : abs.substring(0, cut)), m);
+        } else if (new File(s).isDirectory()) {
+            walk(Paths.get(s), FileSystems.getDefault().getPathMatcher("glob:**.{sin,SIN,sinb,SINB}"));
+        } else {
+            submit(new File(s));
+        }
+    }
+
+    private static int firstWildcard(String s) {
+        int i = s.length();
+        for (char c : new char[]{'*', '?', '[', '{'}) {
+            int x = s.indexOf(c);
+            if (x != -1 && x < i) {
+                i = x;
+            }
+        }
+        return i;
+    }
+
+    private void walk(Path dir, final PathMatcher m) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && m.matches(file)) {
+                        submit(file.toFile());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+        }
+    }
+
+    private void submit(final File f) {
+        checked.incrementAndGet();
+        pool.submit(new Runnable() {
+            @Override
+            public void run() {
+                StringBuilder report = new StringBuilder("{\"file\":").append(quote(f.getPath()));
+                boolean valid;
+                try {
+                    valid = check(f, report);
+                } catch (Throwable t) {
+                    valid = false;
+                    report.append(",\"valid\":false,\"error\":").append(quote("" + t));
+                }
+                report.append("}");
+                if (!valid) {
+                    failed.incrementAndGet();
+                }
+                synchronized (log) {
+                    log.println(report);
+                }
+            }
+        });
+    }
+
+    //checks a single preset and appends its report to sb. returns true if it passed
+    private static boolean check(File f, StringBuilder sb) {
+        if (!f.isFile()) {
+            sb.append(",\"valid\":false,\"error\":\"file not found\"");
+            return false;
+        }
+        Preset p;
+        try {
+            p = Main.readPreset(f);
+        } catch (Throwable t) {
+            sb.append(",\"valid\":false,\"error\":").append(quote(t.getMessage() == null ? "" + t : t.getMessage()));
+            return false;
+        }
+        //values outside the limits of the editor
+        List<String> errors = new ArrayList<>();
+        if (p.getLength() < PresetLimits.MIN_LENGTH || p.getLength() >= PresetLimits.MAX_LENGTH) {
+            errors.add("{\"type\":\"length\",\"value\":" + num(p.getLength()) + ",\"min\":" + PresetLimits.MIN_LENGTH + ",\"max\":" + PresetLimits.MAX_LENGTH + "}");
+        }
+        checkRange(p.getNoiseEnvelope(), -1, "noise", 1, errors);
+        int points = p.getNoiseEnvelope().getPointCount();
+        StringBuilder useless = new StringBuilder();
+        for (int i = 0; i < p.getEntrainmentTrackCount(); i++) {
+            EntrainmentTrack et = p.getEntrainmentTrack(i);
+            checkRange(et.getBaseFrequencyEnvelope(), i, "baseFrequency", PresetLimits.MAX_BASE_FREQUENCY, errors);
+            checkRange(et.getEntrainmentFrequencyEnvelope(), i, "entrainmentFrequency", PresetLimits.MAX_ENTRAINMENT_FREQUENCY, errors);
+            checkRange(et.getVolumeEnvelope(), i, "volume", 1, errors);
+            points += et.getBaseFrequencyEnvelope().getPointCount() + et.getEntrainmentFrequencyEnvelope().getPointCount() + et.getVolumeEnvelope().getPointCount();
+            if (et.isUseless()) {
+                useless.append(useless.length() == 0 ? "" : ",").append(i);
+            }
+        }
+        //what the editor's optimize function would remove, done on a copy
+        Preset c;
+        try {
+            c = PresetLoader.copy(p); //much faster than clone for presets with many points
+        } catch (Exception e) {
+            c = p.clone();
+        }
+        int optimizable = c.optimizePoints(OPTIMIZE_TOLERANCE);
+        int complexity = p.complexity();
+        int level = complexity < COMPLEXITY_1 ? 1 : complexity < COMPLEXITY_2 ? 2 : complexity < COMPLEXITY_3 ? 3 : complexity < COMPLEXITY_4 ? 4 : 5;
+        sb.append(",\"valid\":").append(errors.isEmpty());
+        sb.append(",\"title\":").append(quote(p.getTitle()));
+        sb.append(",\"length\":").append(num(p.getLength()));
+        sb.append(",\"loop\":").append(p.loops() ? num(p.getLoop()) : "-1");
+        sb.append(",\"tracks\":").append(p.getEntrainmentTrackCount());
+        sb.append(",\"points\":").append(points);
+        sb.append(",\"errors\":[");
+        for (int i = 0; i < errors.size(); i++) {
+            sb.append(i == 0 ? "" : ",").append(errors.get(i));
+        }
+        sb.append("],\"uselessTracks\":[").append(useless).append("]");
+        sb.append(",\"optimizablePoints\":").append(optimizable);
+        sb.append(",\"complexity\":").append(complexity);
+        sb.append(",\"complexityLevel\":").append(level);
+        //the renderer does the same work for every second of every track, so this is what rendering costs compared to other presets
+        sb.append(",\"renderTrackMinutes\":").append(num(p.getLength() * (p.getEntrainmentTrackCount() + 1) / 60f));
+        return errors.isEmpty();
+    }
+
+    private static void checkRange(Envelope e, int track, String name, float max, List<String> errors) {
+        for (int i = 0; i < e.getPointCount(); i++) {
+            float v = e.getVal(i);
+            if (v < 0 || v > max || Float.isNaN(v)) {
+                errors.add("{\"type\":\"range\",\"track\":" + track + ",\"envelope\":\"" + name + "\",\"point\":" + i + ",\"t\":" + num(e.getT(i)) + ",\"value\":" + num(v) + ",\"min\":0,\"max\":" + max + "}");
+            }
+        }
+    }
+
+    //JSON number, null if it's NaN or infinite
+    private static String num(float f) {
+        return Float.isNaN(f) || Float.isInfinite(f) ? "null" : "" + f;
+    }
+
+    //JSON string
+    private static String quote(String s) {
+        if (s == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.cli;
+
+import com.dosse.bwentrain.cache.ExportCache;
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.render.SteppableRenderer;
+import com.dosse.bwentrain.renderers.isochronic.EntrainmentTrackRenderer;
+import com.dosse.bwentrain.sound.AsyncSoundDevice;
+import com.dosse.bwentrain.sound.ISoundDevice;
+import com.dosse.bwentrain.sound.TeeSoundDevice;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Exports a preset so that it can be continued after a crash.<br>
+ * The preset is rendered to a .part file next to the output (32 bit float
+ * samples), and every CHECKPOINT_INTERVAL ms the state of the renderer and the
+ * length of the .part file are saved in a .checkpoint file. Running the same
+ * export again continues from the last checkpoint. When rendering is complete,
+ * the .part file is encoded to the output files and both are deleted.<br>
+ * Rendering is done by SteppableRenderer, whose state can be saved and
+ * restored exactly, so a resumed export is identical to one that was never
+ * interrupted.<br>
+ * Only rendering is resumable: encoding is fast compared to rendering a
+ * preset with many tracks, and encoders can't save their state, so if it's
+ * interrupted it starts again from the beginning of the .part file.
+ *
+ * @author dosse
+ */
+public class ResumableExport {
+
+    private static final long CHECKPOINT_INTERVAL = 30000;
+
+    private final Preset p;
+    private final SteppableRenderer renderer;
+    private final int blockSize;
+    private long samples = 0;
+    private boolean done = false;
+
+    private ResumableExport(Preset p, float sampleRate, int loop) throws Exception {
+        this.p = p;
+        renderer = new SteppableRenderer(p, sampleRate, loop);
+        while (!renderer.isReady()) {
+            Thread.sleep(1); //still loading
+        }
+        blockSize = renderer.getBlockSize();
+    }
+
+    private void renderBlock(float[] buf) {
+        done = !renderer.render(buf, p.getNoiseEnvelope(), p.getLength(), p.getLoop());
+        samples += blockSize;
+    }
+
+    //doubles are saved as their bits so that they're restored exactly
+    private static String d2s(double d) {
+        return "" + Double.doubleToRawLongBits(d);
+    }
+
+    private static double s2d(String s) {
+        return Double.longBitsToDouble(Long.parseLong(s));
+    }
+
+    private void saveCheckpoint(File cp, String key) throws Exception {
+        Properties c = new Properties();
+        c.setProperty("key", key);
+        c.setProperty("samples", "" + samples);
+        c.setProperty("done", "" + done);
+        c.setProperty("t", d2s(renderer.getT()));
+        c.setProperty("noiseT", d2s(renderer.getNoiseT()));
+        c.setProperty("loopCounter", "" + renderer.getLoopCounter());
+        EntrainmentTrackRenderer[] renderers = renderer.getTrackRenderers();
+        for (int i = 0; i < renderers.length; i++) {
+            double[] s = SteppableRenderer.getTrackState(renderers[i]);
+            c.setProperty("track" + i + ".t", d2s(s[0]));
+            c.setProperty("track" + i + ".cT", d2s(s[1]));
+            c.setProperty("track" + i + ".ecT", d2s(s[2]));
+        }
+        //write a new checkpoint and replace the old one, so that there's always a complete one
+        File tmp = new File(cp.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            c.store(out, "SINE export checkpoint");
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), cp.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //returns false if the checkpoint is for a different preset or export settings
+    private boolean loadCheckpoint(File cp, String key) throws Exception {
+        Properties c = new Properties();
+        try (FileInputStream in = new FileInputStream(cp)) {
+            c.load(in);
+        }
+        if (!key.equals(c.getProperty("key"))) {
+            return false;
+        }
+        samples = Long.parseLong(c.getProperty("samples"));
+        done = Boolean.parseBoolean(c.getProperty("done"));
+        renderer.restore(s2d(c.getProperty("t")), s2d(c.getProperty("noiseT")));
+        renderer.setLoopCounter(Integer.parseInt(c.getProperty("loopCounter")));
+        EntrainmentTrackRenderer[] renderers = renderer.getTrackRenderers();
+        for (int i = 0; i < renderers.length; i++) {
+            SteppableRenderer.setTrackState(renderers[i], new double[]{s2d(c.getProperty("track" + i + ".t")), s2d(c.getProperty("track" + i + ".cT")), s2d(c.getProperty("track" + i + ".ecT"))});
+        }
+        return true;
+    }
+
+    //renders the rest of the preset to the .part file
+    private int render(File part, File cp, String key, PrintStream log) {
+        try {
+            try (FileChannel ch = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                //anything after the checkpoint was written after the last save and is discarded
+                ch.truncate(samples * 4);
+                ch.position(samples * 4);
+                float[] buf = new float[blockSize];
+                ByteBuffer bb = ByteBuffer.allocateDirect(blockSize * 4).order(ByteOrder.LITTLE_ENDIAN);
+                long lastCheckpoint = System.currentTimeMillis(), lastLog = lastCheckpoint;
+                while (!done) {
+                    renderBlock(buf);
+                    bb.clear();
+                    bb.asFloatBuffer().put(buf);
+                    while (bb.hasRemaining()) {
+                        ch.write(bb);
+                    }
+                    long now = System.currentTimeMillis();
+                    if (done || now - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+                        ch.force(false); //the samples must be on disk before the checkpoint that says they are
+                        saveCheckpoint(cp, key);
+                        lastCheckpoint = now;
+                    }
+                    if (now - lastLog >= 1000) {
+                        log.println(((float) renderer.getT() / p.getLength()) * 100 + "%");
+                        lastLog = now;
+                    }
+                }
+            }
+            return 0;
+        } catch (Exception e) {
+            return 4;
+        }
+    }
+
+    //encodes the .part file, in the same blocks that the renderer would write
+    private int encode(File part, ISoundDevice dev) {
+        ISoundDevice s = dev instanceof TeeSoundDevice ? dev : new AsyncSoundDevice(dev);
+        s.open();
+        try (FileChannel ch = FileChannel.open(part.toPath(), StandardOpenOption.READ)) {
+            float[] buf = new float[blockSize];
+            ByteBuffer bb = ByteBuffer.allocateDirect(blockSize * 4).order(ByteOrder.LITTLE_ENDIAN);
+            for (long i = 0; i < samples; i += blockSize) {
+                bb.clear();
+                while (bb.hasRemaining()) {
+                    if (ch.read(bb) == -1) {
+                        throw new IOException("Unexpected end of file");
+                    }
+                }
+                bb.flip();
+                bb.asFloatBuffer().get(buf);
+                s.write(buf); //copied by AsyncSoundDevice
+            }
+        } catch (Exception e) {
+            s.close();
+            return 4;
+        }
+        s.close();
+        return Main.hasFailed(dev) ? 4 : 0;
+    }
+
+    /**
+     * exports a preset to one or more files, continuing a previous export of
+     * the same preset with the same settings if it was interrupted
+     *
+     * @param x preset
+     * @param outs output files, their extensions must be supported by
+     * Main.createDevice
+     * @param loop loop count
+     * @param log where progress is printed
+     * @return 0 if the export is complete, 3 if the files can't be created, 4
+     * if rendering or encoding failed
+     */
+    public static int export(Preset x, String[] outs, int loop, PrintStream log) {
+        //one .part file for each sample rate, like Main.createDevices
+        LinkedHashMap<Float, List<String>> byRate = new LinkedHashMap<>();
+        for (String out : outs) {
+            float sr = Main.sampleRate(out);
+            if (!byRate.containsKey(sr)) {
+                byRate.put(sr, new ArrayList<String>());
+            }
+            byRate.get(sr).add(out);
+        }
+        for (Float sr : byRate.keySet()) {
+            String[] group = byRate.get(sr).toArray(new String[0]);
+            File part = new File(group[0] + ".part"), cp = new File(group[0] + ".checkpoint");
+            ResumableExport r;
+            String key;
+            try {
+                r = new ResumableExport(x, sr, loop);
+                key = ExportCache.key(x, loop, (int) (float) sr, 1, "f32");
+                boolean resumed = false;
+                if (cp.exists() && part.exists()) {
+                    try {
+                        resumed = r.loadCheckpoint(cp, key) && part.length() >= r.samples * 4;
+                    } catch (Exception e) {
+                        //corrupt checkpoint
+                    }
+                }
+                if (resumed) {
+                    log.println("Resuming from " + Main.toHMS((float) r.renderer.getT()));
+                } else {
+                    r = new ResumableExport(x, sr, loop); //start again from the beginning
+                }
+            } catch (Exception e) {
+                return 4;
+            }
+            if (r.render(part, cp, key, log) != 0) {
+                return 4;
+            }
+            List<ISoundDevice> devs;
+            try {
+                devs = Main.createDevices(group, Runtime.getRuntime().availableProcessors());
+            } catch (Exception e) {
+                return 3;
+            }
+            if (r.encode(part, devs.get(0)) != 0) {
+                Main.discard(devs, group); //the .part file is kept, encoding starts again from there next time
+                return 4;
+            }
+            part.delete();
+            cp.delete();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.cli;
+
+import com.dosse.bwentrain.cache.DiskCache;
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.BinaryPreset;
+import com.dosse.bwentrain.renderers.IRenderer;
+import com.dosse.bwentrain.renderers.isochronic.IsochronicRenderer;
+import com.dosse.bwentrain.sound.ISoundDevice;
+import com.dosse.bwentrain.sound.backends.stream.FLACStreamSoundBackend;
+import com.dosse.bwentrain.sound.backends.stream.MP3StreamSoundBackend;
+import com.dosse.bwentrain.sound.backends.stream.StreamSoundBackend;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the presets in a folder over HTTP, rendering them on the fly.<br>
+ * Syntax: --serve port --presets dir [--cache dir] [--cache-size MB]<br>
+ * GET / lists the presets, GET /name.wav, /name.flac or /name.mp3 streams
+ * name.sin (or name.sinb) in that format (44100Hz mono). Query parameters:
+ * <ul>
+ * <li>t: start at this many seconds</li>
+ * <li>realtime: 1 (default) sends audio at the speed it's played, 0 sends
+ * it as fast as possible</li>
+ * <li>loop: loop count, like in the export mode</li>
+ * </ul>
+ * WAV files of non looping presets have a known length, so they also support
+ * HTTP Range requests (seeking in browsers and media players); everything else
+ * is sent chunked.<br>
+ * GET /live/name.mp3 joins a live broadcast of name.sin, shared by all the
+ * listeners with the same t (see BroadcastHub).<br>
+ * GET /hls/name.m3u8 is an HLS playlist of name.sin, whose segments are
+ * rendered on demand and kept in a disk cache (see HlsStreamer).<br>
+ * Every connection is handled by its own thread, and every stream by its own
+ * renderer.
+ *
+ * @author dosse
+ */
+public class StreamServer implements HttpHandler {
+
+    static final int SAMPLE_RATE = 44100, MP3_BITRATE = 96;
+    private static final float REALTIME_LEAD = 2; //in realtime mode, how many seconds of audio can be sent ahead of time
+
+    private final File presets;
+    private final PrintStream log;
+    private final BroadcastHub hub;
+    private final HlsStreamer hls;
+
+    private StreamServer(File presets, DiskCache cache, PrintStream log) {
+        this.presets = presets;
+        this.log = log;
+        hub = new BroadcastHub(presets, log);
+        hls = new HlsStreamer(presets, cache);
+    }
+
+    /**
+     * parses the command line and starts the server. Doesn't return unless
+     * there's an error
+     *
+     * @param args command line, starting with --serve
+     * @param log where requests are logged
+     * @return -1 if the syntax is wrong, 1 if the folder doesn't exist, 3 if
+     * the port can't be opened
+     */
+    public static int run(String[] args, PrintStream log) {
+        int port = -1;
+        File dir = null, cacheDir = new File(System.getProperty("java.io.tmpdir"), "sine-segments");
+        long cacheSize = 1024;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--serve")) {
+                    port = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--presets")) {
+                    dir = new File(args[++i]);
+                } else if (args[i].equals("--cache")) {
+                    cacheDir = new File(args[++i]);
+                } else if (args[i].equals("--cache-size")) {
+                    cacheSize = Long.parseLong(args[++i]);
+                } else {
+                    return -1;
+                }
+            }
+        } catch (Exception e) {
+            return -1;
+        }
+        if (port == -1 || dir == null) {
+            return -1;
+        }
+        if (!dir.isDirectory()) {
+            log.println("File not found: " + dir);
+            return 1;
+        }
+        HttpServer s;
+        try {
+            s = HttpServer.create(new InetSocketAddress(port), 0);
+        } catch (IOException e) {
+            log.println("Can't listen on port " + port);
+            return 3;
+        }
+        s.createContext("/", new StreamServer(dir, new DiskCache(cacheDir, cacheSize * 1048576), log));
+        s.setExecutor(Executors.newCachedThreadPool()); //one thread per connection, most of them are just waiting for the client
+        s.start();
+        log.println("Serving " + dir.getAbsolutePath() + " on port " + port);
+        for (;;) {
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange ex) throws IOException {
+        try {
+            String path = ex.getRequestURI().getPath();
+            if (!ex.getRequestMethod().equals("GET") && !ex.getRequestMethod().equals("HEAD")) {
+                sendError(ex, 405, "Method not allowed");
+            } else if (path.equals("/")) {
+                sendIndex(ex);
+            } else if (path.startsWith("/hls/")) {
+                hls.handle(ex, path.substring(5));
+            } else if (path.startsWith("/live/") && path.toLowerCase().endsWith(".mp3")) {
+                log.println(ex.getRemoteAddress() + "\t" + ex.getRequestURI());
+                String q = parseQuery(ex.getRequestURI().getRawQuery()).get("t");
+                float t;
+                try {
+                    t = q == null ? 0 : Float.parseFloat(q);
+                } catch (NumberFormatException e) {
+                    sendError(ex, 400, "Bad request");
+                    return;
+                }
+                hub.handle(ex, path.substring(6, path.length() - 4), t);
+            } else {
+                stream(ex, path.substring(1));
+            }
+        } catch (Throwable t) {
+            //client went away
+        } finally {
+            ex.close();
+        }
+    }
+
+    private void sendIndex(HttpExchange ex) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        File[] l = presets.listFiles();
+        Arrays.sort(l);
+        for (File f : l) {
+            if (f.isFile() && BinaryPreset.isPresetName(f.getName())) {
+                String n = f.getName().substring(0, f.getName().lastIndexOf('.'));
+                if (!presetFile(presets, n).equals(f)) {
+                    continue; //name.sin and name.sinb, only list it once
+                }
+                sb.append(n).append("\t/").append(n).append(".mp3\n");
+            }
+        }
+        byte[] b = sb.toString().getBytes("UTF-8");
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        ex.sendResponseHeaders(200, ex.getRequestMethod().equals("HEAD") ? -1 : b.length);
+        ex.getResponseBody().write(b);
+    }
+
+    //the file of a preset in a folder: name.sin, or name.sinb if there's no .sin
+    static File presetFile(File presets, String name) {
+        File f = new File(presets, name + ".sin");
+        return f.isFile() ? f : new File(presets, name + BinaryPreset.EXTENSION);
+    }
+
+    private static void sendError(HttpExchange ex, int code, String msg) throws IOException {
+        byte[] b = (msg + "\n").getBytes("UTF-8");
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        ex.sendResponseHeaders(code, b.length);
+        ex.getResponseBody().write(b);
+    }
+
+    private void stream(HttpExchange ex, String name) throws IOException {
+        int dot = name.lastIndexOf('.');
+        String ext = dot == -1 ? "" : name.substring(dot + 1).toLowerCase();
+        name = dot == -1 ? name : name.substring(0, dot);
+        if (!ext.equals("wav") && !ext.equals("flac") && !ext.equals("mp3")) {
+            sendError(ex, 404, "Not found");
+            return;
+        }
+        File f = presetFile(presets, name);
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || !f.isFile()) {
+            sendError(ex, 404, "Not found");
+            return;
+        }
+        Preset x;
+        try {
+            x = Main.readPreset(f);
+        } catch (Throwable t) {
+            sendError(ex, 500, "Preset not valid");
+            return;
+        }
+        HashMap<String, String> q = parseQuery(ex.getRequestURI().getRawQuery());
+        float t;
+        int loop;
+        boolean realtime;
+        try {
+            t = q.containsKey("t") ? Float.parseFloat(q.get("t")) : 0;
+            loop = q.containsKey("loop") ? Integer.parseInt(q.get("loop")) : 0;
+            realtime = !"0".equals(q.get("realtime"));
+        } catch (NumberFormatException e) {
+            sendError(ex, 400, "Bad request");
+            return;
+        }
+        ClientStream out = new ClientStream(ex.getResponseBody());
+        ISoundDevice dev;
+        if (ext.equals("wav") && loop == 0 && t == 0) {
+            //known length, supports ranges
+            long samples = (long) (x.getLength() * SAMPLE_RATE);
+            long end = 44 + 2 * samples;
+            long[] range = parseRange(ex.getRequestHeaders().getFirst("Range"));
+            long start = range[0], last = Math.min(range[1], end - 1);
+            ex.getResponseHeaders().set("Accept-Ranges", "bytes");
+            ex.getResponseHeaders().set("Content-Type", "audio/wav");
+            if (start >= end || last < start) {
+                ex.getResponseHeaders().set("Content-Range", "bytes */" + end);
+                ex.sendResponseHeaders(416, -1);
+                return;
+            }
+            boolean partial = start > 0 || last < end - 1;
+            if (partial) {
+                ex.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + last + "/" + end);
+            }
+            ex.sendResponseHeaders(partial ? 206 : 200, ex.getRequestMethod().equals("HEAD") ? -1 : last + 1 - start);
+            if (ex.getRequestMethod().equals("HEAD")) {
+                return;
+            }
+            out.skip = start;
+            out.limit = last + 1;
+            out.write(wavHeader(samples));
+            //start rendering at the first sample that was requested
+            long firstSample = Math.max(0, (start - 44) / 2);
+            out.pos = 44 + 2 * firstSample;
+            t = (float) firstSample / SAMPLE_RATE;
+            dev = new StreamSoundBackend(Channels.newChannel(out), SAMPLE_RATE, 1, StreamSoundBackend.FORMAT_S16LE);
+        } else {
+            ex.getResponseHeaders().set("Content-Type", ext.equals("wav") ? "audio/wav" : ext.equals("flac") ? "audio/flac" : "audio/mpeg");
+            ex.sendResponseHeaders(200, ex.getRequestMethod().equals("HEAD") ? -1 : 0);
+            if (ex.getRequestMethod().equals("HEAD")) {
+                return;
+            }
+            if (ext.equals("wav")) {
+                dev = new StreamSoundBackend(Channels.newChannel(out), SAMPLE_RATE, 1, StreamSoundBackend.FORMAT_WAV);
+            } else if (ext.equals("flac")) {
+                dev = new FLACStreamSoundBackend(out, SAMPLE_RATE, 1);
+            } else {
+                dev = new MP3StreamSoundBackend(out, SAMPLE_RATE, 1, MP3_BITRATE);
+            }
+        }
+        log.println(ex.getRemoteAddress() + "\t" + ex.getRequestURI());
+        if (realtime) {
+            dev = new PacedSoundDevice(dev, REALTIME_LEAD);
+        }
+        IRenderer r = new IsochronicRenderer(x, dev, loop);
+        r.setPosition(t);
+        r.play();
+        try {
+            while (r.isPlaying() && !out.failed && out.pos < out.limit) {
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException e) {
+        }
+        r.stopPlaying(); //waits for the renderer to close the device, and with it out
+    }
+
+    private static HashMap<String, String> parseQuery(String query) {
+        HashMap<String, String> ret = new HashMap<>();
+        if (query != null) {
+            for (String p : query.split("&")) {
+                int i = p.indexOf('=');
+                if (i != -1) {
+                    ret.put(p.substring(0, i), p.substring(i + 1));
+                }
+            }
+        }
+        return ret;
+    }
+
+    //returns the first and last byte of a "Range: bytes=N-" or "Range: bytes=N-M" header, or 0 and Long.MAX_VALUE (the whole file) if there isn't one or it's not supported
+    private static long[] parseRange(String range) {
+        long[] ret = {0, Long.MAX_VALUE};
+        if (range == null || !range.startsWith("bytes=") || range.contains(",")) {
+            return ret;
+        }
+        try {
+            int i = range.indexOf('-');
+            long start = Long.parseLong(range.substring(6, i).trim());
+            String last = range.substring(i + 1).trim();
+            ret[1] = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            ret[0] = start;
+        } catch (Exception e) {
+            ret[1] = Long.MAX_VALUE;
+        }
+        return ret;
+    }
+
+    private static byte[] wavHeader(long samples) {
+        ByteBuffer b = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        b.put("RIFF".getBytes()).putInt((int) (36 + 2 * samples)).put("WAVE".getBytes());
+        b.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 1).putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2).putShort((short) 2).putShort((short) 16);
+        b.put("data".getBytes()).putInt((int) (2 * samples));
+        return b.array();
+    }
+
+    //response body that remembers if the client went away, and only sends the bytes between skip and limit (for ranges)
+    private static class ClientStream extends FilterOutputStream {
+
+        private volatile long pos = 0;
+        private long skip = 0, limit = Long.MAX_VALUE;
+        private volatile boolean failed = false;
+
+        public ClientStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (failed) {
+                throw new IOException("Client disconnected");
+            }
+            long from = Math.max(pos, skip), to = Math.min(pos + len, limit);
+            pos += len;
+            if (to > from) {
+                try {
+                    out.write(b, (int) (off + from - (pos - len)), (int) (to - from));
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                //the renderer may have produced a few samples less than the length we announced. this must be done before the device closes the response body
+                while (limit != Long.MAX_VALUE && pos < limit && !failed) {
+                    write(new byte[(int) Math.min(65536, limit - pos)]);
+                }
+            } finally {
+                super.close();
+            }
+        }
+
+    }
+
+    //slows down the renderer so that it doesn't get more than lead seconds ahead of the listener
+    static class PacedSoundDevice implements ISoundDevice {
+
+        private final ISoundDevice dev;
+        private final float lead;
+        private long startTime, samples = 0;
+
+        public PacedSoundDevice(ISoundDevice dev, float lead) {
+            this.dev = dev;
+            this.lead = lead;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return dev.isClosed();
+        }
+
+        @Override
+        public void close() {
+            dev.close();
+        }
+
+        @Override
+        public void open() {
+            startTime = System.nanoTime();
+            dev.open();
+        }
+
+        @Override
+        public int getChannelCount() {
+            return dev.getChannelCount();
+        }
+
+        @Override
+        public int getBitsPerSample() {
+            return dev.getBitsPerSample();
+        }
+
+        @Override
+        public float getSampleRate() {
+            return dev.getSampleRate();
+        }
+
+        @Override
+        public void write(float[] data) {
+            dev.write(data);
+            samples += data.length / dev.getChannelCount();
+            long ahead = (long) (1000 * (samples / dev.getSampleRate() - lead)) - (System.nanoTime() - startTime) / 1000000;
+            if (ahead > 0) {
+                try {
+                    Thread.sleep(ahead);
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+
+        @Override
+        public void setVolume(float vol) {
+            dev.setVolume(vol);
+        }
+
+        @Override
+        public float getVolume() {
+            return dev.getVolume();
+        }
+
+    }
+}
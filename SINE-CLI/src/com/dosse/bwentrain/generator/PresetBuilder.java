@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.generator;
+
+import com.dosse.bwentrain.core.EntrainmentTrack;
+import com.dosse.bwentrain.core.Envelope;
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.PresetLimits;
+import com.dosse.bwentrain.io.PresetReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds presets from code, without going through the XML or adding points
+ * one at a time.<br>
+ * Each envelope is described as a sequence of ramps, plateaus and sweeps that
+ * starts at 0 and moves forward in time, for instance:
+ * <pre>
+ * PresetBuilder b = new PresetBuilder("Focus");
+ * b.noise().set(0.3f).ramp(60, 0.2f);
+ * PresetBuilder.Track t = b.track();
+ * t.entrainmentFrequency().set(14).ramp(300, 10).hold(600).sweep(300, 8, 12, 3);
+ * Preset p = b.build();
+ * </pre> The length of the preset is the end of the longest envelope, unless
+ * it's set with length. Values are clamped to the limits of SINE Editor, so
+ * random variations always give a valid preset.<br>
+ * A builder is not thread safe, use one per thread.
+ *
+ * @author dosse
+ */
+public class PresetBuilder {
+
+    //same defaults as a new preset in SINE Editor
+    private static final float DEFAULT_NOISE = 0.35f, DEFAULT_BASE_FREQUENCY = 440, DEFAULT_VOLUME = 1, DEFAULT_ENTRAINMENT_FREQUENCY = 10;
+
+    /**
+     * The values of an envelope over time. Every operation starts where the
+     * previous one ended.
+     */
+    public static class Curve {
+
+        private final float def, max;
+        private float[] t = new float[16], v = new float[16];
+        private int n = 0;
+
+        private Curve(float def, float max) {
+            this.def = def;
+            this.max = max;
+        }
+
+        private void add(float time, float val) {
+            if (n == t.length) {
+                t = Arrays.copyOf(t, n * 2);
+                v = Arrays.copyOf(v, n * 2);
+            }
+            t[n] = time;
+            v[n++] = val;
+        }
+
+        //the first point is at 0, with the default value if nothing was set
+        private void start() {
+            if (n == 0) {
+                add(0, def);
+            }
+        }
+
+        /**
+         *
+         * @return where the next operation starts, in seconds
+         */
+        public float time() {
+            return n == 0 ? 0 : t[n - 1];
+        }
+
+        /**
+         *
+         * @return value at the end of the curve
+         */
+        public float value() {
+            return n == 0 ? def : v[n - 1];
+        }
+
+        /**
+         * sets the value at the current time
+         *
+         * @param val new value
+         * @return this curve
+         */
+        public Curve set(float val) {
+            start();
+            v[n - 1] = val;
+            return this;
+        }
+
+        /**
+         * goes linearly from the current value to a new one
+         *
+         * @param duration duration of the ramp in seconds
+         * @param to value at the end of the ramp
+         * @return this curve
+         * @throws IllegalArgumentException if duration is negative
+         */
+        public Curve ramp(float duration, float to) {
+            if (!(duration >= 0)) {
+                throw new IllegalArgumentException("Invalid duration: " + duration);
+            }
+            if (duration == 0) {
+                return set(to);
+            }
+            start();
+            add(t[n - 1] + duration, to);
+            return this;
+        }
+
+        /**
+         * keeps the current value for a while (plateau)
+         *
+         * @param duration duration in seconds
+         * @return this curve
+         * @throws IllegalArgumentException if duration is negative
+         */
+        public Curve hold(float duration) {
+            return ramp(duration, value());
+        }
+
+        /**
+         * goes back and forth between 2 values
+         *
+         * @param duration total duration in seconds
+         * @param from value at the start of each cycle
+         * @param to value in the middle of each cycle
+         * @param cycles number of cycles
+         * @return this curve
+         * @throws IllegalArgumentException if duration is negative or there
+         * are no cycles
+         */
+        public Curve sweep(float duration, float from, float to, int cycles) {
+            if (cycles < 1) {
+                throw new IllegalArgumentException("Invalid number of cycles: " + cycles);
+            }
+            float half = duration / cycles / 2;
+            for (int i = 0; i < cycles; i++) {
+                ramp(half, to).ramp(half, from);
+            }
+            return this;
+        }
+
+        /**
+         * goes linearly from the current value to a new one at a given time
+         *
+         * @param time time of the new point, in seconds
+         * @param val value at that time
+         * @return this curve
+         * @throws IllegalArgumentException if time is before the end of the
+         * curve
+         */
+        public Curve at(float time, float val) {
+            return ramp(time - time(), val);
+        }
+
+        //copies the curve into an envelope, cut at length and clamped to 0-max
+        private void fill(Envelope e, float length) throws Exception {
+            start();
+            float[] ct = new float[n], cv = new float[n];
+            int m = 0;
+            for (int i = 0; i < n && t[i] <= length; i++) {
+                ct[m] = t[i];
+                cv[m++] = clamp(v[i]);
+            }
+            if (m < n && t[m - 1] < length) {
+                //the point at the end of the preset, interpolated
+                float k = (length - t[m - 1]) / (t[m] - t[m - 1]);
+                cv[m] = clamp(v[m - 1] + (v[m] - v[m - 1]) * k);
+                ct[m++] = length;
+            }
+            PresetReader.setPoints(e, ct, cv, m, length);
+        }
+
+        private float clamp(float x) {
+            return Float.isNaN(x) ? 0 : Math.max(0, Math.min(max, x));
+        }
+    }
+
+    /**
+     * An entrainment track and its envelopes.
+     */
+    public static class Track {
+
+        private final Curve base = new Curve(DEFAULT_BASE_FREQUENCY, PresetLimits.MAX_BASE_FREQUENCY), volume = new Curve(DEFAULT_VOLUME, 1), entrainment = new Curve(DEFAULT_ENTRAINMENT_FREQUENCY, PresetLimits.MAX_ENTRAINMENT_FREQUENCY);
+        private float trackVolume = 1;
+
+        private Track() {
+        }
+
+        /**
+         *
+         * @return carrier frequency (Hz)
+         */
+        public Curve baseFrequency() {
+            return base;
+        }
+
+        /**
+         *
+         * @return volume (0-1)
+         */
+        public Curve volume() {
+            return volume;
+        }
+
+        /**
+         *
+         * @return entrainment frequency (Hz)
+         */
+        public Curve entrainmentFrequency() {
+            return entrainment;
+        }
+
+        /**
+         * sets the volume of the whole track
+         *
+         * @param vol volume (0-1)
+         * @return this track
+         */
+        public Track trackVolume(float vol) {
+            trackVolume = Float.isNaN(vol) ? 0 : Math.max(0, Math.min(1, vol));
+            return this;
+        }
+    }
+
+    private String title, author = "", description = "";
+    private float length = -1, loop = -1;
+    private final Curve noise = new Curve(DEFAULT_NOISE, 1);
+    private final List<Track> tracks = new ArrayList<>();
+    private final Random random;
+
+    /**
+     * creates a new builder with a random seed
+     *
+     * @param title title of the preset
+     */
+    public PresetBuilder(String title) {
+        this(title, new Random());
+    }
+
+    /**
+     * creates a new builder
+     *
+     * @param title title of the preset
+     * @param random used by between, pass a Random with a fixed seed to get
+     * the same preset every time
+     */
+    public PresetBuilder(String title, Random random) {
+        this.title = title;
+        this.random = random;
+    }
+
+    /**
+     *
+     * @param title title of the preset
+     * @return this builder
+     */
+    public PresetBuilder title(String title) {
+        this.title = title;
+        return this;
+    }
+
+    /**
+     *
+     * @param author author of the preset
+     * @return this builder
+     */
+    public PresetBuilder author(String author) {
+        this.author = author;
+        return this;
+    }
+
+    /**
+     *
+     * @param description description of the preset
+     * @return this builder
+     */
+    public PresetBuilder description(String description) {
+        this.description = description;
+        return this;
+    }
+
+    /**
+     * sets the length of the preset. envelopes that are longer are cut
+     *
+     * @param length length in seconds
+     * @return this builder
+     * @throws IllegalArgumentException if the length is outside the limits of
+     * SINE Editor
+     */
+    public PresetBuilder length(float length) {
+        if (!(length >= PresetLimits.MIN_LENGTH && length < PresetLimits.MAX_LENGTH)) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+        this.length = length;
+        return this;
+    }
+
+    /**
+     * makes the preset loop
+     *
+     * @param loop where the loop starts, in seconds, -1 to disable looping
+     * @return this builder
+     */
+    public PresetBuilder loop(float loop) {
+        this.loop = loop;
+        return this;
+    }
+
+    /**
+     *
+     * @return noise volume (0-1)
+     */
+    public Curve noise() {
+        return noise;
+    }
+
+    /**
+     * adds an entrainment track
+     *
+     * @return the new track
+     */
+    public Track track() {
+        Track t = new Track();
+        tracks.add(t);
+        return t;
+    }
+
+    /**
+     *
+     * @param i index
+     * @return the i-th track
+     */
+    public Track track(int i) {
+        return tracks.get(i);
+    }
+
+    /**
+     *
+     * @return number of tracks added so far
+     */
+    public int getTrackCount() {
+        return tracks.size();
+    }
+
+    /**
+     * random value, for variations
+     *
+     * @param min minimum value
+     * @param max maximum value
+     * @return a random value between min and max
+     */
+    public float between(float min, float max) {
+        return min + (max - min) * random.nextFloat();
+    }
+
+    /**
+     * creates the preset. The builder can be modified and used again after
+     * this
+     *
+     * @return new preset
+     * @throws IllegalStateException if the preset would be too long, or the
+     * loop is outside the preset
+     */
+    public Preset build() {
+        float l = length;
+        if (l == -1) {
+            //as long as the longest envelope
+            l = Math.max(PresetLimits.MIN_LENGTH, noise.time());
+            for (Track t : tracks) {
+                l = Math.max(l, Math.max(t.base.time(), Math.max(t.volume.time(), t.entrainment.time())));
+            }
+            if (l >= PresetLimits.MAX_LENGTH) {
+                throw new IllegalStateException("Preset too long: " + l);
+            }
+        }
+        if (loop != -1 && !(loop >= 0 && loop < l)) {
+            throw new IllegalStateException("Invalid loop: " + loop);
+        }
+        if (tracks.isEmpty()) {
+            track();
+        }
+        Preset p = new Preset(l, loop, title, author, description);
+        try {
+            noise.fill(p.getNoiseEnvelope(), l);
+            for (int i = 0; i < tracks.size(); i++) {
+                if (i > 0) {
+                    p.addEntrainmentTrack();
+                }
+                Track t = tracks.get(i);
+                EntrainmentTrack et = p.getEntrainmentTrack(i);
+                t.base.fill(et.getBaseFrequencyEnvelope(), l);
+                t.volume.fill(et.getVolumeEnvelope(), l);
+                t.entrainment.fill(et.getEntrainmentFrequencyEnvelope(), l);
+                et.setTrackVolume(t.trackVolume);
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return p;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.generator;
+
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.PresetLimits;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A text description of a family of presets, used to generate many similar
+ * presets with random variations.<br>
+ * One statement per line, # starts a comment (except in title, author and
+ * description, where it's part of the text):
+ * <pre>
+ * title Focus #{n}
+ * author SINE
+ * description Personalized focus session
+ * length 1200..1800
+ * loop 600
+ * noise set 0.3
+ * noise ramp 60 0.2..0.3
+ * track 0.8
+ * base set 200..260
+ * entrainment set 14
+ * entrainment ramp 300 10..12
+ * entrainment hold 600
+ * entrainment sweep 300 8 12 3
+ * volume ramp 30 0.9
+ * </pre> {n} in title, author and description is replaced with the number of
+ * the preset. Numbers can be written as min..max to pick a random value
+ * between min and max for each preset. length and loop are optional. track
+ * starts a new entrainment track (with an optional track volume), base,
+ * entrainment and volume refer to the last one. The operations on envelopes
+ * (set value, ramp duration value, hold duration, sweep duration from to
+ * cycles, at time value) work like the ones in PresetBuilder.Curve.<br>
+ * A template can be used by many threads at the same time.
+ *
+ * @author dosse
+ */
+public class PresetTemplate {
+
+    //a number or a range of numbers
+    private static class Value {
+
+        private final float min, max;
+
+        private Value(String s) throws Exception {
+            int i = s.indexOf("..");
+            min = Float.parseFloat(i == -1 ? s : s.substring(0, i));
+            max = i == -1 ? min : Float.parseFloat(s.substring(i + 2));
+            if (Float.isNaN(min) || Float.isNaN(max) || Float.isInfinite(min) || Float.isInfinite(max) || max < min) {
+                throw new Exception("Invalid number: " + s);
+            }
+        }
+
+        private float get(PresetBuilder b) {
+            return min == max ? min : b.between(min, max);
+        }
+    }
+
+    private static class Statement {
+
+        private final int line;
+        private final String keyword, op, text;
+        private final Value[] args;
+
+        private Statement(int line, String keyword, String op, String text, Value[] args) {
+            this.line = line;
+            this.keyword = keyword;
+            this.op = op;
+            this.text = text;
+            this.args = args;
+        }
+    }
+
+    private final List<Statement> statements = new ArrayList<>();
+
+    private PresetTemplate() {
+    }
+
+    /**
+     * reads a template from a file
+     *
+     * @param f template file (UTF-8)
+     * @return the template
+     * @throws Exception if the file can't be read or the template is not valid
+     */
+    public static PresetTemplate parse(File f) throws Exception {
+        try (Reader r = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8)) {
+            return parse(r);
+        }
+    }
+
+    /**
+     * reads a template
+     *
+     * @param in template
+     * @return the template
+     * @throws Exception if the template can't be read or it's not valid
+     */
+    public static PresetTemplate parse(Reader in) throws Exception {
+        PresetTemplate t = new PresetTemplate();
+        BufferedReader r = new BufferedReader(in);
+        boolean hasTitle = false;
+        int line = 0;
+        for (String s = r.readLine(); s != null; s = r.readLine()) {
+            line++;
+            int c = s.indexOf('#');
+            String code = (c == -1 ? s : s.substring(0, c)).trim();
+            if (code.isEmpty()) {
+                continue;
+            }
+            String[] w = code.split("\\s+");
+            try {
+                switch (w[0]) {
+                    case "title":
+                    case "author":
+                    case "description":
+                        //the rest of the line, comments included since titles may contain #
+                        String text = s.trim().substring(w[0].length()).trim();
+                        t.statements.add(new Statement(line, w[0], null, text, null));
+                        hasTitle |= w[0].equals("title");
+                        break;
+                    case "length":
+                    case "loop":
+                        Value[] v = values(w, 1, 1);
+                        if (w[0].equals("length") && !(v[0].min >= PresetLimits.MIN_LENGTH && v[0].max < PresetLimits.MAX_LENGTH)) {
+                            throw new Exception("Length must be between " + PresetLimits.MIN_LENGTH + " and " + PresetLimits.MAX_LENGTH);
+                        }
+                        t.statements.add(new Statement(line, w[0], null, null, v));
+                        break;
+                    case "track":
+                        t.statements.add(new Statement(line, w[0], null, null, values(w, 1, w.length == 1 ? 0 : 1)));
+                        break;
+                    case "noise":
+                    case "base":
+                    case "entrainment":
+                    case "volume":
+                        if (w.length < 2) {
+                            throw new Exception("Missing operation");
+                        }
+                        int n;
+                        switch (w[1]) {
+                            case "set":
+                            case "hold":
+                                n = 1;
+                                break;
+                            case "ramp":
+                            case "at":
+                                n = 2;
+                                break;
+                            case "sweep":
+                                n = 4;
+                                break;
+                            default:
+                                throw new Exception("Unknown operation: " + w[1]);
+                        }
+                        t.statements.add(new Statement(line, w[0], w[1], null, values(w, 2, n)));
+                        break;
+                    default:
+                        throw new Exception("Unknown statement: " + w[0]);
+                }
+            } catch (Exception e) {
+                throw new Exception("Line " + line + ": " + (e instanceof NumberFormatException ? "Invalid number" : e.getMessage()));
+            }
+        }
+        if (!hasTitle) {
+            throw new Exception("Missing title");
+        }
+        return t;
+    }
+
+    //parses the n arguments of a statement, starting from w[from]
+    private static Value[] values(String[] w, int from, int n) throws Exception {
+        if (w.length != from + n) {
+            throw new Exception(w[0] + (from == 2 ? " " + w[1] : "") + " needs " + n + " arguments");
+        }
+        Value[] v = new Value[n];
+        for (int i = 0; i < n; i++) {
+            v[i] = new Value(w[from + i]);
+        }
+        return v;
+    }
+
+    //Randoms with close seeds give close values at first, so seed and n are scrambled (splitmix64)
+    private static long mix(long seed, int n) {
+        long z = seed + (n + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * generates a preset. The same n and seed always give the same preset
+     *
+     * @param n number of the preset, replaces {n} in the texts
+     * @param seed seed for the random variations
+     * @return new preset
+     * @throws Exception if the preset is not valid (for instance, its loop is
+     * after its end)
+     */
+    public Preset generate(int n, long seed) throws Exception {
+        PresetBuilder b = new PresetBuilder("", new Random(mix(seed, n)));
+        PresetBuilder.Track track = null;
+        for (Statement s : statements) {
+            try {
+                if (s.op != null) {
+                    PresetBuilder.Curve c;
+                    if (s.keyword.equals("noise")) {
+                        c = b.noise();
+                    } else {
+                        if (track == null) {
+                            track = b.track(); //no track statement before, the first track is implicit
+                        }
+                        c = s.keyword.equals("base") ? track.baseFrequency() : s.keyword.equals("volume") ? track.volume() : track.entrainmentFrequency();
+                    }
+                    switch (s.op) {
+                        case "set":
+                            c.set(s.args[0].get(b));
+                            break;
+                        case "hold":
+                            c.hold(s.args[0].get(b));
+                            break;
+                        case "ramp":
+                            c.ramp(s.args[0].get(b), s.args[1].get(b));
+                            break;
+                        case "at":
+                            c.at(s.args[0].get(b), s.args[1].get(b));
+                            break;
+                        default: //sweep
+                            c.sweep(s.args[0].get(b), s.args[1].get(b), s.args[2].get(b), Math.round(s.args[3].get(b)));
+                    }
+                    continue;
+                }
+                switch (s.keyword) {
+                    case "title":
+                        b.title(s.text.replace("{n}", "" + n));
+                        break;
+                    case "author":
+                        b.author(s.text.replace("{n}", "" + n));
+                        break;
+                    case "description":
+                        b.description(s.text.replace("{n}", "" + n));
+                        break;
+                    case "length":
+                        b.length(s.args[0].get(b));
+                        break;
+                    case "loop":
+                        b.loop(s.args[0].get(b));
+                        break;
+                    default: //track
+                        track = b.track();
+                        if (s.args.length == 1) {
+                            track.trackVolume(s.args[0].get(b));
+                        }
+                }
+            } catch (IllegalArgumentException e) {
+                throw new Exception("Line " + s.line + ": " + e.getMessage());
+            }
+        }
+        try {
+            return b.build();
+        } catch (IllegalStateException e) {
+            throw new Exception(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.sound;
+
+/**
+ * Sends the same audio to several devices, so that a preset can be rendered
+ * once and encoded in many formats at the same time.<br>
+ * Each device is wrapped in an AsyncSoundDevice, so every encoder runs on its
+ * own thread and a slow one only stalls the renderer when its queue is full.
+ * All devices must have the same sample rate and number of channels.
+ *
+ * @author dosse
+ */
+public class TeeSoundDevice implements ISoundDevice {
+
+    private final AsyncSoundDevice[] devs;
+    private boolean closed = false, opened = false;
+
+    /**
+     * creates a new fan-out
+     *
+     * @param devs devices to write to
+     * @throws IllegalArgumentException if there are no devices or they don't
+     * all have the same sample rate and number of channels
+     */
+    public TeeSoundDevice(ISoundDevice... devs) {
+        if (devs.length == 0) {
+            throw new IllegalArgumentException("No devices");
+        }
+        this.devs = new AsyncSoundDevice[devs.length];
+        for (int i = 0; i < devs.length; i++) {
+            if (devs[i].getSampleRate() != devs[0].getSampleRate() || devs[i].getChannelCount() != devs[0].getChannelCount()) {
+                throw new IllegalArgumentException("All devices must have the same format");
+            }
+            this.devs[i] = devs[i] instanceof AsyncSoundDevice ? (AsyncSoundDevice) devs[i] : new AsyncSoundDevice(devs[i]);
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed || !opened) {
+            return;
+        }
+        closed = true;
+        //each device finishes writing its queue on its own thread, so they all drain at the same time
+        for (AsyncSoundDevice d : devs) {
+            d.close();
+        }
+    }
+
+    @Override
+    public void open() {
+        if (closed || opened) {
+            return;
+        }
+        for (AsyncSoundDevice d : devs) {
+            d.open();
+        }
+        opened = true;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return devs[0].getChannelCount();
+    }
+
+    @Override
+    public int getBitsPerSample() {
+        return devs[0].getBitsPerSample();
+    }
+
+    @Override
+    public float getSampleRate() {
+        return devs[0].getSampleRate();
+    }
+
+    @Override
+    public void write(float[] data) {
+        if (closed || !opened) {
+            return;
+        }
+        for (AsyncSoundDevice d : devs) {
+            d.write(data); //copies data into its queue
+        }
+    }
+
+    @Override
+    public void setVolume(float vol) {
+        for (AsyncSoundDevice d : devs) {
+            d.setVolume(vol);
+        }
+    }
+
+    @Override
+    public float getVolume() {
+        return devs[0].getVolume();
+    }
+
+    /**
+     *
+     * @return number of devices
+     */
+    public int getDeviceCount() {
+        return devs.length;
+    }
+
+    /**
+     *
+     * @param i index
+     * @return the i-th device (wrapped in its AsyncSoundDevice)
+     */
+    public AsyncSoundDevice getDevice(int i) {
+        return devs[i];
+    }
+}
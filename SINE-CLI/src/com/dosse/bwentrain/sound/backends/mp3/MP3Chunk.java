@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.sound.backends.mp3;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Callable;
+import net.sourceforge.lame.mp3.Lame;
+import net.sourceforge.lame.mp3.LameGlobalFlags;
+import net.sourceforge.lame.mp3.MPEGMode;
+
+/**
+ * Encodes a chunk of PCM into a run of MP3 frames that can be concatenated with
+ * the frames of the adjacent chunks.<br>
+ * The chunk contains PREROLL_FRAMES frames of audio that precede the body
+ * (encoded to prime the encoder, then discarded) and POSTROLL_FRAMES frames
+ * that follow it (encoded to give the encoder its lookahead, then discarded).
+ * The bit reservoir is disabled so no frame depends on data stored in the
+ * frames of another chunk.
+ *
+ * @author dosse
+ */
+public class MP3Chunk implements Callable<byte[]> {
+
+    public static final int FRAME_SIZE = 1152; //samples per MPEG1 Layer III frame, chunks must be aligned to this
+    public static final int PREROLL_FRAMES = 3, POSTROLL_FRAMES = 3;
+    public static final float SAMPLE_SCALE = 65536f; //LAME expects 16 bit samples shifted left by 16 bits
+
+    private static final int BLOCK_SIZE = 8 * FRAME_SIZE; //samples fed to LAME at a time
+    private static final int[] BITRATES_V1 = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, -1},
+            BITRATES_V2 = {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, -1},
+            SAMPLE_RATES_V1 = {44100, 48000, 32000, -1};
+
+    private final float[][] pcm;
+    private final int length, sampleRate, bitRate, bodyFrames;
+
+    /**
+     * creates a new chunk. pcm is not copied and must not be modified after
+     * this
+     *
+     * @param pcm samples, one array per channel (1 or 2), already scaled by
+     * SAMPLE_SCALE. The first PREROLL_FRAMES*FRAME_SIZE samples are pre-roll
+     * @param length number of valid samples in pcm
+     * @param sampleRate sample rate
+     * @param bitRate bitrate in kbps
+     * @param bodyFrames number of FRAME_SIZE frames to keep after the
+     * pre-roll, everything after that is post-roll. -1 means this is the last
+     * chunk: the encoder is flushed and everything after the pre-roll is kept
+     */
+    public MP3Chunk(float[][] pcm, int length, int sampleRate, int bitRate, int bodyFrames) {
+        this.pcm = pcm;
+        this.length = length;
+        this.sampleRate = sampleRate;
+        this.bitRate = bitRate;
+        this.bodyFrames = bodyFrames;
+    }
+
+    @Override
+    public byte[] call() throws Exception {
+        int nChannels = pcm.length;
+        Lame lame = new Lame();
+        LameGlobalFlags f = lame.getFlags();
+        f.setInNumChannels(nChannels);
+        f.setInSampleRate(sampleRate);
+        f.setMode(nChannels == 1 ? MPEGMode.MONO : MPEGMode.JOINT_STEREO);
+        f.setBitRate(bitRate);
+        f.setQuality(1);
+        lame.getId3().init(f);
+        f.setWriteId3tagAutomatic(false);
+        f.setFindReplayGain(false);
+        f.bWriteVbrTag = false;
+        f.disable_reservoir = true;
+        if (lame.initParams() < 0) {
+            throw new Exception("LAME init failed");
+        }
+        //encode everything
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 8);
+        float[] l = new float[BLOCK_SIZE], r = nChannels == 1 ? l : new float[BLOCK_SIZE];
+        byte[] mp3 = new byte[(int) (1.25 * BLOCK_SIZE) + 7200]; //worst case size suggested by LAME
+        for (int i = 0; i < length; i += BLOCK_SIZE) {
+            int n = Math.min(BLOCK_SIZE, length - i);
+            System.arraycopy(pcm[0], i, l, 0, n);
+            if (nChannels != 1) {
+                System.arraycopy(pcm[1], i, r, 0, n);
+            }
+            int w = lame.encodeBuffer(l, r, n, mp3);
+            if (w < 0) {
+                throw new Exception("LAME error " + w);
+            }
+            out.write(mp3, 0, w);
+        }
+        int w = lame.encodeFlush(mp3);
+        if (w > 0) {
+            out.write(mp3, 0, w);
+        }
+        lame.close();
+        //cut the frames that belong to the body
+        byte[] all = out.toByteArray();
+        long skip = (long) PREROLL_FRAMES * FRAME_SIZE, keep = bodyFrames < 0 ? Long.MAX_VALUE : (long) bodyFrames * FRAME_SIZE;
+        int start = -1, end = all.length;
+        long t = 0; //samples before current frame
+        for (int i = 0; i < all.length;) {
+            int len = frameLength(all, i);
+            if (len <= 0) {
+                throw new Exception("Invalid MP3 frame");
+            }
+            if (t == skip) {
+                start = i;
+            }
+            if (t == skip + keep) {
+                end = i;
+                break;
+            }
+            t += samplesPerFrame(all, i);
+            i += len;
+        }
+        if (start == -1) {
+            return new byte[0];
+        }
+        byte[] ret = new byte[end - start];
+        System.arraycopy(all, start, ret, 0, ret.length);
+        return ret;
+    }
+
+    /**
+     * returns the length in bytes of the MPEG Layer III frame starting at off,
+     * or -1 if there's no valid frame header there
+     *
+     * @param b buffer
+     * @param off offset of the frame header
+     * @return length in bytes, including header
+     */
+    public static int frameLength(byte[] b, int off) {
+        if (off + 4 > b.length || (b[off] & 0xFF) != 0xFF || (b[off + 1] & 0xE0) != 0xE0 || ((b[off + 1] >> 1) & 3) != 1) {
+            return -1; //no sync or not layer III
+        }
+        int version = (b[off + 1] >> 3) & 3, brIndex = (b[off + 2] >> 4) & 0xF, srIndex = (b[off + 2] >> 2) & 3, padding = (b[off + 2] >> 1) & 1;
+        if (version == 1 || SAMPLE_RATES_V1[srIndex] == -1) {
+            return -1; //reserved
+        }
+        int br = (version == 3 ? BITRATES_V1 : BITRATES_V2)[brIndex];
+        if (br <= 0) {
+            return -1; //free format or reserved
+        }
+        int sr = SAMPLE_RATES_V1[srIndex] >> (version == 3 ? 0 : version == 2 ? 1 : 2);
+        return (version == 3 ? 144000 : 72000) * br / sr + padding;
+    }
+
+    /**
+     * returns the number of samples per channel in the frame starting at off
+     *
+     * @param b buffer
+     * @param off offset of a valid frame header
+     * @return 1152 for MPEG1, 576 for MPEG2 and 2.5
+     */
+    public static int samplesPerFrame(byte[] b, int off) {
+        return ((b[off + 1] >> 3) & 3) == 3 ? 1152 : 576;
+    }
+}
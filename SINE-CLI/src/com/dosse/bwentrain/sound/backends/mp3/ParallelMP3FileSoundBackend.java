@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.sound.backends.mp3;
+
+import com.dosse.bwentrain.sound.ISoundDevice;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * MP3 file backend that encodes on multiple cores.<br>
+ * The PCM stream is cut into chunks of MP3Chunk.FRAME_SIZE aligned samples,
+ * each chunk is encoded by its own LAME instance on a thread pool and the
+ * resulting frames are spliced back together in order. Chunks overlap by a
+ * few frames on both sides so that every encoder has the same history and
+ * lookahead a single encoder would have had, and the bit reservoir is
+ * disabled so every frame is self-contained and can be cut anywhere.<br>
+ * If a chunk can't be encoded or written, the backend stops encoding and
+ * hasFailed returns true.
+ *
+ * @author dosse
+ */
+public class ParallelMP3FileSoundBackend implements ISoundDevice {
+
+    private static final int CHUNK_FRAMES = 1024; //frames per chunk, about 27 seconds at 44100Hz
+
+    private final FileOutputStream fos;
+    private final ExecutorService pool;
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<>(); //encoded chunks, in stream order
+    private final int maxPending;
+    private boolean closed = false, opened = false;
+    private volatile boolean failed = false;
+    private final int nChannels, sampleRate, bitRate;
+    private float vol = 1;
+
+    private final int chunkSamples; //pre-roll+body+post-roll, per channel
+    private float[][] chunk; //chunk currently being filled, one array per channel
+    private int chunkPos; //samples per channel in chunk
+
+    /**
+     * creates a new parallel MP3 encoder using one thread per available core
+     *
+     * @param path output file
+     * @param sampleRate sample rate
+     * @param nChannels channels (1 or 2)
+     * @param bitRate bitrate in kbps
+     * @throws FileNotFoundException if the file can't be created
+     */
+    public ParallelMP3FileSoundBackend(String path, int sampleRate, int nChannels, int bitRate) throws FileNotFoundException {
+        this(path, sampleRate, nChannels, bitRate, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * creates a new parallel MP3 encoder
+     *
+     * @param path output file
+     * @param sampleRate sample rate
+     * @param nChannels channels (1 or 2)
+     * @param bitRate bitrate in kbps
+     * @param nThreads number of encoder threads
+     * @throws FileNotFoundException if the file can't be created
+     */
+    public ParallelMP3FileSoundBackend(String path, int sampleRate, int nChannels, int bitRate, int nThreads) throws FileNotFoundException {
+        fos = new FileOutputStream(path);
+        this.sampleRate = sampleRate;
+        this.nChannels = nChannels;
+        this.bitRate = bitRate;
+        nThreads = nThreads < 1 ? 1 : nThreads;
+        pool = Executors.newFixedThreadPool(nThreads);
+        maxPending = 2 * nThreads; //bounds memory usage if the renderer is faster than the encoders
+        chunkSamples = (MP3Chunk.PREROLL_FRAMES + CHUNK_FRAMES + MP3Chunk.POSTROLL_FRAMES) * MP3Chunk.FRAME_SIZE;
+        chunk = new float[nChannels][chunkSamples];
+        chunkPos = MP3Chunk.PREROLL_FRAMES * MP3Chunk.FRAME_SIZE; //the first chunk is pre-rolled with silence, which is what a single encoder would see anyway
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (opened && !failed) {
+            submit(true);
+        }
+        while (!pending.isEmpty()) {
+            flushOldest(); //if something failed, the rest is just discarded
+        }
+        pool.shutdown(); //the file and the threads are released even if it was never opened
+        try {
+            fos.close();
+        } catch (IOException ex) {
+            failed = true;
+        }
+    }
+
+    @Override
+    public void open() {
+        if (closed || opened) {
+            return;
+        }
+        opened = true;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return nChannels;
+    }
+
+    @Override
+    public int getBitsPerSample() {
+        return 16;
+    }
+
+    @Override
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void write(float[] data) {
+        if (closed || !opened || failed) {
+            return;
+        }
+        for (int i = 0; i < data.length;) {
+            //deinterleave and quantize exactly like MP3FileSoundBackend does, then scale to what LAME expects
+            for (int c = 0; c < nChannels; c++, i++) {
+                chunk[c][chunkPos] = ((short) (data[i] * vol * 32767)) * MP3Chunk.SAMPLE_SCALE;
+            }
+            if (++chunkPos == chunkSamples) {
+                submit(false);
+            }
+        }
+    }
+
+    //sends the current chunk to the encoders and starts a new one, overlapping with the old one
+    private void submit(boolean last) {
+        float[][] full = chunk;
+        int len = chunkPos;
+        if (!last) {
+            //the tail of the old chunk becomes pre-roll and the start of the body of the new one
+            int overlap = (MP3Chunk.PREROLL_FRAMES + MP3Chunk.POSTROLL_FRAMES) * MP3Chunk.FRAME_SIZE;
+            chunk = new float[nChannels][chunkSamples];
+            for (int c = 0; c < nChannels; c++) {
+                System.arraycopy(full[c], chunkSamples - overlap, chunk[c], 0, overlap);
+            }
+            chunkPos = overlap;
+        }
+        if (pending.size() >= maxPending) {
+            flushOldest();
+        }
+        pending.add(pool.submit(new MP3Chunk(full, len, sampleRate, bitRate, last ? -1 : CHUNK_FRAMES)));
+    }
+
+    //waits for the oldest chunk and writes it to the file. after a failure, chunks are cancelled instead
+    private void flushOldest() {
+        Future<byte[]> f = pending.removeFirst();
+        if (failed) {
+            f.cancel(false);
+            return;
+        }
+        try {
+            fos.write(f.get());
+        } catch (Exception ex) {
+            failed = true; //encoder error or disk full, the file is not valid anymore
+        }
+    }
+
+    @Override
+    public void setVolume(float vol) {
+        this.vol = vol < 0 ? 0 : vol > 1 ? 1 : vol;
+    }
+
+    @Override
+    public float getVolume() {
+        return vol;
+    }
+
+    /**
+     *
+     * @return true if a chunk couldn't be encoded or written to the file
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+}
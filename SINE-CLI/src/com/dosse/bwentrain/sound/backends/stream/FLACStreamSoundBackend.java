@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.sound.backends.stream;
+
+import com.dosse.bwentrain.sound.ISoundDevice;
+import java.io.IOException;
+import java.io.OutputStream;
+import javaFlacEncoder.EncodingConfiguration;
+import javaFlacEncoder.FLACEncoder;
+import javaFlacEncoder.FLACStreamOutputStream;
+import javaFlacEncoder.StreamConfiguration;
+
+/**
+ * Same as FLACFileSoundBackend, but writes to any OutputStream (a socket, a
+ * pipe, ...) instead of a file.<br>
+ * Unlike a file, a stream can't be rewritten at the end, so the header
+ * doesn't contain the length and the MD5 of the audio (decoders accept this).
+ * Every block is encoded as soon as it's complete, so that the stream can be
+ * played while it's being written.<br>
+ * If the stream stops accepting data, the backend stops encoding and
+ * hasFailed returns true.
+ *
+ * @author dosse
+ */
+public class FLACStreamSoundBackend implements ISoundDevice {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private final FLACEncoder enc = new FLACEncoder();
+    private final FLACStreamOutputStream fos;
+    private final OutputStream out;
+    private boolean closed = false, opened = false;
+    private volatile boolean failed = false;
+    private final int nChannels, sampleRate;
+    private float vol = 1;
+    private int[] tempBuffer = null;
+
+    /**
+     * creates a new FLAC stream
+     *
+     * @param out stream to write to. It is closed when the backend is closed
+     * @param sampleRate sample rate
+     * @param nChannels channels
+     * @throws IOException if the stream can't be written
+     */
+    public FLACStreamSoundBackend(OutputStream out, int sampleRate, int nChannels) throws IOException {
+        this.out = out;
+        this.sampleRate = sampleRate;
+        this.nChannels = nChannels;
+        fos = new FLACStreamOutputStream(out);
+        EncodingConfiguration ec = new EncodingConfiguration();
+        ec.setChannelConfig(EncodingConfiguration.ChannelConfig.EXHAUSTIVE);
+        enc.setEncodingConfiguration(ec);
+        enc.setStreamConfiguration(new StreamConfiguration(nChannels, BLOCK_SIZE, BLOCK_SIZE, sampleRate, 16));
+        enc.setOutputStream(fos);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed || !opened) {
+            return;
+        }
+        closed = true;
+        if (!failed) {
+            try {
+                enc.addSamples(new int[nChannels], 1); //the encoder fails if there's nothing left to encode, 1 sample of silence makes sure there is
+                enc.encodeSamples(enc.samplesAvailableToEncode(), true);
+            } catch (IOException ex) {
+                failed = true;
+            }
+        }
+        enc.clear();
+        try {
+            out.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    @Override
+    public void open() {
+        if (closed || opened) {
+            return;
+        }
+        try {
+            enc.openFLACStream();
+        } catch (IOException ex) {
+            failed = true;
+        }
+        opened = true;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return nChannels;
+    }
+
+    @Override
+    public int getBitsPerSample() {
+        return 16;
+    }
+
+    @Override
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void write(float[] data) {
+        if (closed || !opened || failed) {
+            return;
+        }
+        if (tempBuffer == null || tempBuffer.length != data.length) {
+            tempBuffer = new int[data.length];
+        }
+        for (int i = 0; i < data.length; i++) {
+            tempBuffer[i] = (int) (data[i] * vol * 32767);
+        }
+        enc.addSamples(tempBuffer, data.length / nChannels);
+        if (enc.fullBlockSamplesAvailableToEncode() >= BLOCK_SIZE) {
+            try {
+                enc.encodeSamples(enc.fullBlockSamplesAvailableToEncode(), false);
+            } catch (IOException ex) {
+                failed = true;
+            }
+        }
+    }
+
+    @Override
+    public void setVolume(float vol) {
+        this.vol = vol < 0 ? 0 : vol > 1 ? 1 : vol;
+    }
+
+    @Override
+    public float getVolume() {
+        return vol;
+    }
+
+    /**
+     *
+     * @return true if the stream stopped accepting data
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+}
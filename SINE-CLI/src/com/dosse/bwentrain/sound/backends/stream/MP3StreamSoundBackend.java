@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.sound.backends.stream;
+
+import com.dosse.bwentrain.sound.ISoundDevice;
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.sound.sampled.AudioFormat;
+import net.sourceforge.lame.lowlevel.LameEncoder;
+import net.sourceforge.lame.mp3.MPEGMode;
+
+/**
+ * Same as MP3FileSoundBackend, but writes to any OutputStream (a socket, a
+ * pipe, ...) instead of a file. MP3 frames are self contained, so the stream
+ * can be played while it's being written.<br>
+ * If the stream stops accepting data, the backend stops encoding and
+ * hasFailed returns true.
+ *
+ * @author dosse
+ */
+public class MP3StreamSoundBackend implements ISoundDevice {
+
+    private final LameEncoder lame;
+    private final OutputStream out;
+    private boolean closed = false, opened = false;
+    private volatile boolean failed = false;
+    private final int nChannels, sampleRate;
+    private float vol = 1;
+    private byte[] tempBuffer = null, mp3Buffer = null;
+
+    /**
+     * creates a new MP3 stream
+     *
+     * @param out stream to write to. It is closed when the backend is closed
+     * @param sampleRate sample rate
+     * @param nChannels channels
+     * @param bitRate bitrate in kbps
+     */
+    public MP3StreamSoundBackend(OutputStream out, int sampleRate, int nChannels, int bitRate) {
+        this.out = out;
+        this.sampleRate = sampleRate;
+        this.nChannels = nChannels;
+        lame = new LameEncoder(new AudioFormat(sampleRate, 16, nChannels, true, false), bitRate, nChannels == 1 ? MPEGMode.MONO : MPEGMode.JOINT_STEREO, 1, false);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed || !opened) {
+            return;
+        }
+        closed = true;
+        if (!failed) {
+            byte[] b = new byte[lame.getMP3BufferSize()];
+            int n = lame.encodeFinish(b);
+            try {
+                out.write(b, 0, n);
+            } catch (IOException ex) {
+                failed = true;
+            }
+        }
+        lame.close();
+        try {
+            out.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    @Override
+    public void open() {
+        if (closed || opened) {
+            return;
+        }
+        opened = true;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return nChannels;
+    }
+
+    @Override
+    public int getBitsPerSample() {
+        return 16;
+    }
+
+    @Override
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void write(float[] data) {
+        if (closed || !opened || failed) {
+            return;
+        }
+        if (tempBuffer == null || tempBuffer.length != data.length * 2) {
+            tempBuffer = new byte[data.length * 2];
+            mp3Buffer = new byte[Math.max(lame.getMP3BufferSize(), data.length * 5 / 4 + 7200)]; //worst case size of the mp3 data for this many samples
+        }
+        for (int i = 0; i < data.length; i++) {
+            short s = (short) (data[i] * vol * 32767);
+            tempBuffer[i * 2] = (byte) s;
+            tempBuffer[i * 2 + 1] = (byte) (s >> 8);
+        }
+        int n = lame.encodeBuffer(tempBuffer, 0, tempBuffer.length, mp3Buffer);
+        if (n != 0) {
+            try {
+                out.write(mp3Buffer, 0, n);
+            } catch (IOException ex) {
+                failed = true;
+            }
+        }
+    }
+
+    @Override
+    public void setVolume(float vol) {
+        this.vol = vol < 0 ? 0 : vol > 1 ? 1 : vol;
+    }
+
+    @Override
+    public float getVolume() {
+        return vol;
+    }
+
+    /**
+     *
+     * @return true if the stream stopped accepting data
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+}
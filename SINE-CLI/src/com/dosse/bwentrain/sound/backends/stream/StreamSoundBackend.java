@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.sound.backends.stream;
+
+import com.dosse.bwentrain.sound.ISoundDevice;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes raw PCM or WAV to a channel (a pipe, stdout, a socket, ...) as fast
+ * as it accepts it.<br>
+ * Since the length is not known in advance, WAV streams have 0xFFFFFFFF as
+ * their sizes, which tools like ffmpeg and sox read as "until the end of the
+ * stream".<br>
+ * If the channel stops accepting data (for instance, the program reading the
+ * pipe quits), the backend stops writing and hasFailed returns true.
+ *
+ * @author dosse
+ */
+public class StreamSoundBackend implements ISoundDevice {
+
+    public static final int FORMAT_S16LE = 0, FORMAT_F32LE = 1, FORMAT_WAV = 2;
+    private static final int BUFFER_SIZE = 65536;
+
+    private final WritableByteChannel out;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final int sampleRate, nChannels, format;
+    private float vol = 1;
+    private boolean closed = false, opened = false;
+    private volatile boolean failed = false;
+
+    /**
+     * creates a new stream
+     *
+     * @param out channel to write to. It is closed when the backend is closed
+     * @param sampleRate sample rate
+     * @param nChannels channels
+     * @param format FORMAT_S16LE, FORMAT_F32LE or FORMAT_WAV (16 bit)
+     */
+    public StreamSoundBackend(WritableByteChannel out, int sampleRate, int nChannels, int format) {
+        this.out = out;
+        this.sampleRate = sampleRate;
+        this.nChannels = nChannels;
+        this.format = format;
+    }
+
+    /**
+     * parses a format name
+     *
+     * @param name s16le, f32le or wav
+     * @return the format, or -1 if it's not supported
+     */
+    public static int parseFormat(String name) {
+        switch (name.toLowerCase()) {
+            case "s16le":
+                return FORMAT_S16LE;
+            case "f32le":
+                return FORMAT_F32LE;
+            case "wav":
+                return FORMAT_WAV;
+            default:
+                return -1;
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed || !opened) {
+            return;
+        }
+        closed = true;
+        flush();
+        try {
+            out.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    @Override
+    public void open() {
+        if (closed || opened) {
+            return;
+        }
+        opened = true;
+        if (format == FORMAT_WAV) {
+            buf.put("RIFF".getBytes()).putInt(0xFFFFFFFF).put("WAVE".getBytes());
+            buf.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) nChannels).putInt(sampleRate).putInt(sampleRate * nChannels * 2).putShort((short) (nChannels * 2)).putShort((short) 16);
+            buf.put("data".getBytes()).putInt(0xFFFFFFFF);
+        }
+    }
+
+    @Override
+    public int getChannelCount() {
+        return nChannels;
+    }
+
+    @Override
+    public int getBitsPerSample() {
+        return format == FORMAT_F32LE ? 32 : 16;
+    }
+
+    @Override
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void write(float[] data) {
+        if (closed || !opened || failed) {
+            return;
+        }
+        if (format == FORMAT_F32LE) {
+            for (float f : data) {
+                if (buf.remaining() < 4) {
+                    flush();
+                }
+                buf.putFloat(f * vol);
+            }
+        } else {
+            float v = vol * 32767;
+            for (float f : data) {
+                if (buf.remaining() < 2) {
+                    flush();
+                }
+                buf.putShort((short) (f * v));
+            }
+        }
+    }
+
+    private void flush() {
+        if (failed) {
+            return;
+        }
+        buf.flip();
+        try {
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+        } catch (IOException ex) {
+            failed = true;
+        }
+        buf.clear();
+    }
+
+    @Override
+    public void setVolume(float vol) {
+        this.vol = vol < 0 ? 0 : vol > 1 ? 1 : vol;
+    }
+
+    @Override
+    public float getVolume() {
+        return vol;
+    }
+
+    /**
+     *
+     * @return true if the channel stopped accepting data
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+}
@@ -20,6 +20,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.StringTokenizer;
 import java.util.TreeSet;
 import java.util.zip.GZIPInputStream;
@@ -186,13 +187,9 @@ public class BinauralEnvelope implements Serializable {
          * to point B, the interpolation factor is the one specified in point A)
          */
         public void setPoint(double t, double val, double f) {
-            Object[] pts = points.toArray();
-            for (int i = 0; i < pts.length; i++) {
-                if (((EnvelopeEntry) pts[i]).t == t) {
-                    points.remove(pts[i]);
-                }
-            }
-            points.add(new EnvelopeEntry(t, val, f));
+            EnvelopeEntry e = new EnvelopeEntry(t, val, f);
+            points.remove(e); //points are compared by t, so this removes the point at the same t, if there is one
+            points.add(e);
         }
 
         /**
@@ -388,7 +385,7 @@ public class BinauralEnvelope implements Serializable {
     }
 
     public String toXML() {
-        String x = "<BinauralEnvelope baseFrequency=\"" + baseF + "\">\n";
+        StringBuilder x = new StringBuilder("<BinauralEnvelope baseFrequency=\"").append(baseF).append("\">\n");
         Object[] ef = binauralF.getPoints().toArray();
         Object[] ev = binauralV.getPoints().toArray();
         Object[] en = noiseV.getPoints().toArray();
@@ -396,9 +393,30 @@ public class BinauralEnvelope implements Serializable {
             Envelope.EnvelopeEntry efe = (Envelope.EnvelopeEntry) ef[i];
             Envelope.EnvelopeEntry eve = (Envelope.EnvelopeEntry) ev[i];
             Envelope.EnvelopeEntry ene = (Envelope.EnvelopeEntry) en[i];
-            x += "\t<Point t=\"" + efe.t + "\" binauralFrequency=\"" + efe.val + "\" binauralFrequencyInterpolationF=\"" + efe.f + "\" binauralVolume=\"" + eve.val + "\" binauralVolumeInterpolationF=\"" + eve.f + "\" noiseVolume=\"" + ene.val + "\" noiseVolumeInterpolationF=\"" + ene.f + "\"/>\n";
+            x.append("\t<Point t=\"").append(efe.t).append("\" binauralFrequency=\"").append(efe.val).append("\" binauralFrequencyInterpolationF=\"").append(efe.f).append("\" binauralVolume=\"").append(eve.val).append("\" binauralVolumeInterpolationF=\"").append(eve.f).append("\" noiseVolume=\"").append(ene.val).append("\" noiseVolumeInterpolationF=\"").append(ene.f).append("\"/>\n");
+        }
+        return x.append("</BinauralEnvelope>").toString();
+    }
+
+    /**
+     * copies all the points into arrays, used by HBXConverter instead of
+     * going through toXML
+     *
+     * @return t, binaural frequency, binaural volume and noise volume of each
+     * point, sorted by t
+     */
+    double[][] toArrays() {
+        int n = binauralF.getPointCount();
+        double[][] ret = new double[4][n];
+        Iterator<Envelope.EnvelopeEntry> ef = binauralF.getPoints().iterator(), ev = binauralV.getPoints().iterator(), en = noiseV.getPoints().iterator();
+        for (int i = 0; i < n; i++) {
+            Envelope.EnvelopeEntry efe = ef.next();
+            ret[0][i] = efe.t;
+            ret[1][i] = efe.val;
+            ret[2][i] = ev.next().val;
+            ret[3][i] = en.next().val;
         }
-        return x + "</BinauralEnvelope>";
+        return ret;
     }
 
     public static BinauralEnvelope fromXML(String x) throws Exception {
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2013-2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.binaural;
+
+import com.dosse.bwentrain.core.EntrainmentTrack;
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.PresetReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.StringTokenizer;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Converts HBX Binaural Player presets (hbx, hbs and hbl) into SINE presets.
+ * <br>
+ * Each file is read once, straight into arrays of points: hbl files are
+ * parsed with StAX and hbs files are decoded while they're decompressed,
+ * without building the whole text or a BinauralEnvelope first.
+ *
+ * @author dosse
+ */
+public class HBXConverter {
+
+    /**
+     * headers (magic numbers actually) of HBX and HBS files are calculated from
+     * 2 simple strings (HBX and HBS respectively)
+     *
+     */
+    public static final byte[] HBX_HEADER, HBS_HEADER;
+
+    static {
+        String h = "HBX";
+        HBX_HEADER = new byte[h.length()];
+        char[] arr = h.toCharArray();
+        for (int i = 0; i < arr.length; i++) {
+            HBX_HEADER[i] = (byte) arr[i];
+        }
+        h = "HBS";
+        HBS_HEADER = new byte[h.length()];
+        arr = h.toCharArray();
+        for (int i = 0; i < arr.length; i++) {
+            HBS_HEADER[i] = (byte) arr[i];
+        }
+    }
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    //hbs files are text written with 4 bits per character, see BinauralEnvelope.toHES
+    private static final char[] HES_CHARS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '.', ',', '\n', '-', 0, 0};
+
+    //the points of an HBX preset, in the same order as BinauralEnvelope keeps them once normalize is called
+    private static class Points {
+
+        private double baseF = 220;
+        private double[] t = new double[64], bf = new double[64], bv = new double[64], nv = new double[64];
+        private int n = 0;
+
+        private void add(double t, double bf, double bv, double nv) {
+            if (n == this.t.length) {
+                this.t = Arrays.copyOf(this.t, n * 2);
+                this.bf = Arrays.copyOf(this.bf, n * 2);
+                this.bv = Arrays.copyOf(this.bv, n * 2);
+                this.nv = Arrays.copyOf(this.nv, n * 2);
+            }
+            this.t[n] = t;
+            this.bf[n] = bf;
+            this.bv[n] = bv;
+            this.nv[n++] = nv;
+        }
+
+        //sorts the points by t. if there's more than one point at the same t, the last one wins, like BinauralEnvelope.setPoint does
+        private void normalize() {
+            boolean sorted = true;
+            for (int i = 1; i < n && sorted; i++) {
+                sorted = t[i] - t[i - 1] > 0;
+            }
+            if (sorted) {
+                return;
+            }
+            Integer[] idx = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                idx[i] = i;
+            }
+            Arrays.sort(idx, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    double diff = t[a] - t[b]; //same comparison as EnvelopeEntry
+                    return diff == 0 ? Integer.compare(a, b) : diff > 0 ? 1 : -1;
+                }
+            });
+            double[] st = new double[n], sbf = new double[n], sbv = new double[n], snv = new double[n];
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                int j = idx[i];
+                if (i + 1 < n && t[idx[i + 1]] - t[j] == 0) {
+                    continue; //replaced by a later point
+                }
+                st[m] = t[j];
+                sbf[m] = bf[j];
+                sbv[m] = bv[j];
+                snv[m++] = nv[j];
+            }
+            t = st;
+            bf = sbf;
+            bv = sbv;
+            nv = snv;
+            n = m;
+        }
+    }
+
+    /**
+     * reads the points of an HBX preset from a file
+     *
+     * @param x input file
+     * @return the points in the file, sorted
+     * @throws Exception if the file can't be read or it's not an HBX preset
+     */
+    private static Points loadPreset(File x) throws Exception {
+        if (x == null) {
+            throw new Exception("Invalid file");
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(x), 65536)) {
+            if (x.getName().toLowerCase().endsWith(".hbl")) {
+                return readHBL(in);
+            }
+            byte[] header = new byte[HBX_HEADER.length];
+            for (int i = 0; i < header.length;) {
+                int r = in.read(header, i, header.length - i);
+                if (r == -1) {
+                    throw new Exception("Invalid file");
+                }
+                i += r;
+            }
+            if (Arrays.equals(header, HBX_HEADER)) {
+                return readHBX(in);
+            }
+            if (Arrays.equals(header, HBS_HEADER)) {
+                return readHBS(in);
+            }
+        }
+        throw new Exception("Invalid file");
+    }
+
+    //hbx: a serialized BinauralEnvelope, gzipped
+    private static Points readHBX(InputStream in) throws Exception {
+        ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(in, 65536));
+        BinauralEnvelope be = (BinauralEnvelope) ois.readObject();
+        double[][] a = be.toArrays();
+        Points p = new Points();
+        p.baseF = be.getBaseF();
+        p.t = a[0];
+        p.bf = a[1];
+        p.bv = a[2];
+        p.nv = a[3];
+        p.n = a[0].length;
+        return p;
+    }
+
+    //hbs: the output of BinauralEnvelope.toString with 4 bits per character, gzipped. decoded one line at a time, same rules as BinauralEnvelope.fromString
+    private static Points readHBS(InputStream in) throws Exception {
+        GZIPInputStream gis = new GZIPInputStream(in, 65536);
+        Points p = new Points();
+        StringBuilder line = new StringBuilder();
+        boolean first = true;
+        byte[] buf = new byte[65536];
+        for (;;) {
+            int r = gis.read(buf);
+            if (r == -1) {
+                break;
+            }
+            for (int i = 0; i < r; i++) {
+                for (int k = 0; k < 2; k++) {
+                    char c = HES_CHARS[k == 0 ? (buf[i] & 0xF0) >> 4 : buf[i] & 0xF];
+                    if (c != '\n') {
+                        line.append(c);
+                    } else if (line.length() != 0) {
+                        first = parseHBSLine(p, line.toString(), first);
+                        line.setLength(0);
+                    }
+                }
+            }
+        }
+        if (line.length() != 0) {
+            first = parseHBSLine(p, line.toString(), first);
+        }
+        if (first) {
+            throw new Exception("Invalid file"); //no base frequency
+        }
+        p.normalize();
+        return p;
+    }
+
+    //parses a line of an hbs file, first is true for the line with the base frequency. returns false
+    private static boolean parseHBSLine(Points p, String s, boolean first) throws Exception {
+        if (first) {
+            p.baseF = Double.parseDouble(s);
+            return false;
+        }
+        s = s.trim();
+        if (s.isEmpty()) {
+            return false;
+        }
+        StringTokenizer st = new StringTokenizer(s, ",");
+        try {
+            double t = Double.parseDouble(st.nextToken()), bf = Double.parseDouble(st.nextToken());
+            Double.parseDouble(st.nextToken()); //interpolation factors are not supported, but they must be there
+            double bv = Double.parseDouble(st.nextToken());
+            Double.parseDouble(st.nextToken());
+            double nv = Double.parseDouble(st.nextToken());
+            Double.parseDouble(st.nextToken());
+            if (st.hasMoreTokens()) {
+                throw new Exception();
+            }
+            p.add(t, bf, bv, nv);
+        } catch (Exception e) {
+            throw new Exception("For input string: " + s);
+        }
+        return false;
+    }
+
+    //hbl: the output of BinauralEnvelope.toXML. accepts the same files as BinauralEnvelope.fromXML
+    private static Points readHBL(InputStream in) throws Exception {
+        try {
+            XMLStreamReader r;
+            synchronized (FACTORY) {
+                r = FACTORY.createXMLStreamReader(in);
+            }
+            try {
+                Points p = new Points();
+                while (r.next() != XMLStreamConstants.START_ELEMENT || !r.getLocalName().equals("BinauralEnvelope")) {
+                    //the first BinauralEnvelope in the document
+                }
+                p.baseF = Double.parseDouble(r.getAttributeValue(null, "baseFrequency"));
+                for (int depth = 1; depth > 0;) {
+                    int e = r.next();
+                    if (e == XMLStreamConstants.START_ELEMENT) {
+                        if (depth == 1 && r.getLocalName().equalsIgnoreCase("Point")) { //ignore other tags
+                            double t = Double.parseDouble(r.getAttributeValue(null, "t"));
+                            double bf = Double.parseDouble(r.getAttributeValue(null, "binauralFrequency"));
+                            Double.parseDouble(r.getAttributeValue(null, "binauralFrequencyInterpolationF")); //not supported, but it must be there
+                            double bv = Double.parseDouble(r.getAttributeValue(null, "binauralVolume"));
+                            Double.parseDouble(r.getAttributeValue(null, "binauralVolumeInterpolationF"));
+                            double nv = Double.parseDouble(r.getAttributeValue(null, "noiseVolume"));
+                            Double.parseDouble(r.getAttributeValue(null, "noiseVolumeInterpolationF"));
+                            p.add(t, bf, bv, nv);
+                        }
+                        depth++;
+                    } else if (e == XMLStreamConstants.END_ELEMENT) {
+                        depth--;
+                    }
+                }
+                while (r.hasNext()) {
+                    r.next(); //the rest of the document must be well formed too
+                }
+                p.normalize();
+                return p;
+            } finally {
+                r.close();
+            }
+        } catch (Throwable t) {
+            throw new Exception("Invalid XML");
+        }
+    }
+
+    /**
+     * converts an HBX Preset into a SINE Preset. The main limitation is that HBX Interpolation Factors are not supported, and will be treated as 1, always.
+     * @param f file containing HBX Preset (hbx, hbs and hbl are supported)
+     * @return SINE Preset
+     * @throws Exception if anything goes wrong
+     */
+    public static Preset convert(File f) throws Exception {
+        Points hbx = loadPreset(f);
+        int n = hbx.n;
+        double startT = n == 0 ? 0 : hbx.t[0];
+        Preset p = new Preset((float) (n == 0 ? 0 : hbx.t[n - 1] - startT), -1, f.getName(), "", "Imported from HBX Binaural Player");
+        EntrainmentTrack tone = p.getEntrainmentTrack(0);
+        tone.getBaseFrequencyEnvelope().setVal(0, (float) hbx.baseF);
+        if (n == 0) {
+            return p;
+        }
+        float length = p.getLength();
+        float[] t = new float[n], binauralFrequency = new float[n], binauralVolume = new float[n], noiseVolume = new float[n];
+        for (int i = 0; i < n; i++) {
+            //the first point is always at 0, the others are clamped to the length of the preset like addPoint does
+            t[i] = i == 0 ? 0 : Math.max(0, Math.min(length, (float) ((float) hbx.t[i] - startT)));
+            binauralFrequency[i] = (float) hbx.bf[i];
+            binauralVolume[i] = (float) hbx.bv[i];
+            noiseVolume[i] = (float) hbx.nv[i];
+        }
+        PresetReader.setPoints(p.getNoiseEnvelope(), t, noiseVolume, n, length);
+        PresetReader.setPoints(tone.getVolumeEnvelope(), t, binauralVolume, n, length);
+        PresetReader.setPoints(tone.getEntrainmentFrequencyEnvelope(), t, binauralFrequency, n, length);
+        return p;
+    }
+}
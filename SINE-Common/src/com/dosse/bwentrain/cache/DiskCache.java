@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A folder of files identified by a key, with a maximum total size. When it's
+ * full, the least recently used files are deleted.<br>
+ * Files are created by a Producer the first time they're requested; if more
+ * threads request the same missing file at the same time, it's produced only
+ * once and they all wait for it.<br>
+ * The cache survives restarts: files already in the folder are reused, oldest
+ * first when it comes to eviction.<br>
+ * Used for HLS segments in SINE-CLI, and for exported files (see ExportCache).
+ *
+ * @author dosse
+ */
+public class DiskCache {
+
+    /**
+     * creates the content of a file
+     */
+    public interface Producer {
+
+        /**
+         * writes the file
+         *
+         * @param f file to write. It's moved into the cache when this returns
+         * @throws Exception if the file can't be produced (it's not cached)
+         */
+        void produce(File f) throws Exception;
+    }
+
+    private final File dir;
+    private final long maxSize;
+    private long size = 0;
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true); //key -> size, least recently used first
+    private final HashMap<String, FutureTask<byte[]>> inFlight = new HashMap<>();
+
+    /**
+     * opens a cache
+     *
+     * @param dir folder, created if it doesn't exist
+     * @param maxSize maximum size in bytes
+     */
+    public DiskCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        dir.mkdirs();
+        File[] l = dir.listFiles();
+        if (l == null) {
+            return;
+        }
+        Arrays.sort(l, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File f : l) {
+            if (f.getName().endsWith(".tmp")) {
+                f.delete(); //left by a crash
+            } else if (f.isFile()) {
+                files.put(f.getName(), f.length());
+                size += f.length();
+            }
+        }
+        evict();
+    }
+
+    /**
+     * returns the content of a file in the cache, producing it if it's not
+     * there. The file is read while holding the lock, so it can't be evicted
+     * before it's read
+     *
+     * @param key name of the file. Must be a valid file name
+     * @param p creates the file if needed
+     * @return content of the file
+     * @throws Exception if the producer failed
+     */
+    public byte[] get(final String key, final Producer p) throws Exception {
+        byte[] b = read(key);
+        if (b != null) {
+            return b;
+        }
+        FutureTask<byte[]> task;
+        boolean mine = false;
+        synchronized (inFlight) {
+            task = inFlight.get(key);
+            if (task == null) {
+                task = new FutureTask<>(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return produce(key, p, true);
+                    }
+                });
+                inFlight.put(key, task);
+                mine = true;
+            }
+        }
+        if (mine) {
+            try {
+                task.run();
+            } finally {
+                synchronized (inFlight) {
+                    inFlight.remove(key);
+                }
+            }
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    //reads a file in the cache, returns null if it's not there
+    private synchronized byte[] read(String key) {
+        File f = getIfPresent(key);
+        if (f == null) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(f.toPath());
+        } catch (IOException e) {
+            size -= files.remove(key);
+            f.delete();
+            return null;
+        }
+    }
+
+    /**
+     * returns a file from the cache
+     *
+     * @param key name of the file
+     * @return the file, or null if it's not in the cache
+     */
+    public synchronized File getIfPresent(String key) {
+        if (files.get(key) == null) {
+            return null;
+        }
+        File f = new File(dir, key);
+        if (!f.isFile()) {
+            //deleted by someone else
+            size -= files.remove(key);
+            return null;
+        }
+        f.setLastModified(System.currentTimeMillis()); //so that the order is the same after a restart
+        return f;
+    }
+
+    /**
+     * copies a file into the cache, replacing the one with the same key if
+     * there's one
+     *
+     * @param key name of the file. Must be a valid file name
+     * @param src file to copy
+     * @throws Exception if the file can't be copied (it's not cached)
+     */
+    public void put(String key, final File src) throws Exception {
+        produce(key, new Producer() {
+            @Override
+            public void produce(File f) throws Exception {
+                Files.copy(src.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }, false);
+    }
+
+    //produces a file and adds it to the cache. if read is true, returns its content, read before anything else can evict it
+    private byte[] produce(String key, Producer p, boolean read) throws Exception {
+        File tmp = File.createTempFile("cache", ".tmp", dir), f = new File(dir, key);
+        try {
+            p.produce(tmp);
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                throw new Exception("Can't write to cache");
+            }
+        } finally {
+            tmp.delete();
+        }
+        synchronized (this) {
+            Long old = files.put(key, f.length());
+            size += f.length() - (old == null ? 0 : old);
+            evict(); //never removes the newest file
+            return read ? Files.readAllBytes(f.toPath()) : null;
+        }
+    }
+
+    //deletes the least recently used files until the cache is small enough. The newest file is always kept
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> i = files.entrySet().iterator();
+        while (size > maxSize && files.size() > 1 && i.hasNext()) {
+            Map.Entry<String, Long> e = i.next();
+            new File(dir, e.getKey()).delete();
+            size -= e.getValue();
+            i.remove();
+        }
+    }
+
+    /**
+     *
+     * @return total size of the files in the cache, in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+}
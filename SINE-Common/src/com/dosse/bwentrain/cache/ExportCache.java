@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.cache;
+
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.PresetWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Keeps a copy of exported files, so that exporting the same preset with the
+ * same settings again doesn't need to render it.<br>
+ * Files are identified by a hash of what the preset sounds like (its XML
+ * without title, author and description, as written by PresetWriter, so
+ * formatting doesn't matter), the loop count and the output format.<br>
+ * The cache has a maximum size, when it's exceeded the least recently used
+ * files are deleted (see DiskCache).
+ *
+ * @author dosse
+ */
+public class ExportCache extends DiskCache {
+
+    public static final File DEFAULT_DIR = new File(new File(System.getProperty("user.home"), ".sine"), "export-cache");
+    public static final long DEFAULT_SIZE = 2048L * 1048576; //2GB
+
+    private static ExportCache def;
+
+    /**
+     * opens a cache
+     *
+     * @param dir folder, created if it doesn't exist
+     * @param maxSize maximum size in bytes
+     */
+    public ExportCache(File dir, long maxSize) {
+        super(dir, maxSize);
+    }
+
+    /**
+     *
+     * @return the cache in DEFAULT_DIR, shared by SINE, SINE Editor and
+     * SINE-CLI
+     */
+    public static synchronized ExportCache getDefault() {
+        if (def == null) {
+            def = new ExportCache(DEFAULT_DIR, DEFAULT_SIZE);
+        }
+        return def;
+    }
+
+    /**
+     * computes the key of an export
+     *
+     * @param p preset
+     * @param loop loop count (ignored if the preset doesn't loop)
+     * @param sampleRate sample rate
+     * @param nChannels channels
+     * @param format format and its settings, for instance mp3-96 for a 96kbps
+     * MP3
+     * @return key, can be used as a file name
+     * @throws Exception if the preset can't be converted to XML
+     */
+    public static String key(Preset p, int loop, int sampleRate, int nChannels, String format) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        //title, author and description don't change the sound. the xml is hashed as it's written, it's never kept in memory
+        PresetWriter.writeSound(p, new DigestOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, md));
+        String s = "|" + (p.loops() ? loop : 0) + "|" + sampleRate + "|" + nChannels + "|" + format;
+        StringBuilder sb = new StringBuilder();
+        for (byte x : md.digest(s.getBytes("UTF-8"))) {
+            sb.append(String.format("%02x", x & 0xFF));
+        }
+        return sb.append('.').append(format).toString();
+    }
+
+    /**
+     * copies a file from the cache. If out already exists, it's deleted first
+     * in any case, so that a new export to the same path will never write into
+     * a hard linked cache entry
+     *
+     * @param key key of the file
+     * @param out where to put it
+     * @param link if true, out is made a hard link to the cached file instead
+     * of a copy, when possible. Faster and uses no space, but out must not be
+     * modified in place, or the cached file will be modified too
+     * @return true if the file was in the cache, false if it must be exported
+     * @throws IOException if the file is in the cache but it can't be copied.
+     * out is deleted and it must be exported
+     */
+    public boolean fetch(String key, File out, boolean link) throws IOException {
+        out.delete();
+        File f = getIfPresent(key);
+        if (f == null) {
+            return false;
+        }
+        try {
+            if (link) {
+                try {
+                    Files.createLink(out.toPath(), f.toPath());
+                    return true;
+                } catch (IOException | UnsupportedOperationException e) {
+                    //different file system, copy it instead
+                }
+            }
+            Files.copy(f.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            out.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * copies a file that was just exported into the cache
+     *
+     * @param key key of the file
+     * @param f file
+     * @throws Exception if the file can't be copied into the cache
+     */
+    public void store(String key, File f) throws Exception {
+        put(key, f);
+    }
+}
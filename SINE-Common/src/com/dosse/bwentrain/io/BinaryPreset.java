@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.io;
+
+import com.dosse.bwentrain.core.EntrainmentTrack;
+import com.dosse.bwentrain.core.Envelope;
+import com.dosse.bwentrain.core.Preset;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes .sinb files, a binary version of .sin files that loads much
+ * faster, especially for presets with a lot of points.<br>
+ * Format (little endian):<br>
+ * header: "SINB", int version (1), int flags (1=body compressed with
+ * deflate), int size of the uncompressed body<br>
+ * body: float length, float loop (-1 if it doesn't loop), title, author and
+ * description (int number of bytes followed by UTF-8), int number of tracks,
+ * noise envelope, then for each track float trackVolume followed by its
+ * entrainmentFrequency, volume and baseFrequency envelopes<br>
+ * envelope: int number of points n, n float times, n float values<br>
+ * All envelopes have the same length as the preset. Values are stored as they
+ * are, so converting from .sin to .sinb and back gives the same preset.<br>
+ * Files are read with a single read into memory and the arrays of points are
+ * copied straight from there into the envelopes.
+ *
+ * @author dosse
+ */
+public class BinaryPreset {
+
+    public static final String EXTENSION = ".sinb";
+    public static final int VERSION = 1;
+    public static final int FLAG_COMPRESSED = 1;
+
+    private static final int MAGIC = 0x424E4953; //"SINB" read as a little endian int
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_DEFLATE_RATIO = 1032; //deflate can't compress better than this, a bigger size means a corrupted or crafted file
+    private static final int MIN_TRACK_SIZE = 4 + 3 * (4 + 8); //track volume and 3 envelopes with at least 1 point each
+
+    /**
+     *
+     * @param f file
+     * @return true if f starts like a .sinb file, whatever its extension
+     */
+    public static boolean isBinary(File f) {
+        try (RandomAccessFile r = new RandomAccessFile(f, "r")) {
+            return r.length() >= HEADER_SIZE && Integer.reverseBytes(r.readInt()) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @param name file name
+     * @return true if the name ends in .sin or .sinb (ignoring case)
+     */
+    public static boolean isPresetName(String name) {
+        name = name.toLowerCase();
+        return name.endsWith(".sin") || name.endsWith(EXTENSION);
+    }
+
+    /**
+     * reads a preset from a .sinb file
+     *
+     * @param f .sinb file
+     * @return the preset
+     * @throws Exception if the file can't be read or it's not a valid preset
+     */
+    public static Preset read(File f) throws Exception {
+        try (FileChannel c = new RandomAccessFile(f, "r").getChannel()) {
+            if (c.size() < HEADER_SIZE || c.size() > Integer.MAX_VALUE) {
+                throw new Exception("Not a SINB file");
+            }
+            //read into the heap, not mapped: a mapping keeps the file locked on Windows until it's garbage collected, so it couldn't be replaced or deleted
+            ByteBuffer b = ByteBuffer.allocate((int) c.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (b.hasRemaining()) {
+                if (c.read(b) == -1) {
+                    throw new Exception("Not a SINB file");
+                }
+            }
+            b.flip();
+            if (b.getInt() != MAGIC) {
+                throw new Exception("Not a SINB file");
+            }
+            int version = b.getInt(), flags = b.getInt(), size = b.getInt();
+            if (version > VERSION) {
+                throw new Exception("Unsupported SINB version: " + version);
+            }
+            if ((flags & FLAG_COMPRESSED) != 0) {
+                if (size < 0 || size > (long) b.remaining() * MAX_DEFLATE_RATIO) {
+                    throw new Exception("Invalid size");
+                }
+                byte[] out = new byte[size];
+                Inflater inf = new Inflater();
+                try {
+                    inf.setInput(b.array(), b.position(), b.remaining());
+                    if (inf.inflate(out) != size || !inf.finished()) {
+                        throw new Exception("Corrupted SINB file");
+                    }
+                } catch (DataFormatException e) {
+                    throw new Exception("Corrupted SINB file");
+                } finally {
+                    inf.end();
+                }
+                b = ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return readBody(b);
+        }
+    }
+
+    private static Preset readBody(ByteBuffer b) throws Exception {
+        float length = b.getFloat(), loop = b.getFloat();
+        if (!(length >= 0)) {
+            throw new Exception("Invalid length");
+        }
+        if (loop != -1 && !(loop >= 0 && loop <= length)) {
+            throw new Exception("Invalid loop");
+        }
+        String title = readString(b), author = readString(b), description = readString(b);
+        int nTracks = b.getInt();
+        if (nTracks < 1) {
+            throw new Exception("No entrainment tracks");
+        }
+        if (nTracks > b.remaining() / MIN_TRACK_SIZE) {
+            throw new Exception("Invalid number of tracks"); //checked before creating the tracks, a crafted file could ask for billions of them
+        }
+        Preset p = new Preset(length, loop, title, author, description);
+        for (int i = 1; i < nTracks; i++) {
+            p.addEntrainmentTrack();
+        }
+        readEnvelope(b, p.getNoiseEnvelope(), length);
+        for (int i = 0; i < nTracks; i++) {
+            EntrainmentTrack t = p.getEntrainmentTrack(i);
+            float trackVolume = b.getFloat();
+            if (!(trackVolume >= 0 && trackVolume <= 1)) {
+                throw new Exception("Invalid track volume");
+            }
+            t.setTrackVolume(trackVolume);
+            readEnvelope(b, t.getEntrainmentFrequencyEnvelope(), length);
+            readEnvelope(b, t.getVolumeEnvelope(), length);
+            readEnvelope(b, t.getBaseFrequencyEnvelope(), length);
+        }
+        return p;
+    }
+
+    private static String readString(ByteBuffer b) throws Exception {
+        int n = b.getInt();
+        if (n < 0 || n > b.remaining()) {
+            throw new Exception("Invalid string");
+        }
+        byte[] s = new byte[n];
+        b.get(s);
+        return new String(s, StandardCharsets.UTF_8);
+    }
+
+    private static void readEnvelope(ByteBuffer b, Envelope e, float length) throws Exception {
+        int n = b.getInt();
+        if (n < 1 || n > b.remaining() / 8) {
+            throw new Exception("Invalid number of points");
+        }
+        float[] t = new float[n], v = new float[n];
+        b.asFloatBuffer().get(t).get(v); //bulk copy, no parsing
+        b.position(b.position() + n * 8);
+        if (t[0] != 0) {
+            throw new Exception("First point must be at t=0");
+        }
+        for (int i = 1; i < n; i++) {
+            if (!(t[i] >= t[i - 1] && t[i] <= length)) {
+                throw new Exception("Invalid point time");
+            }
+        }
+        PresetReader.setPoints(e, t, v, n, length);
+    }
+
+    /**
+     * saves a preset as a .sinb file.<br>
+     * the preset is written to a temporary file first, which then replaces f,
+     * so f is never left half written
+     *
+     * @param p preset
+     * @param f .sinb file
+     * @param compress true to compress the points with deflate. files are
+     * smaller but they load a bit slower
+     * @throws IOException if the file can't be written
+     */
+    public static void save(Preset p, File f, boolean compress) throws IOException {
+        byte[][] s = {bytes(p.getTitle()), bytes(p.getAuthor()), bytes(p.getDescription())};
+        int size = 8 + 12 + s[0].length + s[1].length + s[2].length + 4 + envelopeSize(p.getNoiseEnvelope());
+        for (int i = 0; i < p.getEntrainmentTrackCount(); i++) {
+            EntrainmentTrack t = p.getEntrainmentTrack(i);
+            size += 4 + envelopeSize(t.getEntrainmentFrequencyEnvelope()) + envelopeSize(t.getVolumeEnvelope()) + envelopeSize(t.getBaseFrequencyEnvelope());
+        }
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE + size).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(MAGIC).putInt(VERSION).putInt(compress ? FLAG_COMPRESSED : 0).putInt(size);
+        b.putFloat(p.getLength()).putFloat(p.getLoop());
+        for (byte[] x : s) {
+            b.putInt(x.length).put(x);
+        }
+        b.putInt(p.getEntrainmentTrackCount());
+        writeEnvelope(b, p.getNoiseEnvelope());
+        for (int i = 0; i < p.getEntrainmentTrackCount(); i++) {
+            EntrainmentTrack t = p.getEntrainmentTrack(i);
+            b.putFloat(t.getTrackVolume());
+            writeEnvelope(b, t.getEntrainmentFrequencyEnvelope());
+            writeEnvelope(b, t.getVolumeEnvelope());
+            writeEnvelope(b, t.getBaseFrequencyEnvelope());
+        }
+        b.flip();
+        if (compress) {
+            Deflater d = new Deflater();
+            try {
+                d.setInput(b.array(), HEADER_SIZE, size);
+                d.finish();
+                byte[] out = new byte[HEADER_SIZE + size + size / 1000 + 64]; //enough even if it doesn't compress
+                System.arraycopy(b.array(), 0, out, 0, HEADER_SIZE);
+                int n = HEADER_SIZE;
+                while (!d.finished()) {
+                    if (n == out.length) {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    n += d.deflate(out, n, out.length - n);
+                }
+                b = ByteBuffer.wrap(out, 0, n);
+            } finally {
+                d.end();
+            }
+        }
+        File tmp = new File(f.getAbsoluteFile().getParentFile(), f.getName() + ".tmp");
+        try (FileChannel c = new RandomAccessFile(tmp, "rw").getChannel()) {
+            c.truncate(0);
+            while (b.hasRemaining()) {
+                c.write(b);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        try {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            //some file systems can't do it atomically
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int envelopeSize(Envelope e) {
+        return 4 + e.getPointCount() * 8;
+    }
+
+    private static void writeEnvelope(ByteBuffer b, Envelope e) {
+        int n = e.getPointCount();
+        b.putInt(n);
+        for (int i = 0; i < n; i++) {
+            b.putFloat(e.getT(i));
+        }
+        for (int i = 0; i < n; i++) {
+            b.putFloat(e.getVal(i));
+        }
+    }
+}
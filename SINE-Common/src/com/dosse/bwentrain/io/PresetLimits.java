@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.io;
+
+/**
+ * Limits of the values SINE Editor can edit. A preset outside them can still
+ * be played, but the editor refuses to open it.<br>
+ * Used by the editor, the preset generator and the linter, so they all agree
+ * on what a valid preset is.
+ *
+ * @author dosse
+ */
+public class PresetLimits {
+
+    public static final float MAX_BASE_FREQUENCY = 1500, MAX_ENTRAINMENT_FREQUENCY = 40;
+    public static final float MIN_LENGTH = 10, MAX_LENGTH = 36000; //10 seconds to 9:59:59
+
+    private PresetLimits() {
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.io;
+
+import com.dosse.bwentrain.core.EntrainmentTrack;
+import com.dosse.bwentrain.core.Envelope;
+import com.dosse.bwentrain.core.Preset;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads presets on background threads, so that large files don't freeze the
+ * UI.<br>
+ * The last presets that were loaded are kept in memory, keyed by path,
+ * modification date and size, so opening one of them again doesn't read the
+ * file. Presets are mutable, so every load returns its own copy.
+ *
+ * @author dosse
+ */
+public class PresetLoader {
+
+    public static final int DEFAULT_CACHE_SIZE = 8;
+
+    /**
+     * receives the result of a load. Methods are called on the loader's
+     * thread, not on the Swing thread
+     */
+    public interface Callback {
+
+        /**
+         * the preset was loaded
+         *
+         * @param f file
+         * @param p preset, a copy that can be modified
+         */
+        public void loaded(File f, Preset p);
+
+        /**
+         * the file can't be read or it's not a valid preset
+         *
+         * @param f file
+         * @param t why
+         */
+        public void failed(File f, Throwable t);
+    }
+
+    private static class CachedPreset {
+
+        private final long lastModified, size;
+        private final Preset preset; //never modified, only cloned
+
+        private CachedPreset(long lastModified, long size, Preset preset) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.preset = preset;
+        }
+    }
+
+    private static PresetLoader def;
+
+    private final ExecutorService pool;
+    private final LinkedHashMap<String, CachedPreset> cache;
+    private Future<Preset> latest; //last load started with loadLatest
+    private int latestId = 0; //incremented by loadLatest, so that an older load that finishes late doesn't call its callback
+
+    /**
+     * creates a new loader
+     *
+     * @param threads number of threads that load presets
+     * @param cacheSize number of presets to keep in memory, 0 to disable
+     * caching
+     */
+    public PresetLoader(int threads, final int cacheSize) {
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Preset loader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        cache = new LinkedHashMap<String, CachedPreset>(16, 0.75f, true) { //least recently used first
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPreset> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     *
+     * @return the loader used by the application, with 2 threads and
+     * DEFAULT_CACHE_SIZE presets in memory
+     */
+    public static synchronized PresetLoader getDefault() {
+        if (def == null) {
+            def = new PresetLoader(2, DEFAULT_CACHE_SIZE);
+        }
+        return def;
+    }
+
+    /**
+     * loads a preset in the background
+     *
+     * @param f .sin or .sinb file
+     * @return the preset (a copy that can be modified). get throws an
+     * ExecutionException if it can't be loaded
+     */
+    public Future<Preset> load(final File f) {
+        return pool.submit(new Callable<Preset>() {
+            @Override
+            public Preset call() throws Exception {
+                return read(f);
+            }
+        });
+    }
+
+    /**
+     * loads a preset in the background, cancelling the previous load started
+     * with this method if it's not finished yet. The callback of a cancelled
+     * load is never called.<br>
+     * Used when the user opens a file, since only the last one matters
+     *
+     * @param f .sin or .sinb file
+     * @param c called when the preset is loaded, unless another file is
+     * loaded with loadLatest in the meantime
+     * @return the preset (a copy that can be modified)
+     */
+    public synchronized Future<Preset> loadLatest(final File f, final Callback c) {
+        if (latest != null) {
+            latest.cancel(true);
+        }
+        final int id = ++latestId;
+        latest = pool.submit(new Callable<Preset>() {
+            @Override
+            public Preset call() throws Exception {
+                Preset p;
+                try {
+                    p = read(f);
+                } catch (Throwable t) {
+                    if (isLatest(id)) {
+                        c.failed(f, t);
+                    }
+                    throw t instanceof Exception ? (Exception) t : new Exception(t);
+                }
+                if (isLatest(id)) {
+                    c.loaded(f, p);
+                }
+                return p;
+            }
+        });
+        return latest;
+    }
+
+    private synchronized boolean isLatest(int id) {
+        return id == latestId;
+    }
+
+    /**
+     * loads a preset on this thread, using the cache
+     *
+     * @param f .sin or .sinb file
+     * @return the preset (a copy that can be modified)
+     * @throws Exception if the file can't be read or it's not a valid preset
+     */
+    public Preset read(File f) throws Exception {
+        String key = f.getAbsolutePath();
+        long lastModified = f.lastModified(), size = f.length();
+        CachedPreset c;
+        synchronized (cache) {
+            c = cache.get(key);
+        }
+        if (c != null && c.lastModified == lastModified && c.size == size) {
+            return copy(c.preset);
+        }
+        Preset p = PresetReader.read(f);
+        synchronized (cache) {
+            cache.put(key, new CachedPreset(lastModified, size, p));
+        }
+        return copy(p);
+    }
+
+    /**
+     * copies a preset. Same as Preset.clone, but much faster for presets with
+     * a lot of points, since clone adds the points one at a time
+     *
+     * @param p preset
+     * @return a copy of p
+     * @throws Exception if the envelopes can't be filled
+     */
+    public static Preset copy(Preset p) throws Exception {
+        Preset c = new Preset(p.getLength(), p.getLoop(), p.getTitle(), p.getAuthor(), p.getDescription());
+        for (int i = 1; i < p.getEntrainmentTrackCount(); i++) {
+            c.addEntrainmentTrack();
+        }
+        copy(p.getNoiseEnvelope(), c.getNoiseEnvelope());
+        for (int i = 0; i < p.getEntrainmentTrackCount(); i++) {
+            EntrainmentTrack from = p.getEntrainmentTrack(i), to = c.getEntrainmentTrack(i);
+            to.setTrackVolume(from.getTrackVolume());
+            copy(from.getEntrainmentFrequencyEnvelope(), to.getEntrainmentFrequencyEnvelope());
+            copy(from.getVolumeEnvelope(), to.getVolumeEnvelope());
+            copy(from.getBaseFrequencyEnvelope(), to.getBaseFrequencyEnvelope());
+        }
+        return c;
+    }
+
+    /**
+     * copies the points of an envelope into another one, replacing its
+     * points. Much faster than adding them one at a time
+     *
+     * @param from envelope to copy
+     * @param to envelope to fill, it must have the same length as from
+     * @throws Exception if the points can't be set
+     */
+    public static void copy(Envelope from, Envelope to) throws Exception {
+        int n = from.getPointCount();
+        float[] t = new float[n], v = new float[n];
+        for (int i = 0; i < n; i++) {
+            t[i] = from.getT(i);
+            v[i] = from.getVal(i);
+        }
+        PresetReader.setPoints(to, t, v, n, from.getLength());
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.io;
+
+import com.dosse.bwentrain.core.EntrainmentTrack;
+import com.dosse.bwentrain.core.Envelope;
+import com.dosse.bwentrain.core.Point;
+import com.dosse.bwentrain.core.Preset;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads .sin files with a StAX parser, going straight from the XML to arrays
+ * of points without building a DOM first.<br>
+ * It accepts the same files as new Preset(Element) and does the same checks
+ * (lengths, loop, track volumes, point times, missing or duplicate
+ * envelopes), but it also accepts whitespace between elements, so indented
+ * files can be loaded.<br>
+ * Envelopes are filled in one go instead of calling addPoint for every point,
+ * which copies and sorts the array every time.
+ *
+ * @author dosse
+ */
+public class PresetReader {
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false); //presets don't have one, and this also disables external entities
+        FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private static Field pointsField, lengthField, cacheField; //used to fill an Envelope in one go, null if the library doesn't have them
+
+    static {
+        try {
+            pointsField = Envelope.class.getDeclaredField("p");
+            lengthField = Envelope.class.getDeclaredField("length");
+            cacheField = Envelope.class.getDeclaredField("cache_lastX");
+            pointsField.setAccessible(true);
+            lengthField.setAccessible(true);
+            cacheField.setAccessible(true);
+        } catch (Throwable t) {
+            pointsField = null;
+        }
+    }
+
+    //an envelope as it's read from the file
+    private static class EnvelopeData {
+
+        private float length;
+        private float[] t = new float[4], v = new float[4];
+        private int n = 0;
+    }
+
+    /**
+     * reads a preset from a file. .sinb files are recognized by their header
+     * and loaded with BinaryPreset
+     *
+     * @param f .sin or .sinb file
+     * @return the preset
+     * @throws Exception if the file can't be read or it's not a valid preset
+     */
+    public static Preset read(File f) throws Exception {
+        if (BinaryPreset.isBinary(f)) {
+            return BinaryPreset.read(f);
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(f), 65536)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * reads a preset from a stream. the stream is not closed
+     *
+     * @param in stream
+     * @return the preset
+     * @throws Exception if the stream can't be read or it's not a valid preset
+     */
+    public static Preset read(InputStream in) throws Exception {
+        XMLStreamReader r;
+        synchronized (FACTORY) {
+            r = FACTORY.createXMLStreamReader(in);
+        }
+        try {
+            return readPreset(r);
+        } finally {
+            r.close();
+        }
+    }
+
+    private static Preset readPreset(XMLStreamReader r) throws Exception {
+        r.nextTag(); //root element
+        float length = Float.parseFloat(attr(r, "length"));
+        if (length < 0) {
+            throw new Exception("Invalid length");
+        }
+        float loop = -1;
+        if (!attr(r, "loop").isEmpty()) {
+            loop = Float.parseFloat(attr(r, "loop"));
+            if (loop < 0 || loop > length) {
+                throw new Exception("Invalid loop");
+            }
+        }
+        String[] infos = null;
+        EnvelopeData noise = null;
+        List<EnvelopeData[]> tracks = new ArrayList<>();
+        List<Float> trackVolumes = new ArrayList<>();
+        while (nextChild(r, true)) {
+            switch (r.getLocalName()) {
+                case "PresetInfos":
+                    if (infos != null) {
+                        throw new Exception("More than one PresetInfos");
+                    }
+                    infos = readInfos(r);
+                    break;
+                case "Envelope":
+                    if (attr(r, "name").equalsIgnoreCase("noise")) {
+                        if (noise != null) {
+                            throw new Exception("More than one noise envelope");
+                        }
+                        noise = readEnvelope(r);
+                    } else {
+                        skip(r);
+                    }
+                    break;
+                case "EntrainmentTrack":
+                    float trackLength = Float.parseFloat(attr(r, "length")), trackVolume = Float.parseFloat(attr(r, "trackVolume"));
+                    if (trackLength != length) {
+                        throw new Exception("Track length doesn't match preset length");
+                    }
+                    if (trackVolume < 0 || trackVolume > 1) {
+                        throw new Exception("Invalid track volume");
+                    }
+                    tracks.add(readTrack(r, trackLength));
+                    trackVolumes.add(trackVolume);
+                    break;
+                default:
+                    skip(r);
+            }
+        }
+        if (infos == null) {
+            throw new Exception("Missing PresetInfos");
+        }
+        if (noise == null) {
+            throw new Exception("Missing noise envelope");
+        }
+        if (tracks.isEmpty()) {
+            throw new Exception("No entrainment tracks");
+        }
+        //build the preset
+        Preset p = new Preset(length, loop, infos[0], infos[1], infos[2]);
+        for (int i = 1; i < tracks.size(); i++) {
+            p.addEntrainmentTrack();
+        }
+        fill(p.getNoiseEnvelope(), noise);
+        for (int i = 0; i < tracks.size(); i++) {
+            EntrainmentTrack et = p.getEntrainmentTrack(i);
+            et.setTrackVolume(trackVolumes.get(i));
+            EnvelopeData[] e = tracks.get(i);
+            fill(et.getEntrainmentFrequencyEnvelope(), e[0]);
+            fill(et.getVolumeEnvelope(), e[1]);
+            fill(et.getBaseFrequencyEnvelope(), e[2]);
+        }
+        return p;
+    }
+
+    //title, author, description
+    private static String[] readInfos(XMLStreamReader r) throws Exception {
+        String[] ret = new String[3];
+        while (nextChild(r, true)) {
+            int i = Arrays.asList("Title", "Author", "Description").indexOf(r.getLocalName());
+            if (i == -1) {
+                skip(r);
+                continue;
+            }
+            if (ret[i] != null) {
+                throw new Exception("More than one " + r.getLocalName());
+            }
+            ret[i] = r.getElementText();
+        }
+        if (ret[0] == null || ret[1] == null || ret[2] == null) {
+            throw new Exception("Incomplete PresetInfos");
+        }
+        return ret;
+    }
+
+    //entrainment frequency, volume, base frequency
+    private static EnvelopeData[] readTrack(XMLStreamReader r, float length) throws Exception {
+        EnvelopeData[] ret = new EnvelopeData[3];
+        while (nextChild(r, false)) {
+            int i = Arrays.asList("entrainmentfrequency", "volume", "basefrequency").indexOf(attr(r, "name").toLowerCase());
+            if (i == -1) {
+                skip(r);
+                continue;
+            }
+            if (ret[i] != null) {
+                throw new Exception("Duplicate envelope " + attr(r, "name"));
+            }
+            ret[i] = readEnvelope(r);
+            if (ret[i].length != length) {
+                throw new Exception("Envelope length doesn't match track length");
+            }
+        }
+        if (ret[0] == null || ret[1] == null || ret[2] == null) {
+            throw new Exception("Missing envelope");
+        }
+        return ret;
+    }
+
+    private static EnvelopeData readEnvelope(XMLStreamReader r) throws Exception {
+        EnvelopeData e = new EnvelopeData();
+        e.length = Float.parseFloat(attr(r, "length"));
+        if (e.length < 0) {
+            throw new Exception("Invalid envelope length");
+        }
+        while (nextChild(r, false)) {
+            float t = Float.parseFloat(attr(r, "time")), v = Float.parseFloat(attr(r, "value"));
+            if (t < 0 || t > e.length) {
+                throw new Exception("Point outside of envelope");
+            }
+            if (e.n == e.t.length) {
+                e.t = Arrays.copyOf(e.t, e.n * 2);
+                e.v = Arrays.copyOf(e.v, e.n * 2);
+            }
+            e.t[e.n] = t;
+            e.v[e.n++] = v;
+            skip(r);
+        }
+        if (e.n == 0) {
+            throw new Exception("Empty envelope");
+        }
+        sort(e.t, e.v, e.n);
+        if (e.t[0] != 0) {
+            throw new Exception("Envelope doesn't start at 0");
+        }
+        return e;
+    }
+
+    //sorts points by time, keeping the order of points with the same time like Arrays.sort on Points does
+    private static void sort(final float[] t, float[] v, int n) {
+        boolean sorted = true;
+        for (int i = 1; i < n && sorted; i++) {
+            sorted = t[i] >= t[i - 1];
+        }
+        if (sorted) {
+            return; //usually the case
+        }
+        Integer[] idx = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            idx[i] = i;
+        }
+        Arrays.sort(idx, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Float.compare(t[a], t[b]);
+            }
+        });
+        float[] st = new float[n], sv = new float[n];
+        for (int i = 0; i < n; i++) {
+            st[i] = t[idx[i]];
+            sv[i] = v[idx[i]];
+        }
+        System.arraycopy(st, 0, t, 0, n);
+        System.arraycopy(sv, 0, v, 0, n);
+    }
+
+    private static void fill(Envelope e, EnvelopeData d) throws Exception {
+        setPoints(e, d.t, d.v, d.n, d.length);
+    }
+
+    /**
+     * replaces all the points of an envelope
+     *
+     * @param e envelope
+     * @param t times of the points, sorted, the first one must be 0
+     * @param v values of the points
+     * @param n number of points
+     * @param length new length of the envelope
+     * @throws Exception if the envelope can't be modified
+     */
+    public static void setPoints(Envelope e, float[] t, float[] v, int n, float length) throws Exception {
+        if (pointsField != null) {
+            Point[] p = new Point[n];
+            for (int i = 0; i < n; i++) {
+                p[i] = new Point(t[i], v[i]);
+            }
+            pointsField.set(e, p);
+            lengthField.setFloat(e, length);
+            cacheField.setInt(e, -1);
+        } else {
+            //slow way, with the public methods
+            while (e.getPointCount() > 1) {
+                e.removePoint(e.getPointCount() - 1);
+            }
+            e.setVal(0, v[0]);
+            for (int i = 1; i < n; i++) {
+                e.addPoint(t[i], v[i]);
+            }
+        }
+    }
+
+    private static String attr(XMLStreamReader r, String name) {
+        String s = r.getAttributeValue(null, name);
+        return s == null ? "" : s;
+    }
+
+    //moves to the next child element of the current element, returns false at the end of the current element. text between elements is not allowed unless allowText is true, but whitespace and comments are always ignored
+    private static boolean nextChild(XMLStreamReader r, boolean allowText) throws XMLStreamException {
+        for (;;) {
+            switch (r.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    return true;
+                case XMLStreamConstants.END_ELEMENT:
+                    return false;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (!allowText && !r.isWhiteSpace()) {
+                        throw new XMLStreamException("Unexpected text", r.getLocation());
+                    }
+                    break;
+                case XMLStreamConstants.END_DOCUMENT:
+                    throw new XMLStreamException("Unexpected end of document");
+                default:
+                    break;
+            }
+        }
+    }
+
+    //skips the current element and everything in it
+    private static void skip(XMLStreamReader r) throws XMLStreamException {
+        for (int depth = 1; depth > 0;) {
+            int e = r.next();
+            if (e == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (e == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+}
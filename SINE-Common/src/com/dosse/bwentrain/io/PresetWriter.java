@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.io;
+
+import com.dosse.bwentrain.core.EntrainmentTrack;
+import com.dosse.bwentrain.core.Envelope;
+import com.dosse.bwentrain.core.Preset;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes .sin files straight to a stream, without building a DOM and running
+ * it through a Transformer like Preset.toString does.<br>
+ * The output is byte for byte the same as Preset.toString (same attribute
+ * order, same number format, same escaping), except that it's always UTF-8
+ * instead of the platform charset.
+ *
+ * @author dosse
+ */
+public class PresetWriter {
+
+    private static Field nameField; //names of the envelopes, null if the library doesn't have it
+
+    static {
+        try {
+            nameField = Envelope.class.getDeclaredField("name");
+            nameField.setAccessible(true);
+        } catch (Throwable t) {
+            nameField = null;
+        }
+    }
+
+    /**
+     * saves a preset to a file, followed by a new line.<br>
+     * the preset is written to a temporary file first, which then replaces f,
+     * so f is never left half written
+     *
+     * @param p preset
+     * @param f .sin file
+     * @throws IOException if the file can't be written
+     */
+    public static void save(Preset p, File f) throws IOException {
+        File tmp = new File(f.getAbsoluteFile().getParentFile(), f.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            Writer w = writer(out);
+            write(p, w, true);
+            w.write('\n');
+            w.flush();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        try {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            //some file systems can't do it atomically
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * writes a preset to a stream, same as Preset.toString. the stream is
+     * flushed but not closed
+     *
+     * @param p preset
+     * @param out stream
+     * @throws IOException if the stream can't be written
+     */
+    public static void write(Preset p, OutputStream out) throws IOException {
+        Writer w = writer(out);
+        write(p, w, true);
+        w.flush();
+    }
+
+    /**
+     * writes only what the preset sounds like: no xml declaration and no
+     * title, author and description. the stream is flushed but not closed
+     *
+     * @param p preset
+     * @param out stream
+     * @throws IOException if the stream can't be written
+     */
+    public static void writeSound(Preset p, OutputStream out) throws IOException {
+        Writer w = writer(out);
+        write(p, w, false);
+        w.flush();
+    }
+
+    private static Writer writer(OutputStream out) {
+        return new BufferedWriter(new OutputStreamWriter(new BufferedOutputStream(out, 65536), StandardCharsets.UTF_8), 65536);
+    }
+
+    private static void write(Preset p, Writer w, boolean infos) throws IOException {
+        if (infos) {
+            w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        }
+        w.write("<Preset length=\"");
+        w.write(Float.toString(p.getLength()));
+        if (p.getLoop() != -1) {
+            w.write("\" loop=\"");
+            w.write(Float.toString(p.getLoop()));
+        }
+        w.write("\">");
+        if (infos) {
+            w.write("<PresetInfos>");
+            writeText(w, "Title", p.getTitle());
+            writeText(w, "Author", p.getAuthor());
+            writeText(w, "Description", p.getDescription());
+            w.write("</PresetInfos>");
+        }
+        writeEnvelope(w, p.getNoiseEnvelope(), "noise");
+        for (int i = 0; i < p.getEntrainmentTrackCount(); i++) {
+            EntrainmentTrack t = p.getEntrainmentTrack(i);
+            w.write("<EntrainmentTrack length=\"");
+            w.write(Float.toString(t.getLength()));
+            w.write("\" trackVolume=\"");
+            w.write(Float.toString(t.getTrackVolume()));
+            w.write("\">");
+            writeEnvelope(w, t.getEntrainmentFrequencyEnvelope(), "entrainmentFrequency");
+            writeEnvelope(w, t.getVolumeEnvelope(), "volume");
+            writeEnvelope(w, t.getBaseFrequencyEnvelope(), "baseFrequency");
+            w.write("</EntrainmentTrack>");
+        }
+        w.write("</Preset>");
+    }
+
+    private static void writeEnvelope(Writer w, Envelope e, String defaultName) throws IOException {
+        String name = defaultName;
+        if (nameField != null) {
+            try {
+                name = (String) nameField.get(e);
+            } catch (Throwable t) {
+            }
+        }
+        w.write("<Envelope length=\"");
+        w.write(Float.toString(e.getLength()));
+        w.write("\" name=\"");
+        escape(w, name, true);
+        w.write("\">");
+        int n = e.getPointCount();
+        for (int i = 0; i < n; i++) {
+            w.write("<Point time=\"");
+            w.write(Float.toString(e.getT(i)));
+            w.write("\" value=\"");
+            w.write(Float.toString(e.getVal(i)));
+            w.write("\"/>");
+        }
+        w.write("</Envelope>");
+    }
+
+    private static void writeText(Writer w, String tag, String s) throws IOException {
+        w.write('<');
+        w.write(tag);
+        if (s == null || s.isEmpty()) {
+            w.write("/>");
+            return;
+        }
+        w.write('>');
+        escape(w, s, false);
+        w.write("</");
+        w.write(tag);
+        w.write('>');
+    }
+
+    //escapes text and attributes the same way the Transformer used by Preset.toString does
+    private static void escape(Writer w, String s, boolean attribute) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '&') {
+                w.write("&amp;");
+            } else if (c == '<') {
+                w.write("&lt;");
+            } else if (c == '>') {
+                w.write("&gt;");
+            } else if (c == '"' && attribute) {
+                w.write("&quot;");
+            } else if (c < 0x20) {
+                if (!attribute && (c == '\t' || c == '\n')) {
+                    w.write(c);
+                } else {
+                    w.write("&#" + (int) c + ";");
+                }
+            } else if (c >= 0x7F && c <= 0x9F && !attribute) {
+                w.write("&#" + (int) c + ";");
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                w.write("&#" + Character.toCodePoint(c, s.charAt(++i)) + ";");
+            } else if (Character.isSurrogate(c)) {
+                throw new IOException("Invalid UTF-16 surrogate in " + s);
+            } else {
+                w.write(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.render;
+
+import com.dosse.bwentrain.core.EntrainmentTrack;
+import com.dosse.bwentrain.core.Envelope;
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.renderers.isochronic.EntrainmentTrackRenderer;
+import com.dosse.bwentrain.renderers.isochronic.IsochronicRenderer;
+import java.lang.reflect.Field;
+
+/**
+ * The render loop of IsochronicRenderer, one block at a time.<br>
+ * IsochronicRenderer renders on its own thread and keeps its state in local
+ * variables and private fields. This class renders the same samples, but the
+ * caller decides when to render the next block, and the whole state (position,
+ * noise position, loop counter and the phase of each track) can be read and
+ * restored, for instance to continue an export after a crash or to replace a
+ * track while it's playing without clicks.
+ *
+ * @author dosse
+ */
+public class SteppableRenderer {
+
+    private static Field noiseField, trackT, trackCT, trackECT; //state that the renderer doesn't expose
+
+    private final int blockSize;
+    private final double step;
+    private float[] noiseSample;
+    private EntrainmentTrackRenderer[] renderers = new EntrainmentTrackRenderer[0];
+    private float[][] trackBuffers = new float[0][];
+    private volatile double t = 0;
+    private double noiseT = 0;
+    private int loopCounter;
+
+    /**
+     * creates a renderer with no tracks
+     *
+     * @param sampleRate sample rate
+     * @param loop how many times the preset loops, -1 for forever
+     * @throws Exception if the version of the renderer in use is not supported
+     */
+    public SteppableRenderer(float sampleRate, int loop) throws Exception {
+        synchronized (SteppableRenderer.class) {
+            if (noiseField == null) {
+                Field n = IsochronicRenderer.class.getDeclaredField("NOISE_SAMPLE");
+                trackT = EntrainmentTrackRenderer.class.getDeclaredField("t");
+                trackCT = EntrainmentTrackRenderer.class.getDeclaredField("cT");
+                trackECT = EntrainmentTrackRenderer.class.getDeclaredField("ecT");
+                for (Field f : new Field[]{n, trackT, trackCT, trackECT}) {
+                    f.setAccessible(true);
+                }
+                noiseField = n;
+            }
+        }
+        //same as IsochronicRenderer
+        blockSize = (int) Math.ceil(1024f * (sampleRate / 44100f));
+        step = 1.0 / sampleRate;
+        loopCounter = loop;
+    }
+
+    /**
+     * creates a renderer for all the tracks of a preset, starting from the
+     * beginning
+     *
+     * @param p preset
+     * @param sampleRate sample rate
+     * @param loop how many times the preset loops, -1 for forever
+     * @throws Exception if the version of the renderer in use is not supported
+     */
+    public SteppableRenderer(Preset p, float sampleRate, int loop) throws Exception {
+        this(sampleRate, loop);
+        float[] m = getMultipliers(p);
+        EntrainmentTrackRenderer[] r = new EntrainmentTrackRenderer[m.length];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = new EntrainmentTrackRenderer(p.getEntrainmentTrack(i), sampleRate, m[i]);
+            r[i].setT(0);
+        }
+        setTrackRenderers(r);
+    }
+
+    /**
+     *
+     * @param p preset
+     * @return the volume multiplier of each track, as IsochronicRenderer
+     * computes it
+     */
+    public static float[] getMultipliers(Preset p) {
+        float[] m = new float[p.getEntrainmentTrackCount()];
+        float totalVolume = 0;
+        for (int i = 0; i < m.length; i++) {
+            totalVolume += p.getEntrainmentTrack(i).getTrackVolume();
+        }
+        if (totalVolume <= 1) {
+            totalVolume = 1;
+        }
+        for (int i = 0; i < m.length; i++) {
+            EntrainmentTrack t = p.getEntrainmentTrack(i);
+            m[i] = 0.5f * (t.getTrackVolume() / totalVolume);
+        }
+        return m;
+    }
+
+    /**
+     * IsochronicRenderer loads its noise sample in the background when it's
+     * first used, nothing can be rendered until it's loaded
+     *
+     * @return true if the noise sample is loaded
+     */
+    public boolean isReady() {
+        if (noiseSample == null) {
+            try {
+                noiseSample = (float[]) noiseField.get(null);
+            } catch (Throwable err) {
+            }
+        }
+        return noiseSample != null;
+    }
+
+    /**
+     * renders the next block. when the end is reached, the position goes back
+     * to the loop if there are loops left, otherwise it stays at the end
+     *
+     * @param buf output buffer, at least getBlockSize() samples
+     * @param noise noise envelope
+     * @param length length of the preset
+     * @param loop loop position, -1 if the preset doesn't loop
+     * @return false if the end was reached and there are no loops left
+     */
+    public boolean render(float[] buf, Envelope noise, float length, float loop) {
+        for (int i = 0; i < renderers.length; i++) {
+            trackBuffers[i] = renderers[i].render(blockSize);
+        }
+        float n = noise.get((float) t);
+        for (int i = 0; i < blockSize; i++) {
+            buf[i] = noiseSample[(int) ((noiseT % 1) * noiseSample.length)] * n;
+            noiseT += step;
+            for (int j = 0; j < trackBuffers.length; j++) {
+                buf[i] += trackBuffers[j][i];
+            }
+        }
+        t += step * blockSize;
+        if (t >= length) {
+            if (loop != -1 && loopCounter-- != 0) {
+                setT(loop);
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return samples rendered by each call to render
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     *
+     * @return the renderers of the tracks
+     */
+    public EntrainmentTrackRenderer[] getTrackRenderers() {
+        return renderers;
+    }
+
+    /**
+     * replaces the renderers of the tracks. they're used from the next block,
+     * starting from their own position
+     *
+     * @param r renderers
+     */
+    public void setTrackRenderers(EntrainmentTrackRenderer[] r) {
+        renderers = r;
+        if (trackBuffers.length != r.length) {
+            trackBuffers = new float[r.length][];
+        }
+    }
+
+    /**
+     *
+     * @return position in seconds. can be called by any thread
+     */
+    public double getT() {
+        return t;
+    }
+
+    /**
+     * moves the renderer and all its tracks to a position
+     *
+     * @param t position in seconds
+     */
+    public void setT(double t) {
+        this.t = t;
+        for (EntrainmentTrackRenderer r : renderers) {
+            r.setT((float) t);
+        }
+    }
+
+    /**
+     * restores the position of the renderer without moving its tracks, which
+     * are restored with setTrackState
+     *
+     * @param t position in seconds
+     * @param noiseT position in the noise sample
+     */
+    public void restore(double t, double noiseT) {
+        this.t = t;
+        this.noiseT = noiseT;
+    }
+
+    /**
+     *
+     * @return position in the noise sample
+     */
+    public double getNoiseT() {
+        return noiseT;
+    }
+
+    /**
+     *
+     * @return loops left, -1 for forever
+     */
+    public int getLoopCounter() {
+        return loopCounter;
+    }
+
+    /**
+     *
+     * @param loopCounter loops left, -1 for forever
+     */
+    public void setLoopCounter(int loopCounter) {
+        this.loopCounter = loopCounter;
+    }
+
+    /**
+     *
+     * @param r track renderer
+     * @return its position and the phase of its carrier and of its pulses
+     * @throws Exception if the version of the renderer in use is not supported
+     */
+    public static double[] getTrackState(EntrainmentTrackRenderer r) throws Exception {
+        return new double[]{trackT.getDouble(r), trackCT.getDouble(r), trackECT.getDouble(r)};
+    }
+
+    /**
+     *
+     * @param r track renderer
+     * @param s state returned by getTrackState
+     * @throws Exception if the version of the renderer in use is not supported
+     */
+    public static void setTrackState(EntrainmentTrackRenderer r, double[] s) throws Exception {
+        trackT.setDouble(r, s[0]);
+        trackCT.setDouble(r, s[1]);
+        trackECT.setDouble(r, s[2]);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.sound;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Wraps another ISoundDevice and writes to it from a dedicated thread, so that
+ * the renderer can compute the next blocks while the wrapped device is still
+ * quantizing, encoding and writing the previous ones.<br>
+ * Blocks are copied into a fixed ring of preallocated buffers shared by one
+ * producer (the renderer thread) and one consumer (the writer thread). When
+ * the ring is full, write blocks until the consumer frees a slot.<br>
+ * close() waits until all queued blocks are written, then closes the wrapped
+ * device.
+ *
+ * @author dosse
+ */
+public class AsyncSoundDevice implements ISoundDevice {
+
+    private final ISoundDevice dev;
+    private final float[][] slots; //ring of buffers, allocated on first use
+    private volatile long head = 0, tail = 0; //blocks written by producer, blocks consumed by consumer. Only the producer writes head and only the consumer writes tail
+    private volatile boolean producerParked = false, consumerParked = false;
+    private volatile boolean closing = false, closed = false, opened = false;
+    private Thread consumer, producer;
+
+    //metrics
+    private volatile int maxDepth = 0;
+    private volatile long stalls = 0;
+
+    /**
+     * wraps a device with a ring of 16 blocks
+     *
+     * @param dev device to write to
+     */
+    public AsyncSoundDevice(ISoundDevice dev) {
+        this(dev, 16);
+    }
+
+    /**
+     * wraps a device
+     *
+     * @param dev device to write to
+     * @param capacity number of blocks that can be queued before write blocks
+     */
+    public AsyncSoundDevice(ISoundDevice dev, int capacity) {
+        this.dev = dev;
+        slots = new float[capacity < 1 ? 1 : capacity][];
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed || !opened) {
+            return;
+        }
+        closing = true;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException ex) {
+        }
+        dev.close();
+        closed = true;
+    }
+
+    @Override
+    public void open() {
+        if (closed || opened) {
+            return;
+        }
+        dev.open();
+        consumer = new Thread() {
+            @Override
+            public void run() {
+                consume();
+            }
+        };
+        consumer.setName("AsyncSoundDevice writer");
+        consumer.setDaemon(true);
+        consumer.start();
+        opened = true;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return dev.getChannelCount();
+    }
+
+    @Override
+    public int getBitsPerSample() {
+        return dev.getBitsPerSample();
+    }
+
+    @Override
+    public float getSampleRate() {
+        return dev.getSampleRate();
+    }
+
+    @Override
+    public void write(float[] data) {
+        if (closing || !opened) {
+            return;
+        }
+        long h = head;
+        if (h - tail == slots.length) {
+            //ring is full, wait for the consumer
+            stalls++;
+            producer = Thread.currentThread();
+            producerParked = true;
+            while (h - tail == slots.length) {
+                LockSupport.park(this);
+            }
+            producerParked = false;
+        }
+        int i = (int) (h % slots.length);
+        if (slots[i] == null || slots[i].length != data.length) {
+            slots[i] = new float[data.length]; //only happens while the ring is filled for the first time, unless the block size changes
+        }
+        System.arraycopy(data, 0, slots[i], 0, data.length);
+        head = h + 1;
+        int depth = (int) (h + 1 - tail);
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        if (consumerParked) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private void consume() {
+        for (;;) {
+            long t = tail;
+            if (t == head) {
+                if (closing) {
+                    return; //everything has been written
+                }
+                consumerParked = true;
+                if (t == head && !closing) {
+                    LockSupport.park(this);
+                }
+                consumerParked = false;
+                continue;
+            }
+            try {
+                dev.write(slots[(int) (t % slots.length)]);
+            } catch (Throwable ex) {
+                //keep consuming so that the producer never gets stuck
+            }
+            tail = t + 1;
+            if (producerParked) {
+                LockSupport.unpark(producer);
+            }
+        }
+    }
+
+    @Override
+    public void setVolume(float vol) {
+        dev.setVolume(vol);
+    }
+
+    @Override
+    public float getVolume() {
+        return dev.getVolume();
+    }
+
+    /**
+     *
+     * @return number of blocks currently queued
+     */
+    public int getQueueDepth() {
+        return (int) (head - tail);
+    }
+
+    /**
+     *
+     * @return highest number of blocks ever queued at the same time
+     */
+    public int getMaxQueueDepth() {
+        return maxDepth;
+    }
+
+    /**
+     *
+     * @return maximum number of blocks that can be queued
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     *
+     * @return number of times write had to wait for the wrapped device
+     */
+    public long getStallCount() {
+        return stalls;
+    }
+
+    /**
+     *
+     * @return number of blocks queued since the device was opened
+     */
+    public long getBlockCount() {
+        return head;
+    }
+
+    /**
+     *
+     * @return the wrapped device
+     */
+    public ISoundDevice getDevice() {
+        return dev;
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.sound.backends.opus;
+
+import com.dosse.bwentrain.sound.ISoundDevice;
+import io.github.jaredmdobson.concentus.OpusApplication;
+import io.github.jaredmdobson.concentus.OpusEncoder;
+import io.github.jaredmdobson.concentus.OpusException;
+import io.github.jaredmdobson.concentus.OpusSignal;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes an Ogg Opus file (RFC 7845) using the Concentus pure Java Opus
+ * encoder.<br>
+ * Opus only accepts 8000, 12000, 16000, 24000 and 48000Hz, so the renderer
+ * must be run at one of these rates (48000Hz is the natural choice, since
+ * that's what decoders output anyway). Isochronic tones are very easy to
+ * encode, 24-32kbps are transparent.
+ *
+ * @author dosse
+ */
+public class OggOpusFileSoundBackend implements ISoundDevice {
+
+    private static final int PACKETS_PER_PAGE = 50; //1 second of audio per Ogg page
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        //Ogg CRC32: polynomial 0x04C11DB7, no reflection, initial value 0
+        for (int i = 0; i < 256; i++) {
+            int r = i << 24;
+            for (int j = 0; j < 8; j++) {
+                r = (r & 0x80000000) != 0 ? (r << 1) ^ 0x04C11DB7 : r << 1;
+            }
+            CRC_TABLE[i] = r;
+        }
+    }
+
+    private final OutputStream fos;
+    private final OpusEncoder enc;
+    private boolean closed = false, opened = false;
+    private volatile boolean failed = false;
+    private final int nChannels, sampleRate;
+    private float vol = 1;
+
+    private final int frameSize, granuleScale, lookahead; //samples per channel in a 20ms packet, 48000/sampleRate, encoder delay in samples
+    private final short[] pcm; //interleaved samples of the packet being filled
+    private int pcmPos = 0;
+    private final byte[] packet = new byte[4000];
+    private long samplesIn = 0, samplesEncoded = 0; //per channel, at sampleRate
+
+    //Ogg page being built
+    private final int serial = (int) System.nanoTime();
+    private int pageSeq = 0, pagePackets = 0, pageSegments = 0;
+    private final byte[] lacing = new byte[255];
+    private final ByteArrayOutputStream pageData = new ByteArrayOutputStream(8192);
+
+    /**
+     * creates a new Ogg Opus file
+     *
+     * @param path output file
+     * @param sampleRate sample rate (8000, 12000, 16000, 24000 or 48000)
+     * @param nChannels channels (1 or 2)
+     * @param bitRate bitrate in kbps
+     * @throws IOException if the file can't be created or the parameters are
+     * not supported by Opus
+     */
+    public OggOpusFileSoundBackend(String path, int sampleRate, int nChannels, int bitRate) throws IOException {
+        try {
+            enc = new OpusEncoder(sampleRate, nChannels, OpusApplication.OPUS_APPLICATION_AUDIO);
+        } catch (OpusException ex) {
+            throw new IOException("Unsupported format: " + ex.getMessage());
+        }
+        enc.setBitrate(bitRate * 1000);
+        enc.setSignalType(OpusSignal.OPUS_SIGNAL_MUSIC);
+        enc.setComplexity(10);
+        this.sampleRate = sampleRate;
+        this.nChannels = nChannels;
+        frameSize = sampleRate / 50;
+        granuleScale = 48000 / sampleRate;
+        lookahead = enc.getLookahead();
+        pcm = new short[frameSize * nChannels];
+        fos = new BufferedOutputStream(new FileOutputStream(path), 65536);
+        try {
+            writeHeaders();
+        } catch (IOException ex) {
+            fos.close();
+            throw ex;
+        }
+    }
+
+    private void writeHeaders() throws IOException {
+        //identification header, alone in the first page
+        byte[] head = new byte[19];
+        System.arraycopy("OpusHead".getBytes("ASCII"), 0, head, 0, 8);
+        head[8] = 1; //version
+        head[9] = (byte) nChannels;
+        int preSkip = lookahead * granuleScale;
+        head[10] = (byte) preSkip;
+        head[11] = (byte) (preSkip >> 8);
+        head[12] = (byte) sampleRate;
+        head[13] = (byte) (sampleRate >> 8);
+        head[14] = (byte) (sampleRate >> 16);
+        head[15] = (byte) (sampleRate >> 24);
+        //output gain (16-17) and channel mapping family (18) are 0
+        addPacket(head, head.length);
+        writePage(0, 0x02);
+        //comment header, alone in the second page
+        byte[] vendor = "SINE Isochronic Entrainer".getBytes("UTF-8");
+        byte[] tags = new byte[8 + 4 + vendor.length + 4];
+        System.arraycopy("OpusTags".getBytes("ASCII"), 0, tags, 0, 8);
+        tags[8] = (byte) vendor.length;
+        tags[9] = (byte) (vendor.length >> 8);
+        System.arraycopy(vendor, 0, tags, 12, vendor.length);
+        //user comment count is 0
+        addPacket(tags, tags.length);
+        writePage(0, 0);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (opened && !failed) {
+            try {
+                //pad with silence until the encoder has output everything it has in its lookahead buffer
+                while (samplesEncoded < samplesIn + lookahead) {
+                    for (; pcmPos < pcm.length; pcmPos++) {
+                        pcm[pcmPos] = 0;
+                    }
+                    encodePacket();
+                }
+                //the granule position of the last page tells decoders where the audio actually ends
+                writePage((samplesIn + lookahead) * granuleScale, 0x04);
+            } catch (IOException ex) {
+                failed = true;
+            }
+        }
+        try {
+            fos.close(); //even if it was never opened, so the file isn't left open
+        } catch (IOException ex) {
+            failed = true;
+        }
+    }
+
+    @Override
+    public void open() {
+        if (closed || opened) {
+            return;
+        }
+        opened = true;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return nChannels;
+    }
+
+    @Override
+    public int getBitsPerSample() {
+        return 16;
+    }
+
+    @Override
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void write(float[] data) {
+        if (closed || !opened || failed) {
+            return;
+        }
+        float v = vol * 32767;
+        try {
+            for (int i = 0; i < data.length;) {
+                int n = Math.min(pcm.length - pcmPos, data.length - i);
+                for (int end = i + n; i < end; i++) {
+                    pcm[pcmPos++] = (short) (data[i] * v);
+                }
+                if (pcmPos == pcm.length) {
+                    encodePacket();
+                }
+            }
+        } catch (IOException ex) {
+            failed = true; //the rest is discarded
+        }
+        samplesIn += data.length / nChannels;
+    }
+
+    private void encodePacket() throws IOException {
+        int n;
+        try {
+            n = enc.encode(pcm, 0, frameSize, packet, 0, packet.length);
+        } catch (OpusException ex) {
+            throw new IOException(ex.getMessage());
+        }
+        pcmPos = 0;
+        samplesEncoded += frameSize;
+        if (pagePackets == PACKETS_PER_PAGE || pageSegments + n / 255 + 1 > 255) {
+            writePage(samplesEncoded * granuleScale - frameSize * granuleScale, 0); //granule of the last packet in the page, not of this one
+        }
+        addPacket(packet, n);
+    }
+
+    private void addPacket(byte[] p, int len) {
+        //lacing: a run of 255s followed by the remainder (possibly 0)
+        int segs = len / 255;
+        for (int i = 0; i < segs; i++) {
+            lacing[pageSegments++] = (byte) 255;
+        }
+        lacing[pageSegments++] = (byte) (len % 255);
+        pageData.write(p, 0, len);
+        pagePackets++;
+    }
+
+    private void writePage(long granule, int flags) throws IOException {
+        byte[] data = pageData.toByteArray();
+        byte[] page = new byte[27 + pageSegments + data.length];
+        System.arraycopy("OggS".getBytes("ASCII"), 0, page, 0, 4);
+        page[4] = 0; //version
+        page[5] = (byte) flags;
+        for (int i = 0; i < 8; i++) {
+            page[6 + i] = (byte) (granule >> (8 * i));
+        }
+        for (int i = 0; i < 4; i++) {
+            page[14 + i] = (byte) (serial >> (8 * i));
+            page[18 + i] = (byte) (pageSeq >> (8 * i));
+        }
+        //22-25 is the CRC, computed below
+        page[26] = (byte) pageSegments;
+        System.arraycopy(lacing, 0, page, 27, pageSegments);
+        System.arraycopy(data, 0, page, 27 + pageSegments, data.length);
+        int crc = 0;
+        for (byte b : page) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ b) & 0xFF];
+        }
+        for (int i = 0; i < 4; i++) {
+            page[22 + i] = (byte) (crc >> (8 * i));
+        }
+        fos.write(page);
+        pageSeq++;
+        pagePackets = 0;
+        pageSegments = 0;
+        pageData.reset();
+    }
+
+    @Override
+    public void setVolume(float vol) {
+        this.vol = vol < 0 ? 0 : vol > 1 ? 1 : vol;
+    }
+
+    @Override
+    public float getVolume() {
+        return vol;
+    }
+
+    /**
+     *
+     * @return true if a packet couldn't be encoded or written to the file
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+}
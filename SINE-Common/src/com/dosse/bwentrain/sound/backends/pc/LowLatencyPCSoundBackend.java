@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.sound.backends.pc;
+
+import com.dosse.bwentrain.sound.ISoundDevice;
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Sound card backend with configurable latency.<br>
+ * write applies the volume and converts the samples to 16 bit in the same
+ * pass that stores them in a lock-free ring buffer of bufferSize frames, which
+ * is already in the sound card's format; a high priority feeder thread hands
+ * it to the sound card one period at a time, straight from the ring, without
+ * any further copy. The sound card's own buffer is only 2 periods long, total
+ * latency is therefore about bufferSize+2*period frames.<br>
+ * The feeder counts underruns (sound card ran out of samples while the
+ * renderer was still producing them), so buffer and period size can be tuned
+ * for each machine.<br>
+ * close returns when everything that was written has been played.
+ *
+ * @author dosse
+ */
+public class LowLatencyPCSoundBackend implements ISoundDevice {
+
+    public static final int DEFAULT_BUFFER_SIZE = 4096, DEFAULT_PERIOD_SIZE = 512; //in frames
+    private static final long PAUSE_THRESHOLD = 500000000L; //if the sound card runs out of samples for longer than this (in ns), the renderer was paused, not late, so it's not an underrun
+
+    private final SourceDataLine speaker;
+    private final float sampleRate;
+    private final int nChannels, periodSamples;
+    private float vol = 1;
+    private boolean closed = false, opened = false;
+
+    private final byte[] ring; //16 bit little endian samples
+    private final int ringSamples;
+    private volatile long writePos = 0, readPos = 0; //in samples. Only the producer writes writePos and only the feeder writes readPos
+    private volatile boolean producerParked = false, feederParked = false, closing = false;
+    private Thread producer, feeder;
+
+    //metrics
+    private volatile long underruns = 0;
+
+    /**
+     * creates a new backend with default buffer and period size
+     *
+     * @param sampleRate sample rate
+     * @param nChannels channels
+     * @throws Exception if the sound card can't be opened
+     */
+    public LowLatencyPCSoundBackend(float sampleRate, int nChannels) throws Exception {
+        this(sampleRate, nChannels, DEFAULT_BUFFER_SIZE, DEFAULT_PERIOD_SIZE);
+    }
+
+    /**
+     * creates a new backend
+     *
+     * @param sampleRate sample rate
+     * @param nChannels channels
+     * @param bufferSize size of the software buffer, in frames. Rounded up to a
+     * power of 2
+     * @param periodSize how many frames are sent to the sound card at a time.
+     * The sound card buffer is 2 periods long
+     * @throws Exception if the sound card can't be opened
+     */
+    public LowLatencyPCSoundBackend(float sampleRate, int nChannels, int bufferSize, int periodSize) throws Exception {
+        this.sampleRate = sampleRate;
+        this.nChannels = nChannels;
+        periodSize = periodSize < 16 ? 16 : periodSize;
+        bufferSize = bufferSize < periodSize ? periodSize : bufferSize;
+        ringSamples = (Integer.highestOneBit(bufferSize - 1) << 1) * nChannels;
+        ring = new byte[2 * ringSamples];
+        periodSamples = periodSize * nChannels;
+        try {
+            AudioFormat af = new AudioFormat(sampleRate, 16, nChannels, true, false);
+            speaker = (SourceDataLine) AudioSystem.getLine(new DataLine.Info(SourceDataLine.class, af));
+            speaker.open(af, 4 * periodSamples);
+        } catch (Throwable t) {
+            throw new Exception("Sound Device error");
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed || !opened) {
+            return;
+        }
+        closing = true;
+        LockSupport.unpark(feeder);
+        try {
+            feeder.join(); //the feeder stops when the ring is empty
+        } catch (InterruptedException ex) {
+        }
+        speaker.drain(); //play what's left in the sound card's buffer
+        speaker.close();
+        closed = true;
+    }
+
+    @Override
+    public void open() {
+        if (closed || opened) {
+            return;
+        }
+        speaker.start();
+        feeder = new Thread() {
+            @Override
+            public void run() {
+                feed();
+            }
+        };
+        feeder.setName("LowLatencyPCSoundBackend feeder");
+        feeder.setPriority(Thread.MAX_PRIORITY);
+        feeder.setDaemon(true);
+        feeder.start();
+        opened = true;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return nChannels;
+    }
+
+    @Override
+    public int getBitsPerSample() {
+        return 16;
+    }
+
+    @Override
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void write(float[] data) {
+        if (closing || !opened) {
+            return;
+        }
+        float v = vol * 32767;
+        for (int i = 0; i < data.length;) {
+            long w = writePos;
+            int free = (int) (ringSamples - (w - readPos));
+            if (free == 0) {
+                //ring is full, wait for the feeder
+                producer = Thread.currentThread();
+                producerParked = true;
+                while (ringSamples == w - readPos && !closing) {
+                    LockSupport.park(this);
+                }
+                producerParked = false;
+                if (closing) {
+                    return;
+                }
+                continue;
+            }
+            int start = (int) (w % ringSamples), n = Math.min(Math.min(free, data.length - i), ringSamples - start);
+            for (int j = 2 * start, end = i + n; i < end; i++) {
+                short s = (short) (data[i] * v);
+                ring[j++] = (byte) s;
+                ring[j++] = (byte) (s >> 8);
+            }
+            writePos = w + n;
+            if (feederParked) {
+                LockSupport.unpark(feeder);
+            }
+        }
+    }
+
+    private void feed() {
+        long periodNanos = (long) (1000000000.0 * (periodSamples / nChannels) / sampleRate);
+        long dryStart = 0; //when the sound card ran out of samples, 0 if it didn't
+        for (;;) {
+            long r = readPos;
+            int start = (int) (r % ringSamples), n = (int) Math.min(Math.min(writePos - r, periodSamples), ringSamples - start);
+            n -= n % nChannels; //only whole frames
+            if (n == 0) {
+                if (closing) {
+                    return; //everything was played
+                }
+                //nothing to play. If the sound card also ran out, it's either an underrun or the renderer is paused, we'll know when the samples come back
+                if (dryStart == 0 && r != 0 && speaker.available() >= speaker.getBufferSize()) {
+                    dryStart = System.nanoTime();
+                }
+                feederParked = true;
+                if (writePos - r < nChannels && !closing) {
+                    LockSupport.parkNanos(this, periodNanos / 4);
+                }
+                feederParked = false;
+                continue;
+            }
+            if (dryStart != 0) {
+                if (System.nanoTime() - dryStart < PAUSE_THRESHOLD) {
+                    underruns++;
+                }
+                dryStart = 0;
+            }
+            speaker.write(ring, 2 * start, 2 * n); //blocks until the sound card has room for it
+            readPos = r + n; //the producer can reuse that part of the ring only now
+            if (producerParked) {
+                LockSupport.unpark(producer);
+            }
+        }
+    }
+
+    @Override
+    public void setVolume(float vol) {
+        //applied when samples enter the ring, so it's heard after at most bufferSize frames
+        this.vol = vol < 0 ? 0 : vol > 1 ? 1 : vol;
+    }
+
+    @Override
+    public float getVolume() {
+        return vol;
+    }
+
+    /**
+     *
+     * @return number of times the sound card ran out of samples while the
+     * renderer was playing
+     */
+    public long getUnderrunCount() {
+        return underruns;
+    }
+
+    /**
+     *
+     * @return how full the software buffer is, 0-1
+     */
+    public float getFillLevel() {
+        return (float) (writePos - readPos) / (float) ringSamples;
+    }
+
+    /**
+     *
+     * @return time in seconds between a sample being written and it being
+     * played, with the buffers as full as they are now
+     */
+    public float getLatency() {
+        int queuedFrames = (int) (writePos - readPos) / nChannels + (speaker.getBufferSize() - speaker.available()) / (2 * nChannels);
+        return queuedFrames / sampleRate;
+    }
+
+    /**
+     *
+     * @return size of the software buffer in frames
+     */
+    public int getBufferSize() {
+        return ringSamples / nChannels;
+    }
+
+    /**
+     *
+     * @return size of a period in frames
+     */
+    public int getPeriodSize() {
+        return periodSamples / nChannels;
+    }
+}
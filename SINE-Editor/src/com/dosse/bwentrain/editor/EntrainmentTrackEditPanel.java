@@ -17,6 +17,7 @@
 package com.dosse.bwentrain.editor;
 
 import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.PresetLimits;
 import java.awt.Dimension;
 import java.awt.event.AdjustmentEvent;
 import java.awt.event.AdjustmentListener;
@@ -45,6 +46,7 @@ public abstract class EntrainmentTrackEditPanel extends JPanel implements IEdita
     private JSlider trackVol;
     protected int trackId;
     private float scale = 1f; //changed with mouse wheel
+    private boolean refreshing = false; //true while the slider is set from the preset, so that it's not taken as an edit
 
     private static final float MAX_SCALE = 8, MIN_SCALE = 0.125f;
     private static final int MIN_GRAPH_HEIGHT = (int) (150 * Main.SCALE), MAX_GRAPH_HEIGHT = (int) (350 * Main.SCALE);
@@ -76,14 +78,14 @@ public abstract class EntrainmentTrackEditPanel extends JPanel implements IEdita
                 EntrainmentTrackEditPanel.this.onEdit();
             }
         };
-        baseF = new Graph(p, n, Graph.ENV_BASE_FREQUENCY, Main.MAX_BASE_FREQUENCY, -1) {
+        baseF = new Graph(p, n, Graph.ENV_BASE_FREQUENCY, PresetLimits.MAX_BASE_FREQUENCY, -1) {
 
             @Override
             public void onEdit() {
                 EntrainmentTrackEditPanel.this.onEdit();
             }
         };
-        entF = new Graph(p, n, Graph.ENV_ENTRAINMENT_FREQUENCY, Main.MAX_ENTRAINMENT_FREQUENCY, -1) {
+        entF = new Graph(p, n, Graph.ENV_ENTRAINMENT_FREQUENCY, PresetLimits.MAX_ENTRAINMENT_FREQUENCY, -1) {
             @Override
             public void onEdit() {
                 EntrainmentTrackEditPanel.this.onEdit();
@@ -136,6 +138,9 @@ public abstract class EntrainmentTrackEditPanel extends JPanel implements IEdita
 
             @Override
             public void stateChanged(ChangeEvent e) {
+                if (refreshing) {
+                    return;
+                }
                 p.getEntrainmentTrack(n).setTrackVolume((float) trackVol.getValue() / (float) (trackVol.getMaximum()));
                 trackVolValue.setText("" + (int) (p.getEntrainmentTrack(n).getTrackVolume() * 100) + "%");
                 if (!trackVol.getValueIsAdjusting()) {
@@ -267,6 +272,12 @@ public abstract class EntrainmentTrackEditPanel extends JPanel implements IEdita
     }
 
     public void forceLayoutUpdate() {
+        int v = (int) (vol.getPreset().getEntrainmentTrack(trackId).getTrackVolume() * trackVol.getMaximum());
+        if (trackVol.getValue() != v) { //changed by undo/redo
+            refreshing = true;
+            trackVol.setValue(v);
+            refreshing = false;
+        }
         fixupLayout();
         vol.repaint();
         baseF.repaint();
@@ -16,11 +16,14 @@
  */
 package com.dosse.bwentrain.editor;
 
+import com.dosse.bwentrain.cache.ExportCache;
 import com.dosse.bwentrain.core.Preset;
 import com.dosse.bwentrain.renderers.IRenderer;
 import com.dosse.bwentrain.renderers.isochronic.IsochronicRenderer;
+import com.dosse.bwentrain.sound.AsyncSoundDevice;
 import com.dosse.bwentrain.sound.backends.flac.FLACFileSoundBackend;
 import com.dosse.bwentrain.sound.backends.mp3.MP3FileSoundBackend;
+import com.dosse.bwentrain.sound.backends.opus.OggOpusFileSoundBackend;
 import com.dosse.bwentrain.sound.backends.wav.WavFileSoundBackend;
 import java.awt.KeyEventDispatcher;
 import java.awt.KeyboardFocusManager;
@@ -32,6 +35,7 @@ import java.awt.event.KeyEvent;
 import java.io.File;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 import javax.swing.filechooser.FileFilter;
 
@@ -47,6 +51,7 @@ public class ExportDialog extends javax.swing.JDialog {
     private Preset p;
     private File x;
     private FileFilter f;
+    private String cacheKey = null; //key of this export in the export cache
 
     private Timer t; //timer used to update the progress bar
 
@@ -80,6 +85,19 @@ public class ExportDialog extends javax.swing.JDialog {
                         ren = null;
                         t.stop();
                         dispose();
+                        if (cacheKey != null) {
+                            //keep a copy, in case the same preset is exported again
+                            new Thread() {
+                                @Override
+                                public void run() {
+                                    try {
+                                        ExportCache.getDefault().store(cacheKey, ExportDialog.this.x);
+                                    } catch (Exception e) {
+                                        //not cached, not a problem
+                                    }
+                                }
+                            }.start();
+                        }
                     }
                 }
             }
@@ -219,24 +237,73 @@ public class ExportDialog extends javax.swing.JDialog {
     }// </editor-fold>//GEN-END:initComponents
 
     private void exportActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_exportActionPerformed
+        export.setEnabled(false);
+        loopN.setEnabled(false);
+        jLabel7.setEnabled(false);
+        jLabel8.setEnabled(false);
+        final int loops = p.loops() ? (Integer) (loopN.getValue()) : -1;
+        new Thread() { //hashing the preset and copying a file from the cache take a while, keep them off the event thread
+            @Override
+            public void run() {
+                String key;
+                boolean cached;
+                try {
+                    key = ExportCache.key(p, loops, f == Main.OPUS_FILE_FILTER ? 48000 : 44100, 1, f == Main.MP3_FILE_FILTER ? "mp3-96" : f == Main.FLAC_FILE_FILTER ? "flac" : f == Main.WAV_FILE_FILTER ? "wav" : "opus-32");
+                    cached = ExportCache.getDefault().fetch(key, x, false);
+                } catch (Throwable ex) {
+                    key = null;
+                    cached = false;
+                }
+                final String k = key;
+                final boolean c = cached;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isDisplayable()) { //cancelled while looking in the cache
+                            if (c) {
+                                x.delete();
+                            }
+                            return;
+                        }
+                        if (c) {
+                            //same as a previous export, no need to render it
+                            t.stop();
+                            dispose();
+                        } else {
+                            cacheKey = k;
+                            render(loops);
+                        }
+                    }
+                });
+            }
+        }.start();
+    }//GEN-LAST:event_exportActionPerformed
+
+    //starts rendering the preset to x
+    private void render(int loops) {
         try {
             if (f == Main.MP3_FILE_FILTER) {
-                ren = new IsochronicRenderer(p, new MP3FileSoundBackend(x.getAbsolutePath(), 44100, 1, 96), p.loops() ? (Integer) (loopN.getValue()) : -1);
+                ren = new IsochronicRenderer(p, new AsyncSoundDevice(new MP3FileSoundBackend(x.getAbsolutePath(), 44100, 1, 96)), loops);
             }
             if (f == Main.FLAC_FILE_FILTER) {
-                ren = new IsochronicRenderer(p, new FLACFileSoundBackend(x.getAbsolutePath(), 44100, 1), p.loops() ? (Integer) (loopN.getValue()) : -1);
+                ren = new IsochronicRenderer(p, new AsyncSoundDevice(new FLACFileSoundBackend(x.getAbsolutePath(), 44100, 1)), loops);
             }
             if (f == Main.WAV_FILE_FILTER) {
-                ren = new IsochronicRenderer(p, new WavFileSoundBackend(x.getAbsolutePath(), 44100, 1), p.loops() ? (Integer) (loopN.getValue()) : -1);
+                ren = new IsochronicRenderer(p, new AsyncSoundDevice(new WavFileSoundBackend(x.getAbsolutePath(), 44100, 1)), loops);
+            }
+            if (f == Main.OPUS_FILE_FILTER) {
+                ren = new IsochronicRenderer(p, new AsyncSoundDevice(new OggOpusFileSoundBackend(x.getAbsolutePath(), 48000, 1, 32)), loops); //opus doesn't support 44100Hz
             }
-            export.setEnabled(false);
-            loopN.setEnabled(false);
-            jLabel7.setEnabled(false);
-            jLabel8.setEnabled(false);
             ren.play();
         } catch (Throwable ex) {
+            //can't create the file, let the user try again or cancel
+            ren = null;
+            export.setEnabled(true);
+            loopN.setEnabled(true);
+            jLabel7.setEnabled(true);
+            jLabel8.setEnabled(true);
         }
-    }//GEN-LAST:event_exportActionPerformed
+    }
 
     private void cancelActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cancelActionPerformed
         if (ren != null) {
@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.editor;
+
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.PresetLoader;
+import com.dosse.bwentrain.io.PresetReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the changes made to a preset, used to recover them
+ * if the editor is not closed properly.<br>
+ * After each edit, the preset is compared with what the journal already
+ * contains and only the differences are written (points replaced in an
+ * envelope, a track added, cloned or removed, a new length, ...) by a
+ * background thread. Replaying the journal onto the last saved file (or onto
+ * the snapshot at its start, for presets that were never saved) gives back the
+ * preset. When it grows too much, the journal is compacted into a single
+ * snapshot; it's deleted when the preset is saved or the editor is closed.<br>
+ * Journals are kept in DEFAULT_DIR, each one locked by the editor that's
+ * writing it, so the ones left behind by a crash can be told apart.<br>
+ * Except for the writer thread, a journal must only be used by one thread (the
+ * EDT).
+ *
+ * @author dosse
+ */
+public class Journal {
+
+    public static final File DEFAULT_DIR = new File(System.getProperty("user.home"), ".sine" + File.separator + "journal");
+    private static final String EXTENSION = ".journal";
+    private static final long COMPACT_SIZE = 4 * 1048576; //compact when this many bytes were added, or twice the size of the last snapshot if it's bigger
+
+    //each record is stored as length, type+data, crc32 of type+data. the types are the ones of PresetDelta, plus this one
+    private static final byte BASE = 0;
+
+    private final File dir;
+    private final ExecutorService writer;
+    private Preset mirror; //what replaying the journal gives
+    private String basePath; //last saved file, null if the preset was never saved
+    private long baseModified, baseSize; //used to make sure that the last saved file is still the same when the journal is replayed
+    private boolean headerWritten;
+    private long appended; //bytes written since the last compaction
+    //only used by the writer thread
+    private File file;
+    private FileOutputStream out;
+    private FileLock lock;
+    private volatile long snapshotSize = 0;
+    private volatile boolean failed = false;
+
+    /**
+     * creates a new journal. nothing is written until the first change
+     *
+     * @param dir folder where journals are kept
+     */
+    public Journal(File dir) {
+        this.dir = dir;
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Journal writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * starts a new journal, discarding the previous one. Call this when a
+     * preset is created, loaded or saved
+     *
+     * @param p preset, as it is now
+     * @param base file where it's saved, null if it was never saved
+     */
+    public void start(Preset p, File base) {
+        try {
+            mirror = PresetLoader.copy(p);
+        } catch (Throwable t) {
+            mirror = null; //can't keep a journal for this preset
+        }
+        basePath = base == null ? null : base.getAbsolutePath();
+        baseModified = base == null ? 0 : base.lastModified();
+        baseSize = base == null ? 0 : base.length();
+        headerWritten = false;
+        appended = 0;
+        writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                closeFile(true);
+            }
+        });
+    }
+
+    /**
+     * writes the changes made to a preset since the last call (or since start)
+     *
+     * @param p preset, as it is now
+     */
+    public void record(Preset p) {
+        if (mirror == null || failed) {
+            return;
+        }
+        try {
+            byte[] before = headerWritten || basePath != null ? null : PresetDelta.toSnapshot(mirror); //where a journal for a preset that was never saved starts from
+            List<byte[]> changes = PresetDelta.diff(mirror, p, null); //mirror is now the same as p
+            if (changes.isEmpty()) {
+                return;
+            }
+            if (!headerWritten) {
+                //the first record of a journal says where to start from
+                PresetDelta.Record h = new PresetDelta.Record(BASE);
+                PresetDelta.writeString(h, basePath == null ? "" : basePath);
+                h.writeLong(baseModified);
+                h.writeLong(baseSize);
+                append(h.toByteArray());
+                if (before != null) {
+                    append(before);
+                }
+                headerWritten = true;
+            }
+            for (byte[] r : changes) {
+                append(r);
+            }
+        } catch (Throwable t) {
+            //the journal doesn't match the preset anymore, stop writing it
+            mirror = null;
+            return;
+        }
+        if (appended > Math.max(COMPACT_SIZE, 2 * snapshotSize)) {
+            compact();
+        }
+    }
+
+    //sends a record to the writer thread
+    private void append(byte[] body) {
+        final byte[] framed = frame(body);
+        appended += framed.length;
+        writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                write(framed);
+            }
+        });
+    }
+
+    private static byte[] frame(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        byte[] framed = new byte[body.length + 8];
+        int c = (int) crc.getValue();
+        for (int i = 0; i < 4; i++) {
+            framed[i] = (byte) (body.length >>> (24 - 8 * i));
+            framed[body.length + 4 + i] = (byte) (c >>> (24 - 8 * i));
+        }
+        System.arraycopy(body, 0, framed, 4, body.length);
+        return framed;
+    }
+
+    //rewrites the journal as a single snapshot of the preset, in the background
+    private void compact() {
+        final Preset p;
+        try {
+            p = PresetLoader.copy(mirror);
+        } catch (Throwable t) {
+            return;
+        }
+        final String path = basePath;
+        final long modified = baseModified, size = baseSize;
+        appended = 0;
+        writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (file == null || failed) {
+                    return;
+                }
+                File tmp = new File(file.getPath() + ".tmp");
+                try {
+                    PresetDelta.Record h = new PresetDelta.Record(BASE);
+                    PresetDelta.writeString(h, path == null ? "" : path);
+                    h.writeLong(modified);
+                    h.writeLong(size);
+                    byte[] a = frame(h.toByteArray()), b = frame(PresetDelta.toSnapshot(p));
+                    try (FileOutputStream o = new FileOutputStream(tmp)) {
+                        o.write(a);
+                        o.write(b);
+                    }
+                    snapshotSize = b.length;
+                    File f = file;
+                    closeFile(false);
+                    Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    openFile(f);
+                } catch (Throwable t) {
+                    tmp.delete();
+                    if (file == null) {
+                        failed = true; //the old journal was closed and can't be opened again
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * deletes the journal and stops the writer thread. Call this when the
+     * editor is closed normally
+     */
+    public void close() {
+        writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                closeFile(true);
+            }
+        });
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    //writer thread: appends a record, creating the journal if needed
+    private void write(byte[] framed) {
+        if (failed) {
+            return;
+        }
+        try {
+            if (file == null) {
+                dir.mkdirs();
+                openFile(File.createTempFile("editor", EXTENSION, dir));
+            }
+            out.write(framed);
+        } catch (Throwable t) {
+            //can't write the journal, give up
+            failed = true;
+            closeFile(true);
+        }
+    }
+
+    //writer thread
+    private void openFile(File f) throws IOException {
+        out = new FileOutputStream(f, true);
+        file = f;
+        lock = out.getChannel().tryLock();
+        if (lock == null) {
+            out.close();
+            out = null;
+            file = null;
+            throw new IOException("Journal in use");
+        }
+    }
+
+    //writer thread
+    private void closeFile(boolean delete) {
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (out != null) {
+                out.close();
+            }
+        } catch (Throwable t) {
+        }
+        if (delete && file != null) {
+            file.delete();
+        }
+        lock = null;
+        out = null;
+        file = null;
+    }
+
+    /**
+     * finds the journals left behind by editors that weren't closed properly
+     *
+     * @param dir folder where journals are kept
+     * @return journals that are not being written, most recent first
+     */
+    public static List<File> findOrphans(File dir) {
+        List<File> l = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return l;
+        }
+        for (File f : files) {
+            if (!f.isFile() || !f.getName().endsWith(EXTENSION)) {
+                continue;
+            }
+            try (FileOutputStream o = new FileOutputStream(f, true); FileLock lk = o.getChannel().tryLock()) {
+                if (lk != null) {
+                    l.add(f);
+                }
+            } catch (Throwable t) {
+                //locked by this editor
+            }
+        }
+        Collections.sort(l, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(b.lastModified(), a.lastModified());
+            }
+        });
+        return l;
+    }
+
+    /**
+     * replays a journal left behind by a crash and continues writing it,
+     * discarding the current one
+     *
+     * @param f journal
+     * @return the recovered preset, or null if another editor is recovering
+     * it
+     * @throws Exception if the journal can't be replayed, for instance because
+     * the file it starts from was modified
+     */
+    public Preset recover(final File f) throws Exception {
+        final Replay r = replay(f);
+        boolean locked = writer.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                closeFile(true);
+                try {
+                    openFile(f);
+                    out.getChannel().truncate(r.length); //the last record may be incomplete
+                    return true;
+                } catch (Throwable t) {
+                    closeFile(false);
+                    return false;
+                }
+            }
+        }).get();
+        if (!locked) {
+            return null;
+        }
+        mirror = r.preset;
+        basePath = r.basePath;
+        baseModified = r.baseModified;
+        baseSize = r.baseSize;
+        headerWritten = true;
+        appended = r.length;
+        return PresetLoader.copy(mirror);
+    }
+
+    /**
+     *
+     * @return file the preset was last saved to, null if it was never saved
+     */
+    public File getBase() {
+        return basePath == null ? null : new File(basePath);
+    }
+
+    private static class Replay {
+
+        private Preset preset;
+        private String basePath;
+        private long baseModified, baseSize, length;
+    }
+
+    private static Replay replay(File f) throws Exception {
+        Replay r = new Replay();
+        long size = f.length();
+        boolean first = true;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            for (;;) {
+                byte[] body;
+                try {
+                    int n = in.readInt();
+                    if (n < 1 || n > size - r.length - 8) {
+                        break; //incomplete
+                    }
+                    body = new byte[n];
+                    in.readFully(body);
+                    int c = in.readInt();
+                    CRC32 crc = new CRC32();
+                    crc.update(body);
+                    if (c != (int) crc.getValue()) {
+                        break; //written partially
+                    }
+                } catch (EOFException e) {
+                    break; //the editor crashed while writing the last record
+                }
+                if (first != (body[0] == BASE)) {
+                    throw new Exception("Invalid journal");
+                }
+                if (first) {
+                    DataInputStream b = new DataInputStream(new ByteArrayInputStream(body, 1, body.length - 1));
+                    String path = PresetDelta.readString(b);
+                    r.basePath = path.isEmpty() ? null : path;
+                    r.baseModified = b.readLong();
+                    r.baseSize = b.readLong();
+                    first = false;
+                } else {
+                    if (r.preset == null && body[0] != PresetDelta.SNAPSHOT) {
+                        //the first change, start from the saved file
+                        File base = r.basePath == null ? null : new File(r.basePath);
+                        if (base == null || !base.isFile() || base.lastModified() != r.baseModified || base.length() != r.baseSize) {
+                            throw new Exception("Saved file missing or modified");
+                        }
+                        r.preset = PresetReader.read(base);
+                    }
+                    r.preset = PresetDelta.apply(r.preset, body);
+                }
+                r.length += body.length + 8;
+            }
+        }
+        if (r.preset == null) {
+            throw new Exception("Nothing to recover");
+        }
+        return r;
+    }
+}
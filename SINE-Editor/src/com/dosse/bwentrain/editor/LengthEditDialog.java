@@ -17,6 +17,7 @@
 package com.dosse.bwentrain.editor;
 
 import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.PresetLimits;
 import java.awt.KeyEventDispatcher;
 import java.awt.KeyboardFocusManager;
 import java.awt.MouseInfo;
@@ -263,7 +264,7 @@ public class LengthEditDialog extends javax.swing.JDialog {
 
     private void confirmActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_confirmActionPerformed
         float newLen = ((Integer) h.getValue()) * 3600 + ((Integer) m.getValue()) * 60 + (Integer) s.getValue();
-        if (newLen < 10) {
+        if (newLen < PresetLimits.MIN_LENGTH) {
             JOptionPane.showMessageDialog(rootPane, Utils.getLocString("INVALID_LENGTH"), getTitle(), JOptionPane.ERROR_MESSAGE);
             return;
         }
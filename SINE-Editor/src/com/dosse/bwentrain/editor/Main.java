@@ -20,15 +20,19 @@ import com.dosse.binaural.HBXConverter;
 import com.dosse.bwentrain.core.EntrainmentTrack;
 import com.dosse.bwentrain.core.Envelope;
 import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.BinaryPreset;
+import com.dosse.bwentrain.io.PresetLimits;
+import com.dosse.bwentrain.io.PresetLoader;
+import com.dosse.bwentrain.io.PresetWriter;
+import java.awt.Cursor;
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.Font;
 import java.awt.KeyEventDispatcher;
 import java.awt.KeyboardFocusManager;
 import java.awt.Toolkit;
 import java.awt.event.KeyEvent;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
@@ -44,11 +48,6 @@ import javax.swing.plaf.ColorUIResource;
 import javax.swing.plaf.FontUIResource;
 import javax.swing.plaf.metal.MetalLookAndFeel;
 import javax.swing.plaf.metal.MetalTheme;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.xml.sax.InputSource;
 
 /**
  * the editor main class. start reading the code from here.
@@ -90,47 +89,72 @@ public class Main extends javax.swing.JFrame {
     private DetailsEditPanel detailsEdit; //editor for preset details
     private int selection; //currently selected EntrainmentTrack or -1 if none is selected
     private boolean modified = false; //used to show the "you will lose all unsaved changes" message only when needed
+    private final Journal journal = new Journal(Journal.DEFAULT_DIR); //changes that weren't saved yet, recovered if the editor crashes
 
     /**
      * begin undo stack implementation
      */
-    private List<Preset> undoStack = new ArrayList<Preset>();
-    private int undoStackPointer = 0;
+    private static final long UNDO_MEMORY = 64 * 1048576; //the oldest edits are forgotten when the undo history takes more than this many bytes
+    private final UndoHistory undoHistory = new UndoHistory(UNDO_MEMORY); //each edit is kept as the changes that redo and undo it, not as a copy of the preset
 
     private void undo() {
-        int sel = list.getSelectedIndex();
-        loadPreset(undoStack.get(--undoStackPointer - 1).clone());
-        list.setSelectedIndex(sel == listModel.getSize() ? sel - 1 : sel);
-        undo.setEnabled(undoStackPointer > 1);
-        redo.setEnabled(true);
-        modified = true;
+        int tracks = preset.getEntrainmentTrackCount();
+        afterUndoRedo(undoHistory.undo(preset), tracks); //only what was changed by the edit is modified
     }
 
     private void redo() {
-        int sel = list.getSelectedIndex();
-        loadPreset(undoStack.get(undoStackPointer++).clone());
-        list.setSelectedIndex(sel == listModel.getSize() ? sel - 1 : sel);
-        undo.setEnabled(true);
-        redo.setEnabled(undoStackPointer < undoStack.size());
+        int tracks = preset.getEntrainmentTrackCount();
+        afterUndoRedo(undoHistory.redo(preset), tracks);
+    }
+
+    //updates the panels of what was changed by undo/redo. they're created again only if tracks were added or removed
+    private void afterUndoRedo(List<byte[]> records, int tracks) {
+        boolean reload = records == null || preset.getEntrainmentTrackCount() != tracks;
+        if (!reload) {
+            for (byte[] r : records) {
+                int target = PresetDelta.target(r);
+                if (target == PresetDelta.TARGET_TRACKS) {
+                    reload = true; //a track was removed and another one added, the panels of the old one can't be reused
+                    break;
+                } else if (target == PresetDelta.TARGET_ALL) {
+                    detailsEdit.forceLayoutUpdate();
+                    noiseEdit.forceLayoutUpdate();
+                    for (EntrainmentTrackEditPanel e : etEditors) {
+                        e.forceLayoutUpdate();
+                    }
+                } else if (target == PresetDelta.TARGET_DETAILS) {
+                    detailsEdit.forceLayoutUpdate();
+                } else if (target == PresetDelta.TARGET_NOISE) {
+                    noiseEdit.forceLayoutUpdate();
+                } else if (target >= 0 && target < etEditors.size()) {
+                    etEditors.get(target).forceLayoutUpdate();
+                }
+            }
+        }
+        if (reload) {
+            int sel = list.getSelectedIndex();
+            loadPreset(preset);
+            list.setSelectedIndex(sel == listModel.getSize() ? sel - 1 : sel);
+        } else {
+            updatePlayer();
+        }
+        undo.setEnabled(undoHistory.canUndo());
+        redo.setEnabled(undoHistory.canRedo());
         modified = true;
+        journal.record(preset);
     }
 
     private void saveToUndoStack() {
-        if (undoStackPointer > 0 && preset.equals(undoStack.get(undoStackPointer - 1))) {
+        if (!undoHistory.record(preset)) {
             return; //nothing has changed from the previous save
         }
-        while (undoStack.size() > undoStackPointer) {
-            undoStack.remove(undoStackPointer);
-        }
-        undoStack.add(preset.clone());
-        undoStackPointer++;
-        undo.setEnabled(undoStackPointer > 1);
+        journal.record(preset); //only what changed since the last edit is written
+        undo.setEnabled(undoHistory.canUndo());
         redo.setEnabled(false);
     }
 
     private void clearUndoStack() {
-        undoStack.clear();
-        undoStackPointer = 0;
+        undoHistory.clear();
         undo.setEnabled(false);
         redo.setEnabled(false);
     }
@@ -173,6 +197,19 @@ public class Main extends javax.swing.JFrame {
             return Utils.getLocString("MAIN_WAV_FILE_DESCRIPTION");
         }
     };
+    //file filter for opus files, used when exporting a preset
+    public static final FileFilter OPUS_FILE_FILTER = new FileFilter() {
+
+        @Override
+        public boolean accept(File f) {
+            return f.isDirectory() || f.getName().toLowerCase().endsWith(".opus") || f.getName().toLowerCase().endsWith(".ogg");
+        }
+
+        @Override
+        public String getDescription() {
+            return Utils.getLocString("MAIN_OPUS_FILE_DESCRIPTION");
+        }
+    };
     //file filter for mp3 files, used when exporting a preset
     public static final FileFilter MP3_FILE_FILTER = new FileFilter() {
 
@@ -192,7 +229,7 @@ public class Main extends javax.swing.JFrame {
 
         @Override
         public boolean accept(File f) {
-            return f.isDirectory() || f.getName().toLowerCase().endsWith(".sin");
+            return f.isDirectory() || BinaryPreset.isPresetName(f.getName());
         }
 
         @Override
@@ -222,9 +259,6 @@ public class Main extends javax.swing.JFrame {
 
     private static final int COMPLEXITY_1 = 500, COMPLEXITY_2 = 1000, COMPLEXITY_3 = 2000, COMPLEXITY_4 = 6000; //levels of complexity from lowest to highest
 
-    public static final float MAX_BASE_FREQUENCY = 1500, //editor limitations
-            MAX_ENTRAINMENT_FREQUENCY = 40;
-
     /**
      * Creates new form Main
      */
@@ -276,6 +310,7 @@ public class Main extends javax.swing.JFrame {
         saveToUndoStack();
         lastFile = null; //disable quick saving (we're not working on a file)
         modified = false;
+        journal.start(preset, null);
     }
 
     /**
@@ -284,24 +319,42 @@ public class Main extends javax.swing.JFrame {
      * @param x file to load
      */
     private void loadPreset(File x) {
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        //loads and does a lot of checks in the background, if another file is opened in the meantime this one is forgotten
+        PresetLoader.getDefault().loadLatest(x, new PresetLoader.Callback() {
+            @Override
+            public void loaded(final File f, final Preset p) {
+                EventQueue.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        setCursor(Cursor.getDefaultCursor());
+                        presetLoaded(f, p, null);
+                    }
+                });
+            }
+
+            @Override
+            public void failed(final File f, final Throwable t) {
+                EventQueue.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        setCursor(Cursor.getDefaultCursor());
+                        presetLoaded(f, null, t);
+                    }
+                });
+            }
+        });
+    }
+
+    //checks a preset loaded from x and shows it in the editor. if p is null, loadError is why it couldn't be loaded
+    private void presetLoaded(File x, Preset p, Throwable loadError) {
         try {
-            Preset p;
-            try {
-                //read XML document
-                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-                factory.setIgnoringComments(true);
-                factory.setIgnoringElementContentWhitespace(true);
-                factory.setValidating(false);
-                DocumentBuilder builder = factory.newDocumentBuilder();
-                Document doc = builder.parse(new InputSource(x.getAbsolutePath()));
-                Element e = doc.getDocumentElement();
-                p = new Preset(e); //loads and does a lot of checks
-            } catch (Throwable t) {
-                throw new Exception(Utils.getLocString("MAIN_ERROR_INVALID_PRESET") + ": " + t);
+            if (p == null) {
+                throw new Exception(Utils.getLocString("MAIN_ERROR_INVALID_PRESET") + ": " + loadError);
             }
             try {
                 //check for editor compatibility
-                if (p.getLength() < 10 || p.getLength() >= 36000) { //too short or too long (10 seconds to 9:59:59)
+                if (p.getLength() < PresetLimits.MIN_LENGTH || p.getLength() >= PresetLimits.MAX_LENGTH) { //too short or too long
                     throw new Exception();
                 }
                 Envelope noise = p.getNoiseEnvelope();
@@ -314,12 +367,12 @@ public class Main extends javax.swing.JFrame {
                     EntrainmentTrack et = p.getEntrainmentTrack(t);
                     Envelope vol = et.getVolumeEnvelope(), baseF = et.getBaseFrequencyEnvelope(), ent = et.getEntrainmentFrequencyEnvelope();
                     for (int i = 0; i < baseF.getPointCount(); i++) {
-                        if (baseF.getVal(i) < 0 || baseF.getVal(i) > MAX_BASE_FREQUENCY) { //invalid base frequencies
+                        if (baseF.getVal(i) < 0 || baseF.getVal(i) > PresetLimits.MAX_BASE_FREQUENCY) { //invalid base frequencies
                             throw new Exception();
                         }
                     }
                     for (int i = 0; i < ent.getPointCount(); i++) {
-                        if (ent.getVal(i) < 0 || ent.getVal(i) > MAX_ENTRAINMENT_FREQUENCY) { //invalid entrainment frequencies
+                        if (ent.getVal(i) < 0 || ent.getVal(i) > PresetLimits.MAX_ENTRAINMENT_FREQUENCY) { //invalid entrainment frequencies
                             throw new Exception();
                         }
                     }
@@ -338,6 +391,7 @@ public class Main extends javax.swing.JFrame {
                 clearUndoStack();
                 saveToUndoStack();
                 lastFile = x; //we're editing a preset saved on a file, activate quick saving
+                journal.start(preset, x);
             } catch (Throwable t) {
                 //something went wrong
                 throw new Exception(Utils.getLocString("MAIN_ERROR_UNSUPPORTED_FEATURES"));
@@ -348,6 +402,34 @@ public class Main extends javax.swing.JFrame {
         }
     }
 
+    //offers to recover the changes that weren't saved when the editor crashed. returns true if a preset was recovered
+    private boolean recoverJournal() {
+        for (File f : Journal.findOrphans(Journal.DEFAULT_DIR)) {
+            Preset p;
+            try {
+                p = journal.recover(f);
+            } catch (Throwable t) {
+                f.delete(); //can't be recovered, for instance because the file was modified after the crash
+                continue;
+            }
+            if (p == null) {
+                continue; //another editor is recovering it
+            }
+            File base = journal.getBase();
+            int sel = JOptionPane.showConfirmDialog(rootPane, Utils.getLocString("MAIN_RECOVER_JOURNAL") + "\n" + (base == null ? p.getTitle() : base.getPath()), getTitle(), JOptionPane.YES_NO_OPTION);
+            if (sel == JOptionPane.YES_OPTION) {
+                loadPreset(p);
+                modified = true;
+                clearUndoStack();
+                saveToUndoStack();
+                lastFile = base;
+                return true;
+            }
+            journal.start(preset, null); //discards the recovered journal
+        }
+        return false;
+    }
+
     /**
      * load preset instance in the editor WITHOUT CLONING IT!
      *
@@ -870,7 +952,7 @@ public class Main extends javax.swing.JFrame {
         if (x == null) { //no file selected
             return;
         }
-        if (!x.getName().toLowerCase().endsWith(".sin")) { //must add extension
+        if (!BinaryPreset.isPresetName(x.getName())) { //must add extension
             x = new File(x.getAbsolutePath() + ".sin");
         }
         if (x.exists()) { //overwrite?
@@ -888,11 +970,13 @@ public class Main extends javax.swing.JFrame {
     }//GEN-LAST:event_saveAsActionPerformed
     private void savePreset(File x) {
         try {
-            BufferedWriter out = new BufferedWriter(new FileWriter(x));
-            out.write(preset.toString() + "\n"); //write preset as xml
-            out.flush();
-            out.close();
+            if (x.getName().toLowerCase().endsWith(BinaryPreset.EXTENSION)) {
+                BinaryPreset.save(preset, x, false); //write preset as sinb
+            } else {
+                PresetWriter.save(preset, x); //write preset as xml
+            }
             modified = false;
+            journal.start(preset, x); //the journal starts again from the saved file
         } catch (Throwable t) {
             //something went wrong, show error
             JOptionPane.showMessageDialog(rootPane, Utils.getLocString("MAIN_SAVE_FAIL") + ": " + t.toString(), getTitle(), JOptionPane.ERROR_MESSAGE);
@@ -900,6 +984,7 @@ public class Main extends javax.swing.JFrame {
     }
     private void formWindowClosing(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_formWindowClosing
         if (showLoseAllUnsavedChangesDialog()) {
+            journal.close(); //closed normally, nothing to recover
             System.exit(0);
         }
     }//GEN-LAST:event_formWindowClosing
@@ -996,6 +1081,7 @@ public class Main extends javax.swing.JFrame {
             modified = true;
             clearUndoStack();
             saveToUndoStack();
+            journal.start(preset, null);
         } catch (Throwable t) {
             JOptionPane.showMessageDialog(rootPane, Utils.getLocString("MAIN_ERROR_INVALID_PRESET") + ": " + t.getMessage(), getTitle(), JOptionPane.ERROR_MESSAGE);
         }
@@ -1025,6 +1111,7 @@ public class Main extends javax.swing.JFrame {
         c.addChoosableFileFilter(MP3_FILE_FILTER);
         c.addChoosableFileFilter(FLAC_FILE_FILTER);
         c.addChoosableFileFilter(WAV_FILE_FILTER);
+        c.addChoosableFileFilter(OPUS_FILE_FILTER);
         c.showSaveDialog(this);
         File x = c.getSelectedFile();
         if (x == null) {
@@ -1039,6 +1126,9 @@ public class Main extends javax.swing.JFrame {
         if (c.getFileFilter() == Main.WAV_FILE_FILTER && !x.getName().toLowerCase().endsWith(".wav")) {
             x = new File(x.getAbsolutePath() + ".wav");
         }
+        if (c.getFileFilter() == Main.OPUS_FILE_FILTER && !x.getName().toLowerCase().endsWith(".opus") && !x.getName().toLowerCase().endsWith(".ogg")) {
+            x = new File(x.getAbsolutePath() + ".opus");
+        }
         if (x.exists()) { //overwrite?
             int sel = JOptionPane.showConfirmDialog(rootPane, Utils.getLocString("MAIN_CONFIRM_OVERWRITE"), getTitle(), JOptionPane.YES_NO_OPTION);
             if (sel == -1) {
@@ -1161,6 +1251,9 @@ public class Main extends javax.swing.JFrame {
         Locale.setDefault(Locale.Category.FORMAT, Locale.ENGLISH); //allows using the dot instead of the comma when inputting numbers
         Main e = new Main();
         e.setVisible(true);
+        if (e.recoverJournal()) {
+            return; //the recovered preset is more important than the one on the command line
+        }
         if (args.length == 1) { //if a file was specified via command line parameter, load it
             e.loadPreset(new File(args[0]));
         }
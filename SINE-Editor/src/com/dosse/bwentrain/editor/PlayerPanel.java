@@ -19,7 +19,8 @@ package com.dosse.bwentrain.editor;
 import com.dosse.bwentrain.core.Preset;
 import com.dosse.bwentrain.renderers.IRenderer;
 import com.dosse.bwentrain.renderers.isochronic.IsochronicRenderer;
-import com.dosse.bwentrain.sound.backends.pc.PCSoundBackend;
+import com.dosse.bwentrain.sound.ISoundDevice;
+import com.dosse.bwentrain.sound.backends.pc.LowLatencyPCSoundBackend;
 import java.awt.Color;
 import java.awt.Image;
 import java.awt.event.ActionEvent;
@@ -45,6 +46,13 @@ public class PlayerPanel extends javax.swing.JPanel {
             rewindIcon=new ImageIcon(Utils.loadUnscaled("/com/dosse/bwentrain/editor/images/rewind.png").getImage().getScaledInstance((int)Main.TEXT_SIZE, (int)Main.TEXT_SIZE, Image.SCALE_SMOOTH));
 
     public void setPreset(Preset p) {
+        if (player instanceof PreviewRenderer && !player.isClosed()) {
+            try {
+                ((PreviewRenderer) player).setPreset(p); //swapped in while it's playing, without opening the sound card again
+                return;
+            } catch (Throwable err) {
+            }
+        }
         Float time = null, vol = null;
         Boolean playing=null;
         try {
@@ -57,7 +65,12 @@ public class PlayerPanel extends javax.swing.JPanel {
         } catch (Throwable err) {
         }
         try {
-            player = new IsochronicRenderer(p.clone(), new PCSoundBackend(44100, 1), -1);
+            ISoundDevice dev = new LowLatencyPCSoundBackend(44100, 1);
+            try {
+                player = new PreviewRenderer(p, dev, -1);
+            } catch (Exception ex) {
+                player = new IsochronicRenderer(p.clone(), dev, -1); //presets can't be swapped with this version of the renderer, a new one is created for each edit
+            }
             if(time!=null) player.setPosition(time);
             if(vol!=null) player.setVolume(vol);
             if(playing!=null&&playing) player.play();
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.editor;
+
+import com.dosse.bwentrain.core.EntrainmentTrack;
+import com.dosse.bwentrain.core.Envelope;
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.PresetLoader;
+import com.dosse.bwentrain.io.PresetReader;
+import com.dosse.bwentrain.io.PresetWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Differences between two versions of a preset, as records that turn one into
+ * the other: points replaced in an envelope, a track added, cloned or removed,
+ * a new length, ...<br>
+ * Used by the journal, that writes them to disk, and by the undo history, that
+ * keeps them together with the records that undo them, so that undoing an
+ * edit costs as much as the edit itself.
+ *
+ * @author dosse
+ */
+public class PresetDelta {
+
+    //record types. the first byte of a record is its type, type 0 is used by the journal
+    static final byte SNAPSHOT = 1, INFO = 2, LENGTH = 3, LOOP = 4, ADD_TRACK = 5, CLONE_TRACK = 6, REMOVE_TRACK = 7, TRACK_VOLUME = 8, SPLICE = 9;
+
+    /**
+     * computes the records that turn a preset into another one. Each record is
+     * applied to the old preset as soon as it's computed, so at the end it's
+     * the same as the new one
+     *
+     * @param from old preset, will be modified
+     * @param to new preset
+     * @param undo if not null, the records that turn the new preset back into
+     * the old one are added here, in the order they must be applied
+     * @return records, in the order they must be applied. empty if nothing
+     * changed
+     * @throws Exception if a record can't be applied
+     */
+    public static List<byte[]> diff(Preset from, Preset to, List<byte[]> undo) throws Exception {
+        Diff d = new Diff(from, undo);
+        if (!same(to.getTitle(), from.getTitle()) || !same(to.getAuthor(), from.getAuthor()) || !same(to.getDescription(), from.getDescription())) {
+            Record r = new Record(INFO);
+            writeString(r, to.getTitle());
+            writeString(r, to.getAuthor());
+            writeString(r, to.getDescription());
+            d.emit(r);
+        }
+        if (Float.compare(to.getLength(), from.getLength()) != 0) {
+            Record r = new Record(LENGTH);
+            r.writeFloat(to.getLength());
+            d.emit(r);
+        }
+        if (Float.compare(to.getLoop(), from.getLoop()) != 0) {
+            Record r = new Record(LOOP);
+            r.writeFloat(to.getLoop());
+            d.emit(r);
+        }
+        //tracks can only be added at the end, or removed
+        int n = from.getEntrainmentTrackCount(), m = to.getEntrainmentTrackCount();
+        if (m == n + 1) {
+            EntrainmentTrack added = to.getEntrainmentTrack(n);
+            int clone = -1;
+            for (int i = 0; i < n && clone == -1; i++) {
+                if (from.getEntrainmentTrack(i).equals(added)) {
+                    clone = i;
+                }
+            }
+            Record r = new Record(clone == -1 ? ADD_TRACK : CLONE_TRACK);
+            if (clone != -1) {
+                r.writeInt(clone);
+            }
+            d.emit(r);
+        } else if (m == n - 1) {
+            int removed = 0;
+            while (removed < m && from.getEntrainmentTrack(removed).equals(to.getEntrainmentTrack(removed))) {
+                removed++;
+            }
+            Record r = new Record(REMOVE_TRACK);
+            r.writeInt(removed);
+            d.emit(r);
+        } else if (m != n) {
+            //more than one track at once (for instance, after optimizing)
+            d.emit(snapshot(to));
+        }
+        for (int i = 0; i < m; i++) {
+            EntrainmentTrack a = from.getEntrainmentTrack(i), b = to.getEntrainmentTrack(i);
+            if (Float.compare(a.getTrackVolume(), b.getTrackVolume()) != 0) {
+                Record r = new Record(TRACK_VOLUME);
+                r.writeInt(i);
+                r.writeFloat(b.getTrackVolume());
+                d.emit(r);
+            }
+            diff(d, a.getVolumeEnvelope(), b.getVolumeEnvelope(), i, Graph.ENV_VOLUME);
+            diff(d, a.getBaseFrequencyEnvelope(), b.getBaseFrequencyEnvelope(), i, Graph.ENV_BASE_FREQUENCY);
+            diff(d, a.getEntrainmentFrequencyEnvelope(), b.getEntrainmentFrequencyEnvelope(), i, Graph.ENV_ENTRAINMENT_FREQUENCY);
+        }
+        diff(d, from.getNoiseEnvelope(), to.getNoiseEnvelope(), Graph.NOISE_TRACK, Graph.NOISE_ENV);
+        return d.records;
+    }
+
+    //the points that changed in an envelope, as a range of points replaced by new ones
+    private static void diff(Diff d, Envelope a, Envelope b, int track, int env) throws Exception {
+        int n = a.getPointCount(), m = b.getPointCount();
+        int start = 0, end = 0;
+        while (start < n && start < m && samePoint(a, start, b, start)) {
+            start++;
+        }
+        if (start == n && n == m) {
+            return; //not changed
+        }
+        while (end < n - start && end < m - start && samePoint(a, n - 1 - end, b, m - 1 - end)) {
+            end++;
+        }
+        d.emit(splice(b, track, env, start, n - start - end, m - start - end));
+    }
+
+    //a record that replaces removed points from start with added points of e, starting from the same index
+    private static Record splice(Envelope e, int track, int env, int start, int removed, int added) throws IOException {
+        Record r = new Record(SPLICE);
+        r.writeInt(track);
+        r.writeInt(env);
+        r.writeInt(start);
+        r.writeInt(removed);
+        r.writeInt(added);
+        for (int i = start; i < start + added; i++) {
+            r.writeFloat(e.getT(i));
+            r.writeFloat(e.getVal(i));
+        }
+        return r;
+    }
+
+    private static boolean samePoint(Envelope a, int i, Envelope b, int j) {
+        return a.getT(i) == b.getT(j) && a.getVal(i) == b.getVal(j);
+    }
+
+    private static boolean same(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    //records being computed
+    private static class Diff {
+
+        private final Preset from;
+        private final List<byte[]> undo;
+        private final List<byte[]> records = new ArrayList<>();
+
+        private Diff(Preset from, List<byte[]> undo) {
+            this.from = from;
+            this.undo = undo;
+        }
+
+        //applies a record to the old preset, so that the next ones are computed from there
+        private void emit(Record r) throws Exception {
+            byte[] body = r.toByteArray();
+            if (undo != null) {
+                undo.add(0, inverse(from, body));
+            }
+            apply(from, body);
+            records.add(body);
+        }
+    }
+
+    //a record that undoes another one, computed before applying it
+    private static byte[] inverse(Preset p, byte[] body) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        Record r;
+        switch (in.readByte()) {
+            case INFO:
+                r = new Record(INFO);
+                writeString(r, p.getTitle());
+                writeString(r, p.getAuthor());
+                writeString(r, p.getDescription());
+                break;
+            case LOOP:
+                r = new Record(LOOP);
+                r.writeFloat(p.getLoop());
+                break;
+            case ADD_TRACK:
+            case CLONE_TRACK:
+                r = new Record(REMOVE_TRACK);
+                r.writeInt(p.getEntrainmentTrackCount());
+                break;
+            case TRACK_VOLUME:
+                int track = in.readInt();
+                r = new Record(TRACK_VOLUME);
+                r.writeInt(track);
+                r.writeFloat(p.getEntrainmentTrack(track).getTrackVolume());
+                break;
+            case SPLICE:
+                track = in.readInt();
+                int env = in.readInt(), start = in.readInt(), removed = in.readInt(), added = in.readInt();
+                r = splice(envelope(p, track, env), track, env, start, added, removed);
+                break;
+            default:
+                //a new length cuts the envelopes, a track removed takes its points with it. these are rare, the whole preset is kept
+                r = snapshot(p);
+        }
+        return r.toByteArray();
+    }
+
+    //a record that replaces the whole preset
+    private static Record snapshot(Preset p) throws IOException {
+        Record r = new Record(SNAPSHOT);
+        PresetWriter.write(p, r);
+        return r;
+    }
+
+    /**
+     *
+     * @param p preset
+     * @return a record that replaces the whole preset with p
+     * @throws IOException if the preset can't be written
+     */
+    public static byte[] toSnapshot(Preset p) throws IOException {
+        return snapshot(p).toByteArray();
+    }
+
+    private static Envelope envelope(Preset p, int track, int env) {
+        if (track == Graph.NOISE_TRACK) {
+            return p.getNoiseEnvelope();
+        }
+        EntrainmentTrack t = p.getEntrainmentTrack(track);
+        return env == Graph.ENV_VOLUME ? t.getVolumeEnvelope() : env == Graph.ENV_BASE_FREQUENCY ? t.getBaseFrequencyEnvelope() : t.getEntrainmentFrequencyEnvelope();
+    }
+
+    //what a record changes, see target
+    static final int TARGET_TRACKS = -4, TARGET_ALL = -3, TARGET_DETAILS = -2, TARGET_NOISE = Graph.NOISE_TRACK;
+
+    /**
+     * tells which part of the preset a record changes, so that the editor only
+     * updates what's needed
+     *
+     * @param body record
+     * @return the entrainment track whose volume or envelopes it changes,
+     * TARGET_NOISE for the noise envelope, TARGET_DETAILS for title, author,
+     * description and loop, TARGET_ALL if it can change everything but keeps
+     * the same tracks (length, snapshot), TARGET_TRACKS if it adds or removes
+     * tracks
+     */
+    static int target(byte[] body) {
+        switch (body[0]) {
+            case INFO:
+            case LOOP:
+                return TARGET_DETAILS;
+            case ADD_TRACK:
+            case CLONE_TRACK:
+            case REMOVE_TRACK:
+                return TARGET_TRACKS;
+            case TRACK_VOLUME:
+            case SPLICE:
+                return (body[1] & 0xFF) << 24 | (body[2] & 0xFF) << 16 | (body[3] & 0xFF) << 8 | (body[4] & 0xFF); //the track is right after the type, big endian like DataOutputStream writes it
+            default:
+                return TARGET_ALL;
+        }
+    }
+
+    /**
+     * applies a record to a preset
+     *
+     * @param p preset, will be modified. if null, the record must be a
+     * snapshot
+     * @param body record
+     * @return the modified preset, or the one in the snapshot if p is null
+     * @throws Exception if the record is invalid or doesn't fit this preset
+     */
+    public static Preset apply(Preset p, byte[] body) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        switch (in.readByte()) {
+            case SNAPSHOT:
+                Preset s = PresetReader.read(in);
+                if (p == null) {
+                    return s;
+                }
+                copy(s, p);
+                break;
+            case INFO:
+                p.setTitle(readString(in));
+                p.setAuthor(readString(in));
+                p.setDescription(readString(in));
+                break;
+            case LENGTH:
+                p.setLength(in.readFloat());
+                break;
+            case LOOP:
+                p.setLoop(in.readFloat());
+                break;
+            case ADD_TRACK:
+                p.addEntrainmentTrack();
+                break;
+            case CLONE_TRACK:
+                p.cloneTrack(in.readInt());
+                break;
+            case REMOVE_TRACK:
+                p.removeEntrainmentTrack(in.readInt());
+                break;
+            case TRACK_VOLUME:
+                p.getEntrainmentTrack(in.readInt()).setTrackVolume(in.readFloat());
+                break;
+            case SPLICE:
+                Envelope e = envelope(p, in.readInt(), in.readInt());
+                int n = e.getPointCount(), start = in.readInt(), removed = in.readInt(), added = in.readInt();
+                if (start < 0 || removed < 0 || added < 0 || start + removed > n || n - removed + added < 1 || added > in.available() / 8) {
+                    throw new Exception("Invalid record");
+                }
+                float[] at = new float[added], av = new float[added];
+                for (int i = 0; i < added; i++) {
+                    at[i] = in.readFloat();
+                    av[i] = in.readFloat();
+                }
+                if (removed == 1 && added == 1 && (start == 0 ? at[0] == 0 : at[0] >= e.getT(start - 1) && at[0] <= (start == n - 1 ? e.getLength() : e.getT(start + 1)))) {
+                    //a point was moved (the most common edit), no need to copy the whole envelope. setT sorts the points, but this one stays where it is
+                    e.setT(start, at[0]);
+                    e.setVal(start, av[0]);
+                    break;
+                }
+                int m = n - removed + added;
+                float[] t = new float[m], v = new float[m];
+                for (int i = 0; i < start; i++) {
+                    t[i] = e.getT(i);
+                    v[i] = e.getVal(i);
+                }
+                System.arraycopy(at, 0, t, start, added);
+                System.arraycopy(av, 0, v, start, added);
+                for (int i = start + removed; i < n; i++) {
+                    t[i - removed + added] = e.getT(i);
+                    v[i - removed + added] = e.getVal(i);
+                }
+                PresetReader.setPoints(e, t, v, m, e.getLength());
+                break;
+            default:
+                throw new Exception("Invalid record");
+        }
+        return p;
+    }
+
+    //replaces the contents of a preset with the ones of another one, keeping the same object
+    private static void copy(Preset from, Preset to) throws Exception {
+        to.setTitle(from.getTitle());
+        to.setAuthor(from.getAuthor());
+        to.setDescription(from.getDescription());
+        to.setLength(from.getLength());
+        while (to.getEntrainmentTrackCount() > from.getEntrainmentTrackCount()) {
+            to.removeEntrainmentTrack(to.getEntrainmentTrackCount() - 1);
+        }
+        while (to.getEntrainmentTrackCount() < from.getEntrainmentTrackCount()) {
+            to.addEntrainmentTrack();
+        }
+        PresetLoader.copy(from.getNoiseEnvelope(), to.getNoiseEnvelope());
+        for (int i = 0; i < from.getEntrainmentTrackCount(); i++) {
+            EntrainmentTrack a = from.getEntrainmentTrack(i), b = to.getEntrainmentTrack(i);
+            b.setTrackVolume(a.getTrackVolume());
+            PresetLoader.copy(a.getVolumeEnvelope(), b.getVolumeEnvelope());
+            PresetLoader.copy(a.getBaseFrequencyEnvelope(), b.getBaseFrequencyEnvelope());
+            PresetLoader.copy(a.getEntrainmentFrequencyEnvelope(), b.getEntrainmentFrequencyEnvelope());
+        }
+        to.setLoop(from.getLoop());
+    }
+
+    //a record being written, in memory
+    static class Record extends DataOutputStream {
+
+        Record(byte type) throws IOException {
+            super(new ByteArrayOutputStream());
+            writeByte(type);
+        }
+
+        byte[] toByteArray() throws IOException {
+            flush();
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
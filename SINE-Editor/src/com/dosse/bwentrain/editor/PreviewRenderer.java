@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.editor;
+
+import com.dosse.bwentrain.core.EntrainmentTrack;
+import com.dosse.bwentrain.core.Envelope;
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.PresetLoader;
+import com.dosse.bwentrain.render.SteppableRenderer;
+import com.dosse.bwentrain.renderers.IRenderer;
+import com.dosse.bwentrain.renderers.isochronic.EntrainmentTrackRenderer;
+import com.dosse.bwentrain.sound.ISoundDevice;
+
+/**
+ * Renderer used by the editor to preview a preset while it's being edited.<br>
+ * Unlike IsochronicRenderer, the preset can be replaced while it's playing:
+ * setPreset makes an immutable snapshot of it, copying only the tracks and the
+ * noise envelope that changed since the previous one, and the render thread
+ * swaps it in between two blocks. The sound card is opened once and stays
+ * open, and the tracks that changed continue from the phase of the old ones,
+ * so an edit doesn't cause gaps or clicks.<br>
+ * Rendering is done by SteppableRenderer, so it sounds the same as
+ * IsochronicRenderer.
+ *
+ * @author dosse
+ */
+public class PreviewRenderer extends Thread implements IRenderer {
+
+    //what's needed to render a preset. never modified once it's created, parts that didn't change are shared with the previous snapshot
+    private static class Snapshot {
+
+        private final float length, loop;
+        private final boolean loops;
+        private final Envelope noise;
+        private final EntrainmentTrack[] tracks;
+        private final float[] multipliers; //volume of each track, as IsochronicRenderer computes it
+
+        private Snapshot(Preset p, Snapshot prev) throws Exception {
+            length = p.getLength();
+            loop = p.getLoop();
+            loops = p.loops();
+            boolean sameLength = prev != null && prev.length == length;
+            if (sameLength && prev.noise.equals(p.getNoiseEnvelope())) {
+                noise = prev.noise;
+            } else {
+                noise = new Envelope("noise", length);
+                PresetLoader.copy(p.getNoiseEnvelope(), noise);
+            }
+            tracks = new EntrainmentTrack[p.getEntrainmentTrackCount()];
+            multipliers = SteppableRenderer.getMultipliers(p);
+            for (int i = 0; i < tracks.length; i++) {
+                EntrainmentTrack t = p.getEntrainmentTrack(i);
+                if (sameLength && i < prev.tracks.length && prev.tracks[i].equals(t)) {
+                    tracks[i] = prev.tracks[i];
+                } else {
+                    tracks[i] = new EntrainmentTrack(length);
+                    tracks[i].setTrackVolume(t.getTrackVolume());
+                    PresetLoader.copy(t.getVolumeEnvelope(), tracks[i].getVolumeEnvelope());
+                    PresetLoader.copy(t.getBaseFrequencyEnvelope(), tracks[i].getBaseFrequencyEnvelope());
+                    PresetLoader.copy(t.getEntrainmentFrequencyEnvelope(), tracks[i].getEntrainmentFrequencyEnvelope());
+                }
+            }
+        }
+    }
+
+    private final ISoundDevice speaker;
+    private final Object lock = new Object(); //guards next and seek, which are set by the EDT and applied by the render thread
+    private Snapshot next;
+    private float seek = -1;
+    private Snapshot latest; //last snapshot made by setPreset, only used by the EDT
+    private Preset preset;
+    private Snapshot current; //only used by the render thread
+    private final SteppableRenderer r;
+    private volatile float length;
+    private volatile boolean playing = false, stopASAP = false;
+
+    /**
+     * creates a new renderer and starts its thread. It doesn't play until
+     * play is called
+     *
+     * @param p preset
+     * @param speaker sound device. It's opened the first time the preset is
+     * played and closed by stopPlaying
+     * @param loop how many times the preset loops, -1 for forever
+     * @throws Exception if the preset can't be copied or the version of the
+     * renderer in use is not supported
+     */
+    public PreviewRenderer(Preset p, ISoundDevice speaker, int loop) throws Exception {
+        this.speaker = speaker;
+        r = new SteppableRenderer(speaker.getSampleRate(), loop);
+        setPreset(p);
+        setName("Preview renderer");
+        setDaemon(true);
+        start();
+    }
+
+    /**
+     * replaces the preset. The new one is played from the next block, at the
+     * same position. Must be called by one thread at a time (the EDT)
+     *
+     * @param p preset. It's copied, so it can be modified afterwards
+     * @throws Exception if the preset can't be copied
+     */
+    public void setPreset(Preset p) throws Exception {
+        Snapshot s = new Snapshot(p, latest);
+        latest = s;
+        preset = p;
+        length = s.length;
+        synchronized (lock) {
+            next = s;
+        }
+    }
+
+    @Override
+    public Preset getPreset() {
+        return preset;
+    }
+
+    @Override
+    public void run() {
+        while (!stopASAP && (!r.isReady() || !playing)) {
+            update();
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+            }
+        }
+        if (stopASAP) {
+            return;
+        }
+        speaker.open();
+        int blockSize = r.getBlockSize();
+        float[] buf = new float[blockSize];
+        boolean stereo = speaker.getChannelCount() != 1;
+        float[] out = new float[blockSize * speaker.getChannelCount()];
+        while (!stopASAP) {
+            update();
+            if (!playing) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                }
+                continue;
+            }
+            Snapshot s = current;
+            if (!r.render(buf, s.noise, s.length, s.loops ? s.loop : -1)) {
+                seekTo(0);
+                playing = false;
+            }
+            if (stereo) {
+                int c = speaker.getChannelCount();
+                for (int i = 0; i < blockSize; i++) {
+                    for (int j = 0; j < c; j++) {
+                        out[i * c + j] = buf[i];
+                    }
+                }
+            }
+            speaker.write(stereo ? out : buf);
+        }
+        speaker.close();
+    }
+
+    //render thread: applies a new snapshot and a new position, if there are any
+    private void update() {
+        Snapshot s;
+        float pos;
+        synchronized (lock) {
+            s = next;
+            pos = seek;
+            next = null;
+            seek = -1;
+        }
+        if (s != null) {
+            swap(s);
+        }
+        if (pos >= 0) {
+            seekTo(pos);
+        }
+    }
+
+    //render thread: renderers for tracks that didn't change are kept, the others are created again and continue from where the old ones were
+    private void swap(Snapshot s) {
+        EntrainmentTrackRenderer[] renderers = r.getTrackRenderers();
+        EntrainmentTrackRenderer[] n = new EntrainmentTrackRenderer[s.tracks.length];
+        for (int i = 0; i < n.length; i++) {
+            boolean old = i < renderers.length;
+            if (old && current.tracks[i] == s.tracks[i] && current.multipliers[i] == s.multipliers[i]) {
+                n[i] = renderers[i];
+                continue;
+            }
+            n[i] = new EntrainmentTrackRenderer(s.tracks[i], speaker.getSampleRate(), s.multipliers[i]);
+            n[i].setT((float) r.getT());
+            if (old) {
+                try {
+                    SteppableRenderer.setTrackState(n[i], SteppableRenderer.getTrackState(renderers[i]));
+                } catch (Throwable err) {
+                }
+            }
+        }
+        r.setTrackRenderers(n);
+        current = s;
+    }
+
+    //render thread
+    private void seekTo(float pos) {
+        r.setT(pos < 0 ? 0 : pos > current.length ? current.length : pos);
+    }
+
+    @Override
+    public float getVolume() {
+        return speaker.getVolume();
+    }
+
+    @Override
+    public void setVolume(float vol) {
+        speaker.setVolume(vol);
+    }
+
+    @Override
+    public void play() {
+        playing = true;
+    }
+
+    @Override
+    public void pause() {
+        playing = false;
+    }
+
+    @Override
+    public void stopPlaying() {
+        playing = false;
+        stopASAP = true;
+        while (isAlive()) {
+            try {
+                sleep(1);
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return playing && isAlive();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !isAlive();
+    }
+
+    @Override
+    public float getPosition() {
+        return (float) r.getT();
+    }
+
+    @Override
+    public void setPosition(float pos) {
+        synchronized (lock) {
+            seek = pos < 0 ? 0 : pos;
+        }
+    }
+
+    @Override
+    public float getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.editor;
+
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.PresetLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Undo/redo history of the editor.<br>
+ * Instead of a copy of the whole preset, each step keeps the records that redo
+ * and undo it (see PresetDelta), so undoing or redoing costs as much as what
+ * was changed. Quick changes to the same thing (a point dragged again and
+ * again, a title being typed) are merged into a single step, and the oldest
+ * steps are forgotten when the history takes more than a given amount of
+ * memory.
+ *
+ * @author dosse
+ */
+public class UndoHistory {
+
+    private static final long MERGE_TIME = 1000; //changes to the same thing closer than this (ms) are merged
+    private static final int STEP_OVERHEAD = 64, RECORD_OVERHEAD = 16; //approximate memory used by a step and by a record, besides their data
+
+    private static class Step {
+
+        private List<byte[]> redo, undo;
+        private long size;
+
+        private Step(List<byte[]> redo, List<byte[]> undo) {
+            this.redo = redo;
+            this.undo = undo;
+            measure();
+        }
+
+        private void measure() {
+            size = STEP_OVERHEAD;
+            for (byte[] r : redo) {
+                size += r.length + RECORD_OVERHEAD;
+            }
+            for (byte[] r : undo) {
+                size += r.length + RECORD_OVERHEAD;
+            }
+        }
+    }
+
+    private final long maxMemory;
+    private final ArrayList<Step> steps = new ArrayList<>();
+    private int done = 0; //steps before this one can be undone, the others redone
+    private long memory = 0; //used by all steps
+    private Preset mirror; //the preset as of the last call to record, undo or redo
+    private long lastRecord = 0; //time of the last change recorded, 0 if the last step can't be merged with the next one
+
+    /**
+     * creates an empty history
+     *
+     * @param maxMemory the oldest steps are removed when the history takes
+     * more than this many bytes
+     */
+    public UndoHistory(long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * removes all steps. The next call to record starts the history
+     */
+    public void clear() {
+        steps.clear();
+        done = 0;
+        memory = 0;
+        mirror = null;
+        lastRecord = 0;
+    }
+
+    /**
+     * adds a step with the changes made to a preset since the last call (or
+     * since undo/redo). Steps that could be redone are removed
+     *
+     * @param p preset, as it is now
+     * @return true if something has changed, false otherwise. If the history
+     * was just cleared, this call only starts it and returns false
+     */
+    public boolean record(Preset p) {
+        if (mirror == null) {
+            start(p);
+            return false;
+        }
+        List<byte[]> undo = new ArrayList<>(), redo;
+        try {
+            redo = PresetDelta.diff(mirror, p, undo); //mirror is now the same as p
+        } catch (Throwable t) {
+            //the history doesn't match the preset anymore, start again from here
+            clear();
+            start(p);
+            return true;
+        }
+        if (redo.isEmpty()) {
+            return false;
+        }
+        while (steps.size() > done) {
+            memory -= steps.remove(steps.size() - 1).size;
+        }
+        long now = System.currentTimeMillis();
+        Step last = done == 0 ? null : steps.get(done - 1);
+        if (last != null && now - lastRecord < MERGE_TIME && redo.size() == 1 && last.redo.size() == 1 && sameTarget(last.redo.get(0), redo.get(0))) {
+            //keep the old undo record, it goes back to before the first change
+            memory -= last.size;
+            last.redo = redo;
+            last.measure();
+            memory += last.size;
+        } else {
+            Step s = new Step(redo, undo);
+            steps.add(s);
+            done++;
+            memory += s.size;
+        }
+        lastRecord = now;
+        while (memory > maxMemory && steps.size() > 1) {
+            memory -= steps.remove(0).size;
+            done--;
+        }
+        return true;
+    }
+
+    private void start(Preset p) {
+        try {
+            mirror = PresetLoader.copy(p);
+        } catch (Throwable t) {
+            mirror = null; //can't keep a history for this preset
+        }
+    }
+
+    //true if 2 records change the same thing in a way that the second one alone gives the same result as both of them: a text, the loop, the volume of the same track, or the same point of the same envelope
+    private static boolean sameTarget(byte[] a, byte[] b) {
+        if (a[0] != b[0]) {
+            return false;
+        }
+        switch (a[0]) {
+            case PresetDelta.INFO:
+            case PresetDelta.LOOP:
+                return true;
+            case PresetDelta.TRACK_VOLUME:
+                return same(a, b, 1, 5);
+            case PresetDelta.SPLICE:
+                //track, envelope and index, then one point replaced by one point
+                return same(a, b, 1, 21) && a[13] == 0 && a[14] == 0 && a[15] == 0 && a[16] == 1 && a[17] == 0 && a[18] == 0 && a[19] == 0 && a[20] == 1;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean same(byte[] a, byte[] b, int from, int to) {
+        if (a.length < to || b.length < to) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return true if there's something to undo
+     */
+    public boolean canUndo() {
+        return mirror != null && done > 0;
+    }
+
+    /**
+     *
+     * @return true if there's something to redo
+     */
+    public boolean canRedo() {
+        return mirror != null && done < steps.size();
+    }
+
+    /**
+     * undoes the last step
+     *
+     * @param p preset, will be modified. Must be the same as it was at the
+     * last call to record (or undo/redo)
+     * @return the records that were applied to p (see PresetDelta.target), or
+     * null if the whole preset may have changed
+     */
+    public List<byte[]> undo(Preset p) {
+        if (canUndo()) {
+            Step s = steps.get(--done);
+            return apply(p, s.undo);
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * redoes the last step that was undone
+     *
+     * @param p preset, will be modified. Must be the same as it was at the
+     * last call to record (or undo/redo)
+     * @return the records that were applied to p (see PresetDelta.target), or
+     * null if the whole preset may have changed
+     */
+    public List<byte[]> redo(Preset p) {
+        if (canRedo()) {
+            Step s = steps.get(done++);
+            return apply(p, s.redo);
+        }
+        return new ArrayList<>();
+    }
+
+    private List<byte[]> apply(Preset p, List<byte[]> records) {
+        lastRecord = 0;
+        try {
+            for (byte[] r : records) {
+                PresetDelta.apply(mirror, r);
+            }
+        } catch (Throwable t) {
+            clear();
+            start(p);
+            return null;
+        }
+        try {
+            for (byte[] r : records) {
+                PresetDelta.apply(p, r);
+            }
+            return records;
+        } catch (Throwable t) {
+            //p was changed without recording it, copy the whole preset
+            try {
+                PresetDelta.apply(p, PresetDelta.toSnapshot(mirror));
+            } catch (Throwable t2) {
+                clear();
+                start(p);
+            }
+            return null;
+        }
+    }
+}
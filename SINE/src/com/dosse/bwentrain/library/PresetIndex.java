@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2014 Federico Dossena
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dosse.bwentrain.library;
+
+import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.BinaryPreset;
+import com.dosse.bwentrain.io.PresetReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Remembers title, author, description, length and a few other things about
+ * the presets in the folders that have been browsed, so they can be searched
+ * and sorted without loading them.<br>
+ * Folders are scanned in the background, one level at a time (subfolders are
+ * scanned when they're browsed). A preset is only loaded again if
+ * its size or modification date changed since the last scan, and presets
+ * that don't exist anymore are removed.<br>
+ * The index is saved in a small gzipped file, by default in ~/.sine
+ *
+ * @author dosse
+ */
+public class PresetIndex {
+
+    public static final File DEFAULT_FILE = new File(new File(System.getProperty("user.home"), ".sine"), "library.idx");
+
+    private static final int MAGIC = 0x53494E49, VERSION = 1;
+
+    private static PresetIndex def;
+
+    /**
+     * what the index knows about a preset
+     */
+    public static class Entry {
+
+        private final File file;
+        private final long lastModified, size;
+        private final boolean valid;
+        private final String title, author, description;
+        private final float length;
+        private final boolean loops;
+        private final int tracks, complexity;
+        private final String text; //lowercase title, author, description and file name, used for searching
+
+        private Entry(File file, long lastModified, long size, boolean valid, String title, String author, String description, float length, boolean loops, int tracks, int complexity) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.valid = valid;
+            this.title = title;
+            this.author = author;
+            this.description = description;
+            this.length = length;
+            this.loops = loops;
+            this.tracks = tracks;
+            this.complexity = complexity;
+            text = (title + "\n" + author + "\n" + description + "\n" + file.getName()).toLowerCase(Locale.ROOT);
+        }
+
+        private static Entry of(File f, long lastModified, long size, Preset p) {
+            return new Entry(f, lastModified, size, true, p.getTitle() == null ? "" : p.getTitle(), p.getAuthor() == null ? "" : p.getAuthor(), p.getDescription() == null ? "" : p.getDescription(), p.getLength(), p.loops(), p.getEntrainmentTrackCount(), p.complexity());
+        }
+
+        private static Entry invalid(File f, long lastModified, long size) {
+            return new Entry(f, lastModified, size, false, "", "", "", 0, false, 0, 0);
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         *
+         * @return false if the file is not a valid preset
+         */
+        public boolean isValid() {
+            return valid;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         *
+         * @return length in seconds
+         */
+        public float getLength() {
+            return length;
+        }
+
+        public boolean loops() {
+            return loops;
+        }
+
+        public int getTrackCount() {
+            return tracks;
+        }
+
+        /**
+         *
+         * @return Preset.complexity, an estimate of how much cpu it takes to
+         * play it
+         */
+        public int getComplexity() {
+            return complexity;
+        }
+
+        //true if all the words appear in title, author, description or file name
+        private boolean matches(String[] words) {
+            for (String w : words) {
+                if (!text.contains(w)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return title.isEmpty() ? file.getName() : title;
+        }
+    }
+
+    public static final Comparator<Entry> BY_TITLE = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.toString().compareToIgnoreCase(b.toString());
+        }
+    };
+    public static final Comparator<Entry> BY_AUTHOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = a.author.compareToIgnoreCase(b.author);
+            return c != 0 ? c : BY_TITLE.compare(a, b);
+        }
+    };
+    public static final Comparator<Entry> BY_LENGTH = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = Float.compare(a.length, b.length);
+            return c != 0 ? c : BY_TITLE.compare(a, b);
+        }
+    };
+
+    private final File file;
+    private final Object saveLock = new Object();
+    private final HashMap<String, Entry> entries = new HashMap<>(); //absolute path -> entry
+    private final ExecutorService scanner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Preset indexer");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    /**
+     * opens an index. If the file doesn't exist or can't be read, the index
+     * starts empty
+     *
+     * @param file index file
+     */
+    public PresetIndex(File file) {
+        this.file = file;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return; //not an index or an old version, it will be rebuilt
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                File f = new File(readString(in));
+                long lastModified = in.readLong(), size = in.readLong();
+                Entry e;
+                if (in.readBoolean()) {
+                    e = new Entry(f, lastModified, size, true, readString(in), readString(in), readString(in), in.readFloat(), in.readBoolean(), in.readInt(), in.readInt());
+                } else {
+                    e = Entry.invalid(f, lastModified, size);
+                }
+                entries.put(f.getPath(), e);
+            }
+        } catch (Throwable t) {
+            //missing or corrupted, keep what was read
+        }
+    }
+
+    /**
+     *
+     * @return the index in DEFAULT_FILE
+     */
+    public static synchronized PresetIndex getDefault() {
+        if (def == null) {
+            def = new PresetIndex(DEFAULT_FILE);
+        }
+        return def;
+    }
+
+    /**
+     * updates the index with the presets in a folder (not in its subfolders),
+     * then saves it if something changed
+     *
+     * @param dir folder
+     * @return true if something changed
+     */
+    public boolean scan(File dir) {
+        final Path start = dir.getAbsoluteFile().toPath();
+        final String prefix = start.toString().endsWith(File.separator) ? start.toString() : start.toString() + File.separator;
+        final HashSet<String> found = new HashSet<>();
+        final boolean[] changed = {false};
+        try {
+            Files.walkFileTree(start, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path p, BasicFileAttributes a) {
+                    if (!a.isRegularFile() || !BinaryPreset.isPresetName(p.getFileName().toString())) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    File f = p.toFile();
+                    long lastModified = a.lastModifiedTime().toMillis(), size = a.size();
+                    found.add(f.getPath());
+                    Entry e = get(f);
+                    if (e != null && e.lastModified == lastModified && e.size == size) {
+                        return FileVisitResult.CONTINUE; //not modified
+                    }
+                    try {
+                        e = Entry.of(f, lastModified, size, PresetReader.read(f));
+                    } catch (Throwable t) {
+                        e = Entry.invalid(f, lastModified, size); //remembered so it's not loaded again until it changes
+                    }
+                    synchronized (PresetIndex.this) {
+                        entries.put(f.getPath(), e);
+                    }
+                    changed[0] = true;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path p, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            return false;
+        }
+        //remove presets that were deleted. the candidates are collected under the lock, but checked outside of it so that search doesn't wait for the disk
+        ArrayList<Entry> missing = new ArrayList<>();
+        synchronized (this) {
+            for (Entry e : entries.values()) {
+                String path = e.file.getPath();
+                if (path.startsWith(prefix) && path.indexOf(File.separatorChar, prefix.length()) == -1 && !found.contains(path)) {
+                    missing.add(e);
+                }
+            }
+        }
+        Iterator<Entry> i = missing.iterator();
+        while (i.hasNext()) {
+            if (i.next().file.isFile()) {
+                i.remove();
+            }
+        }
+        synchronized (this) {
+            for (Entry e : missing) {
+                if (entries.get(e.file.getPath()) == e) { //unless it was updated in the meantime
+                    entries.remove(e.file.getPath());
+                    changed[0] = true;
+                }
+            }
+        }
+        if (changed[0]) {
+            try {
+                save();
+            } catch (IOException e) {
+            }
+        }
+        return changed[0];
+    }
+
+    /**
+     * scans a folder in the background, one folder at a time
+     *
+     * @param dir folder
+     * @param onChange called on the indexer thread after the scan, only if
+     * something changed. can be null
+     */
+    public void scanLater(final File dir, final Runnable onChange) {
+        scanner.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (scan(dir) && onChange != null) {
+                    onChange.run();
+                }
+            }
+        });
+    }
+
+    private synchronized Entry get(File f) {
+        return entries.get(f.getPath());
+    }
+
+    /**
+     * searches the index
+     *
+     * @param query words that must appear in the title, author, description or
+     * file name of the preset, ignoring case. an empty query matches all the
+     * presets
+     * @param order how to sort the results, for instance BY_TITLE
+     * @return valid presets that match the query, sorted
+     */
+    public List<Entry> search(String query, Comparator<Entry> order) {
+        String[] words = query.trim().toLowerCase(Locale.ROOT).split("\\s+");
+        if (words.length == 1 && words[0].isEmpty()) {
+            words = new String[0];
+        }
+        ArrayList<Entry> ret = new ArrayList<>();
+        synchronized (this) {
+            for (Entry e : entries.values()) {
+                if (e.valid && e.matches(words)) {
+                    ret.add(e);
+                }
+            }
+        }
+        Collections.sort(ret, order);
+        return ret;
+    }
+
+    /**
+     *
+     * @return number of files in the index, including the ones that are not
+     * valid presets
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void save() throws IOException {
+        ArrayList<Entry> l;
+        synchronized (this) {
+            l = new ArrayList<>(entries.values());
+        }
+        synchronized (saveLock) {
+            write(l);
+        }
+    }
+
+    private void write(List<Entry> l) throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(l.size());
+            for (Entry e : l) {
+                writeString(out, e.file.getPath());
+                out.writeLong(e.lastModified);
+                out.writeLong(e.size);
+                out.writeBoolean(e.valid);
+                if (e.valid) {
+                    writeString(out, e.title);
+                    writeString(out, e.author);
+                    writeString(out, e.description);
+                    out.writeFloat(e.length);
+                    out.writeBoolean(e.loops);
+                    out.writeInt(e.tracks);
+                    out.writeInt(e.complexity);
+                }
+            }
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            //some file systems can't do it atomically
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    //writeUTF is limited to 64k, descriptions can be longer
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0 || n > 16777216) {
+            throw new IOException("Corrupted index");
+        }
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
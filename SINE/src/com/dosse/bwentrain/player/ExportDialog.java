@@ -16,12 +16,15 @@
  */
 package com.dosse.bwentrain.player;
 
+import com.dosse.bwentrain.cache.ExportCache;
 import com.dosse.bwentrain.core.Preset;
 import com.dosse.bwentrain.renderers.IRenderer;
 import com.dosse.bwentrain.renderers.isochronic.IsochronicRenderer;
+import com.dosse.bwentrain.sound.AsyncSoundDevice;
 import com.dosse.bwentrain.sound.ISoundDevice;
 import com.dosse.bwentrain.sound.backends.flac.FLACFileSoundBackend;
 import com.dosse.bwentrain.sound.backends.mp3.MP3FileSoundBackend;
+import com.dosse.bwentrain.sound.backends.opus.OggOpusFileSoundBackend;
 import com.dosse.bwentrain.sound.backends.wav.WavFileSoundBackend;
 import java.awt.Dialog;
 import java.awt.KeyEventDispatcher;
@@ -41,6 +44,7 @@ import javax.swing.JDialog;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 import javax.swing.border.LineBorder;
 
@@ -55,7 +59,7 @@ public class ExportDialog extends JDialog {
     private static final int BAR_HEIGHT = (int) (24f * Main.SCALE); //height of the progress bar
     private static final int PLUS_MINUS_WIDTH = (int) (20f * Main.SCALE), PLUS_MINUS_HEIGHT = (int) (20f * Main.SCALE); //size of +/- buttons (used to choose how many times a looping part should be looped if the preset loops)
 
-    public static final int FORMAT_MP3=0, FORMAT_FLAC = 1, FORMAT_WAV = 2;
+    public static final int FORMAT_MP3=0, FORMAT_FLAC = 1, FORMAT_WAV = 2, FORMAT_OPUS = 3;
     
     private JPanel panel; //container
     private ProgressBar progress; //progress bar
@@ -67,6 +71,7 @@ public class ExportDialog extends JDialog {
     private int nLoops = 3; //how many times to repeat the loop in a looping preset
 
     private IRenderer player;
+    private String cacheKey = null; //key of this export in the export cache
     
     public ExportDialog(final Preset p, final File f, final int format) {
         super(new JFrame(), true);
@@ -102,6 +107,18 @@ public class ExportDialog extends JDialog {
                     player.stopPlaying(); //stop player to save resources
                     player = null;
                     t.stop(); //stop this timer, no longer needed
+                    if (cacheKey != null) { //keep a copy, in case the same preset is exported again
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                try {
+                                    ExportCache.getDefault().store(cacheKey, f);
+                                } catch (Exception e) {
+                                    //not cached, not a problem
+                                }
+                            }
+                        }.start();
+                    }
                     dispose(); //close the window
                     MessageBox.showMessage(Utils.getLocString("EXPORT_EXPORT_COMPLETE")); //alert the user
                 }
@@ -139,34 +156,51 @@ public class ExportDialog extends JDialog {
         start = new DialogButton(Utils.getLocString("EXPORT_START")) { //start button
             @Override
             public void actionPerformed() {
-                try {
-                    ISoundDevice dev = null;
-                    if (format == FORMAT_FLAC) {
-                        dev = new FLACFileSoundBackend(f.getAbsolutePath(), 44100, 1);
-                    }
-                    if (format == FORMAT_WAV) {
-                        dev = new WavFileSoundBackend(f.getAbsolutePath(), 44100, 1);
-                    }
-                    if(format==FORMAT_MP3){
-                        dev=new MP3FileSoundBackend(f.getAbsolutePath(), 44100, 1, 96);
-                    }
-                    player = new IsochronicRenderer(p, dev, p.loops() ? nLoops : 0); //initialize player with selected output format
-                    player.play(); //start exporting
-                    start.setEnabled(false); //disable start button
-                    if (p.loops()) { //disable loop +/-
-                        loop.setEnabled(false);
-                        plus.setEnabled(false);
-                        minus.setEnabled(false);
-                    }
-                } catch (Throwable ex) {
-                    //something went wrong, notify the user, stop everything and close
-                    if (player != null) {
-                        player.stopPlaying();
-                    }
-                    t.stop();
-                    dispose();
-                    MessageBox.showError(Utils.getLocString("EXPORT_FAIL"));
+                if (!start.isEnabled()) { //already started (enter pressed again)
+                    return;
                 }
+                start.setEnabled(false); //disable start button
+                if (p.loops()) { //disable loop +/-
+                    loop.setEnabled(false);
+                    plus.setEnabled(false);
+                    minus.setEnabled(false);
+                }
+                final int loops = p.loops() ? nLoops : 0;
+                new Thread() { //hashing the preset and copying a file from the cache take a while, keep them off the event thread
+                    @Override
+                    public void run() {
+                        String key;
+                        boolean cached;
+                        try {
+                            key = ExportCache.key(p, loops, format == FORMAT_OPUS ? 48000 : 44100, 1, format == FORMAT_MP3 ? "mp3-96" : format == FORMAT_FLAC ? "flac" : format == FORMAT_WAV ? "wav" : "opus-32");
+                            cached = ExportCache.getDefault().fetch(key, f, false);
+                        } catch (Throwable ex) {
+                            key = null; //can't use the cache, just export it
+                            cached = false;
+                        }
+                        final String k = key;
+                        final boolean c = cached;
+                        SwingUtilities.invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!isDisplayable()) { //cancelled while looking in the cache
+                                    if (c) {
+                                        f.delete();
+                                    }
+                                    return;
+                                }
+                                if (c) { //same as a previous export, no need to render it
+                                    t.stop();
+                                    dispose();
+                                    MessageBox.showMessage(Utils.getLocString("EXPORT_EXPORT_COMPLETE"));
+                                } else {
+                                    cacheKey = k;
+                                    export(p, f, format, loops);
+                                }
+                            }
+                        });
+                    }
+                }.start();
             }
         };
         panel.add(start);
@@ -238,6 +272,36 @@ public class ExportDialog extends JDialog {
         fixupLayout();
     }
     
+    //starts rendering the preset to f
+    private void export(Preset p, File f, int format, int loops) {
+        try {
+            ISoundDevice dev = null;
+            if (format == FORMAT_FLAC) {
+                dev = new FLACFileSoundBackend(f.getAbsolutePath(), 44100, 1);
+            }
+            if (format == FORMAT_WAV) {
+                dev = new WavFileSoundBackend(f.getAbsolutePath(), 44100, 1);
+            }
+            if(format==FORMAT_MP3){
+                dev=new MP3FileSoundBackend(f.getAbsolutePath(), 44100, 1, 96);
+            }
+            if (format == FORMAT_OPUS) {
+                dev = new OggOpusFileSoundBackend(f.getAbsolutePath(), 48000, 1, 32); //opus doesn't support 44100Hz
+            }
+            dev = new AsyncSoundDevice(dev); //encode on another thread while rendering
+            player = new IsochronicRenderer(p, dev, loops); //initialize player with selected output format
+            player.play(); //start exporting
+        } catch (Throwable ex) {
+            //something went wrong, notify the user, stop everything and close
+            if (player != null) {
+                player.stopPlaying();
+            }
+            t.stop();
+            dispose();
+            MessageBox.showError(Utils.getLocString("EXPORT_FAIL"));
+        }
+    }
+
     private void fixupLayout() {
         panel.setSize(getWidth(), getHeight()); //stretch the container over the entire window
         titleBar.setBounds(1, 1, getWidth() - 2, Main.TITLE_BAR_HEIGHT); //draggable titlebar at the top
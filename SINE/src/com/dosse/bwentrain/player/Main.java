@@ -17,9 +17,12 @@
 package com.dosse.bwentrain.player;
 
 import com.dosse.bwentrain.core.Preset;
+import com.dosse.bwentrain.io.BinaryPreset;
+import com.dosse.bwentrain.io.PresetLoader;
 import com.dosse.bwentrain.sound.backends.pc.PCSoundBackend;
 import com.github.axet.apple.Apple;
 import java.awt.Color;
+import java.awt.Cursor;
 import java.awt.EventQueue;
 import java.awt.Font;
 import java.awt.KeyEventDispatcher;
@@ -62,10 +65,6 @@ import javax.swing.plaf.ColorUIResource;
 import javax.swing.plaf.FontUIResource;
 import javax.swing.plaf.metal.MetalLookAndFeel;
 import javax.swing.plaf.metal.MetalTheme;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
 
 /**
  * the Main class of the application. start reading the code from here
@@ -139,7 +138,7 @@ public class Main extends JFrame {
     public static final FileFilter PRESET_FILE_FILTER = new FileFilter() {
         @Override
         public boolean accept(File f) {
-            return f.isDirectory() || f.getName().toLowerCase().endsWith(".sin");
+            return f.isDirectory() || BinaryPreset.isPresetName(f.getName());
         }
 
         @Override
@@ -174,6 +173,19 @@ public class Main extends JFrame {
             return Utils.getLocString("MAIN_WAV_FILE_DESCRIPTION");
         }
     };
+    //file filter for opus files, used when exporting a preset
+    public static final FileFilter OPUS_FILE_FILTER = new FileFilter() {
+
+        @Override
+        public boolean accept(File f) {
+            return f.isDirectory() || f.getName().toLowerCase().endsWith(".opus") || f.getName().toLowerCase().endsWith(".ogg");
+        }
+
+        @Override
+        public String getDescription() {
+            return Utils.getLocString("MAIN_OPUS_FILE_DESCRIPTION");
+        }
+    };
     //file filter for mp3 files, used when exporting a preset
     public static final FileFilter MP3_FILE_FILTER = new FileFilter() {
 
@@ -445,7 +457,7 @@ public class Main extends JFrame {
                             if (files.size() == 1) {
                                 //load preset
                                 File p = (File) files.get(0);
-                                if (p.getName().toLowerCase().endsWith(".sin")) {
+                                if (BinaryPreset.isPresetName(p.getName())) {
                                     loadPreset(p);
                                 }
                             }
@@ -544,27 +556,45 @@ public class Main extends JFrame {
     }
 
     private void loadPreset(File p) {
-        try {
-            //read xml document
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setIgnoringComments(true);
-            factory.setIgnoringElementContentWhitespace(true);
-            factory.setValidating(false);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(new InputSource(p.getAbsolutePath()));
-            //parse it
-            Preset x = new Preset(doc.getDocumentElement());
-            playerPanel.setPreset(x); //send it to player
-            //update description
-            desc.setTitle(x.getTitle());
-            desc.setAuthor(x.getAuthor());
-            desc.setDescription(x.getDescription());
-            export.setEnabled(true); //enable export option (it was initially disabled)
-            playerPanel.play(); //start playing the preset
-        } catch (Throwable t) {
-            //corrupt or not a preset file
-            MessageBox.showError(Utils.getLocString("MAIN_PRESET_FILE_ERROR") + "\n\n" + p.toString() + " | " + t.toString());
-        }
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        //read and parse it in the background, if another file is opened in the meantime this one is forgotten
+        PresetLoader.getDefault().loadLatest(p, new PresetLoader.Callback() {
+            @Override
+            public void loaded(final File f, final Preset x) {
+                EventQueue.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        setCursor(Cursor.getDefaultCursor());
+                        try {
+                            playerPanel.setPreset(x); //send it to player
+                            //update description
+                            desc.setTitle(x.getTitle());
+                            desc.setAuthor(x.getAuthor());
+                            desc.setDescription(x.getDescription());
+                            export.setEnabled(true); //enable export option (it was initially disabled)
+                            playerPanel.play(); //start playing the preset
+                        } catch (Throwable t) {
+                            showLoadError(f, t);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void failed(final File f, final Throwable t) {
+                EventQueue.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        setCursor(Cursor.getDefaultCursor());
+                        showLoadError(f, t); //corrupt or not a preset file
+                    }
+                });
+            }
+        });
+    }
+
+    private void showLoadError(File p, Throwable t) {
+        MessageBox.showError(Utils.getLocString("MAIN_PRESET_FILE_ERROR") + "\n\n" + p.toString() + " | " + t.toString());
     }
 
     public void export() {
@@ -617,6 +647,18 @@ public class Main extends JFrame {
                     //export to selected file
                     ExportDialog.export(p, out, ExportDialog.FORMAT_WAV);
                 }
+                if (sel[1] == OPUS_FILE_FILTER) { //chose Opus
+                    if (!out.getName().toLowerCase().endsWith(".opus") && !out.getName().toLowerCase().endsWith(".ogg")) {
+                        out = new File(out.getAbsolutePath() + ".opus");
+                    }
+                    if (out.exists() && MessageBox.showYesNoDialog(Utils.getLocString("MAIN_CONFIRM_OVERWRITE")) == MessageBox.SELECTION_NO) { //file already exists
+                        //don't overwrite, shows the file chooser again
+                        export();
+                        return;
+                    }
+                    //export to selected file
+                    ExportDialog.export(p, out, ExportDialog.FORMAT_OPUS);
+                }
                 rejectAppleEvents = false;
             }
         });
@@ -19,7 +19,7 @@ package com.dosse.bwentrain.player;
 import com.dosse.bwentrain.core.Preset;
 import com.dosse.bwentrain.renderers.IRenderer;
 import com.dosse.bwentrain.renderers.isochronic.IsochronicRenderer;
-import com.dosse.bwentrain.sound.backends.pc.PCSoundBackend;
+import com.dosse.bwentrain.sound.backends.pc.LowLatencyPCSoundBackend;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
@@ -52,16 +52,6 @@ public class PlayerPanel extends JPanel {
 
     private IRenderer p;
 
-    //converts time to HH:MM:SS String
-    private String toHMS(float t) {
-        int h = (int) (t / 3600);
-        t %= 3600;
-        int m = (int) (t / 60);
-        t %= 60;
-        int s = (int) t;
-        return "" + (h < 10 ? ("0" + h) : h) + ":" + (m < 10 ? ("0" + m) : m) + ":" + (s < 10 ? ("0" + s) : s); //bloody hell, code salad
-    }
-
     public PlayerPanel() {
         super();
         setLayout(null);
@@ -165,7 +155,7 @@ public class PlayerPanel extends JPanel {
                     } else {
                         playPauseButton.setIcon(PLAY);
                     }
-                    status.setText(toHMS(p.getPosition()) + "/" + toHMS(p.getLength()));
+                    status.setText(Utils.toHMS(p.getPosition()) + "/" + Utils.toHMS(p.getLength()));
                 } catch (Throwable th) {
                 }
             }
@@ -183,7 +173,7 @@ public class PlayerPanel extends JPanel {
             p.stopPlaying();
             p = null;
         }
-        p = new IsochronicRenderer(preset, new PCSoundBackend(44100, 1), -1);
+        p = new IsochronicRenderer(preset, new LowLatencyPCSoundBackend(44100, 1), -1);
         p.setVolume((float) volBar.getValue() / (float) volBar.getMaximum());
     }
 
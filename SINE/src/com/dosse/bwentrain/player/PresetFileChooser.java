@@ -16,6 +16,8 @@
  */
 package com.dosse.bwentrain.player;
 
+import com.dosse.bwentrain.library.PresetIndex;
+import java.awt.Component;
 import java.awt.KeyEventDispatcher;
 import java.awt.KeyboardFocusManager;
 import java.awt.event.ActionEvent;
@@ -23,17 +25,35 @@ import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.JComboBox;
 import javax.swing.JDialog;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
+import javax.swing.JList;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
 import javax.swing.border.LineBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 /**
- * preset opener
+ * preset opener. typing in the search box searches all the presets in the
+ * folders that have been browsed (see PresetIndex) instead of showing the
+ * current folder
  *
  * @author dosse
  */
@@ -45,6 +65,12 @@ public class PresetFileChooser extends JDialog {
     private final TitleBar titlebar;
     private final JFileChooser c;
     private final DialogButton confirm, cancel;
+    private final JTextField search;
+    private final JComboBox<String> sort;
+    private final JList<PresetIndex.Entry> results;
+    private final JScrollPane resultsScroll;
+    private final PresetIndex index = PresetIndex.getDefault();
+    private static final List<Comparator<PresetIndex.Entry>> SORT_ORDERS = Arrays.asList(PresetIndex.BY_TITLE, PresetIndex.BY_AUTHOR, PresetIndex.BY_LENGTH); //same order as the items in sort
 
     private File selected;
 
@@ -81,14 +107,72 @@ public class PresetFileChooser extends JDialog {
                 done(e.getActionCommand().equals(JFileChooser.APPROVE_SELECTION));
             }
         });
+        c.addPropertyChangeListener(JFileChooser.DIRECTORY_CHANGED_PROPERTY, new PropertyChangeListener() { //index the new folder. only folders the user opens are scanned, not the one the chooser starts in
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                indexLater(c.getCurrentDirectory());
+            }
+        });
         panel.add(c);
+        results = new JList<>();
+        results.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        results.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                PresetIndex.Entry e = (PresetIndex.Entry) value;
+                super.getListCellRendererComponent(list, e + (e.getAuthor().isEmpty() ? "" : " - " + e.getAuthor()) + " (" + Utils.toHMS(e.getLength()) + ")", index, isSelected, cellHasFocus);
+                setToolTipText(e.getFile().getPath());
+                return this;
+            }
+        });
+        results.addMouseListener(new MouseAdapter() { //double-clicked a preset
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2 && results.getSelectedValue() != null) {
+                    done(true);
+                }
+            }
+        });
+        resultsScroll = new JScrollPane(results);
+        resultsScroll.setVisible(false);
+        panel.add(resultsScroll);
+        search = new JTextField();
+        search.setToolTipText(Utils.getLocString("PRESOPEN_SEARCH"));
+        search.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                updateResults();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                updateResults();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                updateResults();
+            }
+        });
+        panel.add(search);
+        sort = new JComboBox<>(new String[]{Utils.getLocString("PRESOPEN_SORT_TITLE"), Utils.getLocString("PRESOPEN_SORT_AUTHOR"), Utils.getLocString("PRESOPEN_SORT_LENGTH")});
+        sort.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                updateResults();
+            }
+        });
+        panel.add(sort);
         add(panel);
         Utils.setFontRecursive(c, Main.BASE_FONT);
+        Utils.setFontRecursive(resultsScroll, Main.BASE_FONT);
+        search.setFont(Main.BASE_FONT);
+        sort.setFont(Main.BASE_FONT);
         confirm = new DialogButton(Utils.getLocString("PRESOPEN_CONFIRM")) { //confirm pressed
 
             @Override
             public void actionPerformed() {
-                if (c.getSelectedFile() != null) {
+                if (resultsScroll.isVisible() ? results.getSelectedValue() != null : c.getSelectedFile() != null) {
                     done(true);
                 }
             }
@@ -127,8 +211,47 @@ public class PresetFileChooser extends JDialog {
         });
     }
 
+    //updates the index in the background, and the search results if something changed
+    private void indexLater(File dir) {
+        if (dir == null) {
+            return;
+        }
+        index.scanLater(dir, new Runnable() {
+            @Override
+            public void run() {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateResults();
+                    }
+                });
+            }
+        });
+    }
+
+    //shows the presets that match the search, or the file chooser if the search is empty
+    private void updateResults() {
+        String q = search.getText();
+        if (q.trim().isEmpty()) {
+            resultsScroll.setVisible(false);
+            c.setVisible(true);
+            return;
+        }
+        PresetIndex.Entry sel = results.getSelectedValue();
+        List<PresetIndex.Entry> l = index.search(q, SORT_ORDERS.get(sort.getSelectedIndex()));
+        results.setListData(l.toArray(new PresetIndex.Entry[l.size()]));
+        if (sel != null) {
+            results.setSelectedValue(sel, true); //keep the selection if it's still there
+        }
+        c.setVisible(false);
+        resultsScroll.setVisible(true);
+    }
+
     private void done(boolean ok) {
-        if (ok) { //confirm. return selected file
+        if (ok && resultsScroll.isVisible()) { //confirm in search results. return selected preset
+            selected = results.getSelectedValue().getFile();
+            Main.lastDir = selected.getParentFile();
+        } else if (ok) { //confirm. return selected file
             selected = c.getSelectedFile();
             Main.lastDir = c.getCurrentDirectory();
         } else { //canceled, return null
@@ -145,6 +268,10 @@ public class PresetFileChooser extends JDialog {
         cancel.setBounds(x, y, DialogButton.DIALOG_BUTTON_WIDTH, DialogButton.DIALOG_BUTTON_HEIGHT); //cancel button in lower-right corner
         x -= Main.GENERIC_MARGIN + DialogButton.DIALOG_BUTTON_WIDTH;
         confirm.setBounds(x, y, DialogButton.DIALOG_BUTTON_WIDTH, DialogButton.DIALOG_BUTTON_HEIGHT); //confirm button at its left
+        resultsScroll.setBounds(c.getBounds()); //search results in place of the file chooser
+        int w = x - 2 * Main.GENERIC_MARGIN - 1, sortW = (int) (w * 0.4f);
+        search.setBounds(1 + Main.GENERIC_MARGIN, y, w - sortW - Main.GENERIC_MARGIN, DialogButton.DIALOG_BUTTON_HEIGHT); //search box in the lower-left corner
+        sort.setBounds(1 + Main.GENERIC_MARGIN + w - sortW, y, sortW, DialogButton.DIALOG_BUTTON_HEIGHT); //sort order between the search box and the buttons
         repaint(); //must force repaint on some systems
     }
 
@@ -139,4 +139,19 @@ public class Utils {
         if(!Desktop.getDesktop().isSupported(Desktop.Action.BROWSE)) throw new Exception("Not supported");
         Desktop.getDesktop().browse(uri);
     }
+
+    /**
+     * converts a time to a HH:MM:SS String
+     *
+     * @param t time in seconds
+     * @return time as HH:MM:SS
+     */
+    static String toHMS(float t) {
+        int h = (int) (t / 3600);
+        t %= 3600;
+        int m = (int) (t / 60);
+        t %= 60;
+        int s = (int) t;
+        return "" + (h < 10 ? ("0" + h) : h) + ":" + (m < 10 ? ("0" + m) : m) + ":" + (s < 10 ? ("0" + s) : s);
+    }
 }